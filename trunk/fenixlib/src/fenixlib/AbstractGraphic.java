@@ -24,8 +24,7 @@
 
 package fenixlib;
 
-import java.util.TreeSet;
-import java.util.Comparator;
+import java.util.NoSuchElementException;
 
 /**
  * A class that defines a graphic as a set of properties. This class does
@@ -72,15 +71,11 @@ public abstract class AbstractGraphic {
     protected int flags = 0;
     
     /**
-     * A set containing all ControlPoints of the image. ControlPoints are 
-     * pairs of (x, y) coordinates to store imaginary points in the graphic.
+     * The ControlPoints of the image, stored as arrays of coordinates indexed
+     * by control point index. ControlPoints are pairs of (x, y) coordinates 
+     * to store imaginary points in the graphic.
      */
-    protected TreeSet<ControlPoint> controlPoints = new TreeSet<ControlPoint>(
-        new Comparator<ControlPoint>() {
-            public int compare(ControlPoint cp1, ControlPoint cp2) {
-                return cp1.getIndex() - cp2.getIndex();
-            };
-    } );
+    final ControlPointStore controlPoints = new ControlPointStore();
 
     /**
      * Gets the width of the graphic.
@@ -154,20 +149,20 @@ public abstract class AbstractGraphic {
      * @return true if the graphic has the specified control point. Otherwise false.
      */    
     public boolean hasControlPoint(int index) {
-        return controlPoints.contains(new ControlPoint(index));
+        return controlPoints.contains(index);
     }
     
     /**
      * Gets the <code>ControlPoint</code> at the given index. Changes in the returned
-     * object will result in changes in the ControlPoint of the graphic.
+     * object will result in changes in the ControlPoint of the graphic, until
+     * the control point is removed.
      * @param index index of the requested ControlPoint
      * @return the <code>ControlPoint</code> at the given index. This can be
      * <code>null</code> if the ControlPoint have not been set.
      */
     public ControlPoint getControlPoint(int index) {
-        ControlPoint cp = new ControlPoint(index);
-        if (controlPoints.contains(cp)) {
-            return controlPoints.ceiling(cp);
+        if (controlPoints.contains(index)) {
+            return controlPoints.getView(index);
         } else {
             return null;
         }
@@ -179,34 +174,107 @@ public abstract class AbstractGraphic {
      * the defined control points of the graphic
      */
     public ControlPoint[] getControlPoints() {
-        return controlPoints.toArray(new ControlPoint[0]);
+        ControlPoint[] cps = new ControlPoint[controlPoints.size()];
+        int i = 0;
+        for (int index = controlPoints.defined.nextSetBit(0); index >= 0; 
+                index = controlPoints.defined.nextSetBit(index + 1)) {
+            cps[i++] = controlPoints.getView(index);
+        }
+        return cps;
     }
     
     /**
      * Gets the greatest <code>ControlPoint</code> defined for the graphic.
      * @return the greatest <code>ControlPoint</code> defined for the graphic
+     * @throws NoSuchElementException if the graphic has no control points
      */
     public ControlPoint getLastControlPoint() {
+        int last = controlPoints.last();
+        if (last == -1) {
+            throw new NoSuchElementException("The graphic has no control points");
+        }
+        return controlPoints.getView(last);
+    }
+    
+    /**
+     * Returns the number of defined control points.
+     * @return the number of control points of the graphic
+     */
+    public int getControlPointCount() {
+        return controlPoints.size();
+    }
+    
+    /**
+     * Returns the greatest index of the defined control points.
+     * @return the index of the last control point, or -1 if the graphic has 
+     * no control points
+     */
+    public int getLastControlPointIndex() {
         return controlPoints.last();
     }
     
     /**
-     * Defines (or redefines) a control point.
+     * Gets the X coordinate of a control point. Unlike 
+     * <code>getControlPoint</code>, this method never creates objects.
+     * @param index the index of the control point
+     * @return the X coordinate of the control point
+     * @throws NoSuchElementException if the control point is not defined
+     */
+    public int getControlPointX(int index) {
+        checkControlPoint(index);
+        return controlPoints.x[index];
+    }
+    
+    /**
+     * Gets the Y coordinate of a control point. Unlike 
+     * <code>getControlPoint</code>, this method never creates objects.
+     * @param index the index of the control point
+     * @return the Y coordinate of the control point
+     * @throws NoSuchElementException if the control point is not defined
+     */
+    public int getControlPointY(int index) {
+        checkControlPoint(index);
+        return controlPoints.y[index];
+    }
+    
+    /**
+     * Copies all defined control points, in increasing index order, into arrays 
+     * supplied by the caller. Any of the arrays can be null if that data is not
+     * needed. Arrays which are not null must have room for 
+     * <code>getControlPointCount()</code> elements.
+     * @param indices array to store the index of each control point, or null
+     * @param xs array to store the X coordinate of each control point, or null
+     * @param ys array to store the Y coordinate of each control point, or null
+     * @return the number of control points copied
+     */
+    public int getControlPoints(int[] indices, int[] xs, int[] ys) {
+        int i = 0;
+        for (int index = controlPoints.defined.nextSetBit(0); index >= 0; 
+                index = controlPoints.defined.nextSetBit(index + 1)) {
+            if (indices != null)
+                indices[i] = index;
+            if (xs != null)
+                xs[i] = controlPoints.x[index];
+            if (ys != null)
+                ys[i] = controlPoints.y[index];
+            i++;
+        }
+        return i;
+    }
+    
+    /**
+     * Defines (or redefines) a control point. The coordinates of cp are copied
+     * into the graphic.
      * @param cp the <code>ControlPoint</code> object to be set.
-     * @throws IllegalArgumentException if cp has a null value
+     * @throws IllegalArgumentException if cp has a null value or its index is
+     * negative or greater than 65535
      */
     public void setControlPoint(ControlPoint cp) throws IllegalArgumentException {
         if (cp == null) {
             throw new IllegalArgumentException("Cannot set a null ControlPoint");
         }
         
-        if (controlPoints.contains(cp)) {
-            ControlPoint oldCp = controlPoints.ceiling(cp);
-            oldCp.setX (cp.getX());
-            oldCp.setY (cp.getY());
-        } else {
-            controlPoints.add(cp);
-        }
+        controlPoints.set(cp.getIndex(), cp.getX(), cp.getY());
     }
     
     /**
@@ -214,9 +282,11 @@ public abstract class AbstractGraphic {
      * @param index the index of the control point to be set
      * @param x the new x coordinate for the control point
      * @param y the new y coordinate for the control point
+     * @throws IllegalArgumentException if the index is negative or greater 
+     * than 65535
      */
     public void setControlPoint(int index, int x, int y) {
-        setControlPoint (new ControlPoint(index, x, y));
+        controlPoints.set(index, x, y);
     }    
     
     /**
@@ -225,7 +295,13 @@ public abstract class AbstractGraphic {
      * @return true if the controlpoint was removed
      */    
     public boolean removeControlPoint (int index) {
-        return controlPoints.remove (new ControlPoint(index));
+        return controlPoints.remove(index);
+    }
+    
+    private void checkControlPoint(int index) {
+        if (!controlPoints.contains(index)) {
+            throw new NoSuchElementException("Control point not defined: " + index);
+        }
     }
        
 }
@@ -24,10 +24,21 @@
 
 package fenixlib;
 
+import fenixlib.util.ParallelTasks;
+
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 
 /**
@@ -44,6 +55,12 @@ import java.util.List;
  *    An animated graphic can have more than one sequence.
  * </ul>
  * 
+ * Frames can be <i>lazy</i> (see <code>FbmReader.setLazyFrames</code>). Lazy
+ * frames are not decoded until they are accessed for the first time and, if
+ * a frame cache size is set, only a limited number of them is kept decoded.
+ * Frames can also be stored as differences with a previous frame (see 
+ * <code>encodeDeltaFrames</code>).
+ * 
  * Note that there is no specific class to represent static graphics. This
  * is not a problem since an <code>AnimatedGraphic</code> can contain a
  * unique frame, keyframe and sequence.
@@ -62,6 +79,9 @@ public class AnimatedGraphic extends AbstractGraphic{
     // An array list containing sequences
     private List<Sequence> sequences = new ArrayList<Sequence>();
     
+    // Keyframes of all sequences, stored as parallel arrays of primitives
+    private KeyFrameStore keyFrames = new KeyFrameStore();
+    
     // An array list containing all frame buffered images 
     // NOTE: Each keyframe has a buffered image associated but since different
     // KeyFrames can point to the same buffered image, we store here the references
@@ -69,6 +89,27 @@ public class AnimatedGraphic extends AbstractGraphic{
     // data.
     private List<BufferedImage> frames = new ArrayList<BufferedImage>();
     
+    // Lazy frames have a null entry in frames until they are decoded by the
+    // frameLoader. If frameCache is not null, decoded lazy frames are stored 
+    // there instead, so only a bounded number of them is kept in memory.
+    private FrameLoader frameLoader = null;
+    private BitSet lazyFrames = new BitSet();
+    private Map<Integer, BufferedImage> frameCache = null;
+    
+    // Delta frames also have a null entry in frames. They are rebuilt from 
+    // their base frame when accessed and kept like lazy frames: in frameCache
+    // if there is one, or in frames otherwise
+    private Map<Integer, DeltaFrame> deltaFrames = new HashMap<Integer, DeltaFrame>();
+    
+    // True if pixel arrays may be shared with palette variants of the graphic
+    private boolean sharesPixels = false;
+    
+    // Cached bounds of the opaque pixels of each frame (null if not computed)
+    private Rectangle[] opaqueBounds = new Rectangle[0];
+    
+    // Cached collision masks of each frame (null if not built yet)
+    private CollisionMask[] collisionMasks = new CollisionMask[0];
+    
     private AnimatedGraphic (int width, int height, DepthMode depth) {
         this.width = width;
         this.height = height;
@@ -131,6 +172,7 @@ public class AnimatedGraphic extends AbstractGraphic{
     public void addSequence(String name) {
         Sequence seq = new Sequence(name);
         sequences.add(seq);
+        keyFrames.addSequence();
     }    
     
     /**
@@ -139,6 +181,7 @@ public class AnimatedGraphic extends AbstractGraphic{
     public void addSequence() {
         Sequence seq = new Sequence();
         sequences.add(seq);
+        keyFrames.addSequence();
     }      
 
     /**
@@ -159,12 +202,11 @@ public class AnimatedGraphic extends AbstractGraphic{
      */
     public SequenceInfo getSequenceInfo(int seqIndex) {
         Sequence sequence = sequences.get(seqIndex); // Get the sequence
-        int nextseqIndex = sequences.indexOf(sequence.getNextSequence());
         
         return new SequenceInfo(
                 sequence.getName(),
-                sequence.keyFrames.size(),
-                nextseqIndex
+                keyFrames.seqCount[seqIndex],
+                sequence.getNextSequence()
                 );
     }
     
@@ -177,20 +219,13 @@ public class AnimatedGraphic extends AbstractGraphic{
      * @see SequenceInfo
      */
     public SequenceInfo[] getSequencesInfo() {
-        // An ArrayList to store all Info from sequences
-        ArrayList<SequenceInfo> seqsInfo = new ArrayList<SequenceInfo>();
+        SequenceInfo[] seqsInfo = new SequenceInfo[sequences.size()];
         
-        int nextseqIndex;
-        for (Sequence sequence : sequences) {
-            nextseqIndex = sequences.indexOf(sequence.getNextSequence());
-            seqsInfo.add(new SequenceInfo(
-                    sequence.getName(),
-                    sequence.keyFrames.size(),
-                    nextseqIndex                    
-                    ));
+        for (int i = 0; i < seqsInfo.length; i++) {
+            seqsInfo[i] = getSequenceInfo(i);
         }
         
-        return seqsInfo.toArray(new SequenceInfo[0]);
+        return seqsInfo;
     }
     
     /**
@@ -211,15 +246,13 @@ public class AnimatedGraphic extends AbstractGraphic{
      */
     public void setSequenceParams(int seqIndex, int nextSequence) {
         Sequence seq = sequences.get(seqIndex);
-        Sequence next;
         
-        if (nextSequence != -1) {
-            next = sequences.get(nextSequence);
-        } else {
-            next = null;
+        if (nextSequence < -1 || nextSequence >= sequences.size()) {
+            throw new IndexOutOfBoundsException("Invalid sequence index: " 
+                    + nextSequence);
         }
         
-        seq.setNextSequence(next);        
+        seq.setNextSequence(nextSequence);        
     }
     
     /**
@@ -235,55 +268,139 @@ public class AnimatedGraphic extends AbstractGraphic{
     }
     
     public void addKeyFrame(int seqIndex, int frameIndex, int flags,  int angle, int pause) {
-        Sequence sequence = sequences.get(seqIndex); // get the sequence
-        
-        // add the keyframe to the sequence
-        KeyFrame kf = new KeyFrame(flags, angle, pause); 
-        kf.frame = frames.get(frameIndex);
-        
-        sequence.keyFrames.add(kf);
+        checkFrameIndex(frameIndex);
+        keyFrames.add(seqIndex, frameIndex, flags, angle, pause);
     }    
     
     public KeyFrameInfo getKeyFrameInfo(int seqIndex, int kfIndex) {
-        Sequence sequence = sequences.get(seqIndex); // Get the sequence
-        KeyFrame kf = sequence.keyFrames.get(kfIndex); // Get the keyframe
-        
-        // Get the index of the frame pointed by this keyframe
-        int frameIndex = frames.indexOf(kf.getFrame()); 
+        int i = keyFrames.indexOf(seqIndex, kfIndex);
         
         return new KeyFrameInfo(
-                frameIndex,
-                kf.getFlags(),
-                kf.getAngle(),
-                kf.getPause()
+                keyFrames.frameIndex[i],
+                keyFrames.flags[i],
+                keyFrames.angle[i],
+                keyFrames.pause[i]
                 );
     }    
     
     public KeyFrameInfo[] getKeyFramesInfo(int seqIndex) {
-        Sequence sequence = sequences.get(seqIndex); // Get the sequence
+        keyFrames.checkSequence(seqIndex);
         
-        ArrayList<KeyFrameInfo> keyFramesInfo = new ArrayList<KeyFrameInfo>();
-        int frameIndex;
-        for (KeyFrame kf : sequence.keyFrames) { // Get info for each KF in the sequence
-            frameIndex = frames.indexOf(kf.getFrame());
-            keyFramesInfo.add( new KeyFrameInfo(
-                            frameIndex,
-                            kf.getFlags(),
-                            kf.getAngle(),
-                            kf.getPause()
-                            ));
+        int first = keyFrames.seqFirst[seqIndex];
+        KeyFrameInfo[] keyFramesInfo = new KeyFrameInfo[keyFrames.seqCount[seqIndex]];
+        for (int i = 0; i < keyFramesInfo.length; i++) { // Get info for each KF in the sequence
+            keyFramesInfo[i] = new KeyFrameInfo(
+                            keyFrames.frameIndex[first + i],
+                            keyFrames.flags[first + i],
+                            keyFrames.angle[first + i],
+                            keyFrames.pause[first + i]
+                            );
         }
         
-        return keyFramesInfo.toArray(new KeyFrameInfo[0]);
+        return keyFramesInfo;
     }
     
     public void setKeyFrameParams(int seqIndex, int kfIndex, int frameIndex,  
             int flags, int angle, int pause) {
-            sequences.get(seqIndex).keyFrames.get(kfIndex).frame = 
-                    frames.get(frameIndex);
-            sequences.get(seqIndex).keyFrames.get(kfIndex).setFlags(flags);
-            sequences.get(seqIndex).keyFrames.get(kfIndex).setAngle(angle);
-            sequences.get(seqIndex).keyFrames.get(kfIndex).setPause(pause);
+            int i = keyFrames.indexOf(seqIndex, kfIndex);
+            checkFrameIndex(frameIndex);
+            keyFrames.frameIndex[i] = frameIndex;
+            keyFrames.flags[i] = flags;
+            keyFrames.angle[i] = angle;
+            keyFrames.pause[i] = pause;
+    }
+    
+    /**
+     * Returns the number of keyframes of a sequence. This method, as the
+     * rest of <code>getKeyFrame<em>Xxx</em></code> methods, does not create
+     * any object, so it can be called every tick of an animation.
+     * @param seqIndex the index of the sequence
+     * @return the number of keyframes of the sequence
+     */
+    public int getKeyFrameCount(int seqIndex) {
+        keyFrames.checkSequence(seqIndex);
+        return keyFrames.seqCount[seqIndex];
+    }
+    
+    /**
+     * Returns the index of the frame shown by a keyframe.
+     * @param seqIndex the index of the sequence
+     * @param kfIndex the index of the keyframe in the sequence
+     * @return the index of the frame of the keyframe
+     */
+    public int getKeyFrameFrameIndex(int seqIndex, int kfIndex) {
+        return keyFrames.frameIndex[keyFrames.indexOf(seqIndex, kfIndex)];
+    }
+    
+    /**
+     * Returns the flags of a keyframe.
+     * @param seqIndex the index of the sequence
+     * @param kfIndex the index of the keyframe in the sequence
+     * @return the flags of the keyframe
+     */
+    public int getKeyFrameFlags(int seqIndex, int kfIndex) {
+        return keyFrames.flags[keyFrames.indexOf(seqIndex, kfIndex)];
+    }
+    
+    /**
+     * Returns the angle of a keyframe.
+     * @param seqIndex the index of the sequence
+     * @param kfIndex the index of the keyframe in the sequence
+     * @return the angle of the keyframe
+     */
+    public int getKeyFrameAngle(int seqIndex, int kfIndex) {
+        return keyFrames.angle[keyFrames.indexOf(seqIndex, kfIndex)];
+    }
+    
+    /**
+     * Returns the pause of a keyframe.
+     * @param seqIndex the index of the sequence
+     * @param kfIndex the index of the keyframe in the sequence
+     * @return the pause of the keyframe
+     */
+    public int getKeyFramePause(int seqIndex, int kfIndex) {
+        return keyFrames.pause[keyFrames.indexOf(seqIndex, kfIndex)];
+    }
+    
+    /**
+     * Copies the keyframes of a sequence into arrays supplied by the caller.
+     * Any of the arrays can be null if that data is not needed. Arrays which
+     * are not null must have room for <code>getKeyFrameCount(seqIndex)</code>
+     * elements starting at <code>offset</code>.
+     * @param seqIndex the index of the sequence
+     * @param frameIndices array to store the frame index of each keyframe, or null
+     * @param flags array to store the flags of each keyframe, or null
+     * @param angles array to store the angle of each keyframe, or null
+     * @param pauses array to store the pause of each keyframe, or null
+     * @param offset position of the arrays where the first keyframe is stored
+     * @return the number of keyframes copied
+     */
+    public int getKeyFrames(int seqIndex, int[] frameIndices, int[] flags,
+            int[] angles, int[] pauses, int offset) {
+        keyFrames.checkSequence(seqIndex);
+        
+        int first = keyFrames.seqFirst[seqIndex];
+        int count = keyFrames.seqCount[seqIndex];
+        if (frameIndices != null)
+            System.arraycopy(keyFrames.frameIndex, first, frameIndices, offset, count);
+        if (flags != null)
+            System.arraycopy(keyFrames.flags, first, flags, offset, count);
+        if (angles != null)
+            System.arraycopy(keyFrames.angle, first, angles, offset, count);
+        if (pauses != null)
+            System.arraycopy(keyFrames.pause, first, pauses, offset, count);
+        
+        return count;
+    }
+    
+    /**
+     * Returns the index of the sequence that follows a sequence.
+     * @param seqIndex the index of the sequence
+     * @return the index of the following sequence, or -1 if the animation
+     * stops after the sequence
+     */
+    public int getNextSequence(int seqIndex) {
+        return sequences.get(seqIndex).getNextSequence();
     }
 
     /**
@@ -371,6 +488,421 @@ public class AnimatedGraphic extends AbstractGraphic{
         frames.add(img);
     }
     
+    /**
+     * Removes frames whose pixels are identical to those of a previous frame.
+     * Keyframes showing a removed frame are changed to show the frame that
+     * remains, and the rest of keyframes are updated to the new frame indices.
+     * 
+     * Frames of 8bpp graphics are only taken as duplicates if their color 
+     * models have the same colors too, since frames may have been added with
+     * different palettes.
+     * 
+     * Lazy frames must be decoded to be compared, but they are compared one
+     * at a time. If any frame is removed, all frames are kept decoded in 
+     * memory from then on.
+     * @return the number of frames removed
+     * @throws IllegalStateException if a lazy frame couldn't be decoded
+     */
+    public int removeDuplicateFrames() {
+        int[] first = FrameBuffers.findDuplicates(this, true);
+        
+        // New index of each frame
+        int[] newIndex = new int[first.length];
+        int nUnique = 0;
+        for (int f = 0; f < first.length; f++) {
+            newIndex[f] = (first[f] == f ? nUnique++ : newIndex[first[f]]);
+        }
+        
+        int removed = first.length - nUnique;
+        if (removed == 0) {
+            return 0;
+        }
+        
+        List<BufferedImage> uniqueFrames = new ArrayList<BufferedImage>(nUnique);
+        for (int f = 0; f < first.length; f++) {
+            if (first[f] == f) {
+                uniqueFrames.add(getFrame(f));
+            }
+        }
+        frames = uniqueFrames;
+        discardFrameLoader();
+        deltaFrames.clear();
+        opaqueBounds = new Rectangle[0];
+        collisionMasks = new CollisionMask[0];
+        if (frameCache != null) {
+            frameCache.clear();
+        }
+        for (int i = 0; i < keyFrames.size; i++) {
+            keyFrames.frameIndex[i] = newIndex[keyFrames.frameIndex[i]];
+        }
+        
+        return removed;
+    }
+    
+    /**
+     * Computes the bounds of the opaque pixels of all frames, splitting the 
+     * frames across the threads of an executor. Pixels whose value is 0 (color
+     * index 0 in 8bpp graphics and 0x0000 in 16bpp graphics) are transparent.
+     * 
+     * Bounds are cached and returned by <code>getOpaqueBounds</code>. If the
+     * pixels of the frames are modified, this method must be called again to
+     * update them.
+     * @param executor the executor to use, or null to do all the work in the
+     * calling thread
+     * @throws IllegalStateException if a lazy frame couldn't be decoded
+     */
+    public void computeOpaqueBounds(ExecutorService executor) {
+        // Frames are decoded here since decoding is not thread safe
+        final BufferedImage[] allFrames = getFrames();
+        final Rectangle[] bounds = new Rectangle[allFrames.length];
+        
+        ParallelTasks.forRange(executor, 0, allFrames.length, 1, 
+                new ParallelTasks.RangeTask() {
+            public void run(int from, int to) {
+                for (int f = from; f < to; f++) {
+                    bounds[f] = FrameBuffers.getOpaqueBounds(
+                            allFrames[f].getRaster());
+                }
+            }
+        });
+        
+        opaqueBounds = bounds;
+    }
+    
+    /**
+     * Returns the smallest rectangle containing all opaque pixels of a frame.
+     * Bounds are computed the first time they are requested and then cached 
+     * (see <code>computeOpaqueBounds</code>).
+     * @param frameIndex the index of the frame
+     * @return the bounds of the opaque pixels of the frame, or an empty
+     * rectangle if the frame is completely transparent
+     * @throws IllegalStateException if a lazy frame couldn't be decoded
+     */
+    public Rectangle getOpaqueBounds(int frameIndex) {
+        checkFrameIndex(frameIndex);
+        
+        if (frameIndex >= opaqueBounds.length) {
+            Rectangle[] bounds = new Rectangle[frames.size()];
+            System.arraycopy(opaqueBounds, 0, bounds, 0, opaqueBounds.length);
+            opaqueBounds = bounds;
+        }
+        if (opaqueBounds[frameIndex] == null) {
+            opaqueBounds[frameIndex] = FrameBuffers.getOpaqueBounds(
+                    getFrame(frameIndex).getRaster());
+        }
+        
+        return new Rectangle(opaqueBounds[frameIndex]);
+    }
+    
+    /**
+     * Returns the collision mask of a frame, which tells the opaque pixels of
+     * the frame. Masks are built the first time they are requested and then
+     * cached, so they are not updated if the pixels of the frame are modified.
+     * @param frameIndex the index of the frame
+     * @return the collision mask of the frame
+     * @throws IllegalStateException if a lazy frame couldn't be decoded
+     * @see CollisionMask
+     */
+    public CollisionMask getCollisionMask(int frameIndex) {
+        checkFrameIndex(frameIndex);
+        
+        if (frameIndex >= collisionMasks.length) {
+            CollisionMask[] masks = new CollisionMask[frames.size()];
+            System.arraycopy(collisionMasks, 0, masks, 0, collisionMasks.length);
+            collisionMasks = masks;
+        }
+        if (collisionMasks[frameIndex] == null) {
+            collisionMasks[frameIndex] = CollisionMask.create(
+                    getFrame(frameIndex).getRaster());
+        }
+        
+        return collisionMasks[frameIndex];
+    }
+    
+    /**
+     * Crops all frames to the smallest rectangle containing the opaque pixels
+     * of all of them, and moves the control points so they remain at the same
+     * pixels. If control point 0 (the center of the graphic) is not set, it 
+     * is set to the center of the graphic before trimming.
+     * 
+     * All frames are kept decoded in memory as full frames after trimming.
+     * @return the rectangle the graphic has been cropped to, relative to the
+     * graphic before trimming
+     * @throws IllegalStateException if a lazy frame couldn't be decoded
+     */
+    public Rectangle trim() {
+        Rectangle trimmed = null;
+        for (int f = 0; f < frames.size(); f++) {
+            Rectangle bounds = getOpaqueBounds(f);
+            if (!bounds.isEmpty()) {
+                trimmed = (trimmed == null ? bounds : trimmed.union(bounds));
+            }
+        }
+        
+        if (trimmed == null || (trimmed.width == width && trimmed.height == height)) {
+            return new Rectangle(0, 0, width, height);  // Nothing to trim
+        }
+        
+        BufferedImage[] allFrames = getFrames();
+        for (int f = 0; f < allFrames.length; f++) {
+            frames.set(f, FrameBuffers.crop(allFrames[f], trimmed));
+            if (opaqueBounds[f].isEmpty()) {
+                opaqueBounds[f] = new Rectangle();
+            } else {
+                opaqueBounds[f].translate(-trimmed.x, -trimmed.y);
+            }
+        }
+        discardFrameLoader();
+        deltaFrames.clear();
+        if (frameCache != null) {
+            frameCache.clear();
+        }
+        
+        if (!hasControlPoint(0)) {
+            setControlPoint(0, width / 2, height / 2);
+        }
+        for (int i = controlPoints.defined.nextSetBit(0); i >= 0; 
+                i = controlPoints.defined.nextSetBit(i + 1)) {
+            controlPoints.x[i] -= trimmed.x;
+            controlPoints.y[i] -= trimmed.y;
+        }
+        
+        width = trimmed.width;
+        height = trimmed.height;
+        collisionMasks = new CollisionMask[0];
+        return trimmed;
+    }
+    
+    /**
+     * Changes the palette of an 8bpp graphic and translates the pixels of all
+     * frames, so each pixel gets the color of the new palette nearest to its
+     * old color. Transparent pixels (index 0) are not changed.
+     * 
+     * Pixel arrays are rewritten in place through a table of 256 indices,
+     * splitting the arrays across the threads of an executor, and frames get
+     * the color model of the new palette. Frames which are subimages of a
+     * bigger image get their own copy of the pixels, and so do all frames of
+     * a graphic which shares its pixels with palette variants (see 
+     * <code>createPaletteVariant</code>), so the variants are not changed.
+     * Lazy frames are decoded and kept in memory from then on.
+     * @param newPalette the new palette of the graphic
+     * @param exact true if all the colors of the current palette must be in
+     * the new palette, so pixels keep exactly their colors
+     * @param executor the executor to use, or null to do all the work in the
+     * calling thread
+     * @throws IllegalStateException if the graphic is not an 8bpp graphic or
+     * a lazy frame couldn't be decoded
+     * @throws IllegalArgumentException if <code>exact</code> is true and a 
+     * color of the current palette is not in the new palette
+     * @see ColorMatcher#createRemapTable
+     */
+    public void remapPalette(Palette newPalette, boolean exact, 
+            ExecutorService executor) {
+        if (depth != DepthMode.DEPTH_8BPP) {
+            throw new IllegalStateException("Only 8bpp graphics have a palette");
+        }
+        final byte[] table = newPalette.getColorMatcher().createRemapTable(
+                palette, exact);
+        IndexColorModel cm = newPalette.getColorModel();
+        
+        // Frames are decoded here since decoding is not thread safe. Each 
+        // array is translated once, even if it is shared by several frames.
+        // owned maps each array of the graphic to the array to translate.
+        Map<byte[], byte[]> owned = new IdentityHashMap<byte[], byte[]>();
+        for (int f = 0; f < frames.size(); f++) {
+            DeltaFrame delta = deltaFrames.get(f);
+            if (delta != null) {
+                byte[] pixels = ownPixels(delta.pixels8, owned);
+                if (pixels != delta.pixels8) {
+                    deltaFrames.put(f, new DeltaFrame(delta.base, delta.rects,
+                            pixels, null));
+                }
+                frames.set(f, null);    // Rebuilt with the new pixels
+                continue;
+            }
+            
+            WritableRaster raster = getFrame(f).getRaster();
+            byte[] data = (byte[])FrameBuffers.getData(raster);
+            if (data.length == width * height && FrameBuffers.isContiguous(raster)
+                    && FrameBuffers.getScanlineOffset(raster, 0) == 0) {
+                byte[] pixels = ownPixels(data, owned);
+                frames.set(f, pixels == data 
+                        ? new BufferedImage(cm, raster, false, null)
+                        : FrameBuffers.create8(width, height, pixels, cm));
+            } else {
+                data = (byte[])raster.getDataElements(raster.getMinX(), 
+                        raster.getMinY(), width, height, null);
+                owned.put(data, data);
+                frames.set(f, FrameBuffers.create8(width, height, data, cm));
+            }
+        }
+        sharesPixels = false;
+        final List<byte[]> arrays = new ArrayList<byte[]>(owned.values());
+        discardFrameLoader();
+        if (frameCache != null) {
+            frameCache.clear();
+        }
+        
+        ParallelTasks.forRange(executor, 0, arrays.size(), 1, 
+                new ParallelTasks.RangeTask() {
+            public void run(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    byte[] data = arrays.get(i);
+                    FrameBuffers.remap(data, 0, data.length, table);
+                }
+            }
+        });
+        
+        palette = newPalette;
+    }
+    
+    /**
+     * Returns the array to translate for a pixel array of the graphic: the
+     * array itself, or a copy if the graphic shares its pixels with palette
+     * variants.
+     */
+    private byte[] ownPixels(byte[] data, Map<byte[], byte[]> owned) {
+        byte[] pixels = owned.get(data);
+        if (pixels == null) {
+            pixels = sharesPixels ? data.clone() : data;
+            owned.put(data, pixels);
+        }
+        return pixels;
+    }
+    
+    /**
+     * Creates a copy of an 8bpp graphic which uses a different palette but
+     * shares the pixels of this graphic: frames of the copy wrap the same
+     * rasters with the color model of the other palette, and delta frames are
+     * shared too. Sequences, keyframes, control points, name, id and flags 
+     * are copied. Lazy frames are decoded.
+     * 
+     * Since pixels are shared, changes made to the pixels of a frame are seen
+     * by all the variants. <code>remapPalette</code> is the exception: the
+     * graphic it is called on gets a copy of its pixels first.
+     * @param variantPalette the palette of the copy
+     * @return a new <code>AnimatedGraphic</code> sharing the pixels of this one
+     * @throws IllegalStateException if the graphic is not an 8bpp graphic or
+     * a lazy frame couldn't be decoded
+     */
+    public AnimatedGraphic createPaletteVariant(Palette variantPalette) {
+        if (depth != DepthMode.DEPTH_8BPP) {
+            throw new IllegalStateException("Only 8bpp graphics have a palette");
+        }
+        AnimatedGraphic variant = create8(width, height, variantPalette);
+        variant.sharesPixels = true;
+        sharesPixels = true;
+        variant.setName(name);
+        variant.setId(id);
+        variant.setFlags(flags);
+        
+        for (int f = 0; f < frames.size(); f++) {
+            DeltaFrame delta = deltaFrames.get(f);
+            if (delta != null) {
+                variant.addDeltaFrame(delta);
+            } else {
+                variant.frames.add(getFrame(f, variantPalette.getColorModel()));
+            }
+        }
+        
+        for (int s = 0; s < sequences.size(); s++) {
+            variant.addSequence(sequences.get(s).getName());
+        }
+        for (int s = 0; s < sequences.size(); s++) {
+            variant.setSequenceParams(s, sequences.get(s).getNextSequence());
+            int first = keyFrames.seqFirst[s];
+            for (int i = first; i < first + keyFrames.seqCount[s]; i++) {
+                variant.addKeyFrame(s, keyFrames.frameIndex[i], keyFrames.flags[i],
+                        keyFrames.angle[i], keyFrames.pause[i]);
+            }
+        }
+        
+        for (int i = controlPoints.defined.nextSetBit(0); i >= 0; 
+                i = controlPoints.defined.nextSetBit(i + 1)) {
+            variant.setControlPoint(i, controlPoints.x[i], controlPoints.y[i]);
+        }
+        
+        return variant;
+    }
+    
+    /**
+     * Stores frames as the differences with a previous frame when they differ
+     * only in a small part. The first frame, and every frame that differs in
+     * more than half of its pixels from the last full frame, are kept full and
+     * used as base for the following ones. Delta frames are rebuilt with the 
+     * color model of their base frame, so 8bpp frames whose colors are not
+     * those of the last full frame are kept full too.
+     * 
+     * Delta frames are rebuilt the first time they are accessed and then kept
+     * in memory like lazy frames, so a frame cache size should be set (see 
+     * <code>setFrameCacheSize</code>) to keep memory use bounded. They are
+     * meant for graphics with many frames which are not all accessed at once.
+     * Lazy frames must be decoded to be compared, and all full frames are kept
+     * in memory from then on.
+     * @return the number of frames stored as delta frames
+     * @throws IllegalStateException if a lazy frame couldn't be decoded
+     */
+    public int encodeDeltaFrames() {
+        BufferedImage[] allFrames = getFrames();
+        int maxPixels = width * height / 2;
+        
+        discardFrameLoader();
+        deltaFrames.clear();
+        if (frameCache != null) {
+            frameCache.clear();
+        }
+        
+        int base = 0;
+        for (int f = 0; f < allFrames.length; f++) {
+            DeltaFrame delta = null;
+            if (f > 0 && FrameBuffers.sameColors(allFrames[base], allFrames[f])) {
+                delta = DeltaFrame.encode(base, allFrames[base].getRaster(), 
+                        allFrames[f].getRaster(), maxPixels);
+            }
+            
+            if (delta != null) {
+                deltaFrames.put(f, delta);
+                frames.set(f, null);
+            } else {
+                frames.set(f, allFrames[f]);
+                base = f;
+            }
+        }
+        
+        return deltaFrames.size();
+    }
+    
+    /**
+     * Tells if a frame is stored as the differences with another frame.
+     * @param frameIndex the index of the frame
+     * @return true if the frame is a delta frame
+     * @see encodeDeltaFrames
+     */
+    public boolean isDeltaFrame(int frameIndex) {
+        checkFrameIndex(frameIndex);
+        return deltaFrames.containsKey(frameIndex);
+    }
+    
+    /**
+     * Returns the delta frame stored for a frame, or null if it is not a delta
+     * frame.
+     */
+    DeltaFrame getDeltaFrame(int frameIndex) {
+        return deltaFrames.get(frameIndex);
+    }
+    
+    /**
+     * Adds a frame stored as the differences with a previous full frame.
+     */
+    void addDeltaFrame(DeltaFrame delta) {
+        if (delta.base < 0 || delta.base >= frames.size() 
+                || deltaFrames.containsKey(delta.base)) {
+            throw new IllegalArgumentException("Invalid base frame: " + delta.base);
+        }
+        deltaFrames.put(frames.size(), delta);
+        frames.add(null);
+    }
+    
     /**
      * Gets an array of <code>BufferedImage</code> objects representing all the frames
      * of the image. See <code>addFrame</code> for a more detailed description about
@@ -380,18 +912,177 @@ public class AnimatedGraphic extends AbstractGraphic{
      * @see addFrame
      */
     public BufferedImage[] getFrames() { 
-        return frames.toArray(new BufferedImage[0]);
+        BufferedImage[] bis = new BufferedImage[frames.size()];
+        for (int i = 0; i < bis.length; i++)
+            bis[i] = getFrame(i);
+        return bis;
     }
     
     /**
      * Gets the frame whose index is <code>frameIndex</code>. See <code>addFrame</code> 
      * for a more detailed description about frames.
+     * 
+     * Lazy frames are decoded the first time they are accessed. Note that if a 
+     * frame cache size has been set, a lazy frame may be decoded again (giving
+     * a different <code>BufferedImage</code> object) after it is discarded from
+     * the cache. Delta frames are rebuilt in the same way, so changes made to
+     * their images are not kept.
+     * 
+     * This method is synchronized on the graphic, including the decoding of
+     * lazy and delta frames, so frames may be read from several threads at 
+     * once. Other methods of the graphic are not thread safe and must not run
+     * while frames are read.
      * @param frameIndex the index of the desired frame
      * @return a <code>BufferedImage</code> object that represents the frame
+     * @throws IllegalStateException if a lazy frame couldn't be decoded
      * @see addFrame
      */
-    public BufferedImage getFrame(int frameIndex) {
-        return frames.get(frameIndex);
+    public synchronized BufferedImage getFrame(int frameIndex) {
+        BufferedImage frame = frames.get(frameIndex);
+        if (frame == null) {
+            frame = loadFrame(frameIndex);
+        }
+        return frame;
     }      
+    
+    /**
+     * Gets a frame of an 8bpp graphic with other colors. The returned image
+     * shares the raster of the frame, so no pixels are copied, but uses the
+     * given color model. This is meant for palette swaps and palette cycling
+     * (see <code>PaletteCycle</code>).
+     * @param frameIndex the index of the frame
+     * @param cm a color model of 256 colors, usually obtained from 
+     * <code>Palette.getColorModel</code>
+     * @return a TYPE_BYTE_INDEXED <code>BufferedImage</code> with the pixels
+     * of the frame and the colors of <code>cm</code>
+     * @throws IllegalStateException if the graphic is not an 8bpp graphic or
+     * a lazy frame couldn't be decoded
+     */
+    public BufferedImage getFrame(int frameIndex, IndexColorModel cm) {
+        if (depth != DepthMode.DEPTH_8BPP) {
+            throw new IllegalStateException("Only 8bpp graphics have a palette");
+        }
+        BufferedImage frame = getFrame(frameIndex);
+        if (frame.getColorModel() == cm) {
+            return frame;
+        }
+        return new BufferedImage(cm, frame.getRaster(), false, null);
+    }
+    
+    /**
+     * Sets the maximum number of decoded lazy frames to be kept in memory. When
+     * the limit is reached, the least recently accessed frame is discarded and
+     * it will be decoded again if needed. Delta frames are cached in the same
+     * way. Full frames are always kept in memory.
+     * @param cacheSize the maximum number of decoded lazy frames, or 0 to keep all
+     * of them once they are decoded (the default)
+     */
+    public synchronized void setFrameCacheSize(final int cacheSize) {
+        // Discard currently decoded lazy and delta frames
+        for (int i = lazyFrames.nextSetBit(0); i >= 0; i = lazyFrames.nextSetBit(i + 1)) {
+            frames.set(i, null);
+        }
+        for (int i : deltaFrames.keySet()) {
+            frames.set(i, null);
+        }
+        
+        if (cacheSize <= 0) {
+            frameCache = null;
+        } else {
+            frameCache = new LinkedHashMap<Integer, BufferedImage>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(
+                        Map.Entry<Integer, BufferedImage> eldest) {
+                    return size() > cacheSize;
+                }
+            };
+        }
+    }
+    
+    /**
+     * Adds frames that will be decoded when accessed for the first time.
+     * @param nFrames the number of frames to add
+     * @param loader the <code>FrameLoader</code> used to decode the frames. All 
+     * lazy frames of a graphic must use the same loader.
+     */
+    void addLazyFrames(int nFrames, FrameLoader loader) {
+        if (frameLoader != null && frameLoader != loader) {
+            throw new IllegalArgumentException("A graphic can only use one FrameLoader");
+        }
+        frameLoader = loader;
+        
+        for (int i = 0; i < nFrames; i++) {
+            lazyFrames.set(frames.size());
+            frames.add(null);
+        }
+    }
+    
+    /**
+     * Closes the file kept open to decode lazy frames (see 
+     * <code>FbmReader.setLazyFrames</code>). Frames which are accessed later
+     * are still decoded, reopening the file if needed, so this should be 
+     * called whenever the graphic is not going to be used for a while. It does
+     * nothing if the graphic has no lazy frames.
+     * @throws java.io.IOException if the file couldn't be closed
+     */
+    public synchronized void releaseFrameLoader() throws IOException {
+        if (frameLoader != null) {
+            frameLoader.close();
+        }
+    }
+    
+    /**
+     * Turns all lazy frames into full frames. Callers must have decoded every 
+     * frame first.
+     */
+    private void discardFrameLoader() {
+        if (frameLoader != null) {
+            try {
+                frameLoader.close();
+            } catch (IOException e) {
+                // The loader is not used anymore
+            }
+        }
+        frameLoader = null;
+        lazyFrames.clear();
+    }
+    
+    /**
+     * Decodes a lazy or delta frame, or takes it from the cache. Only called
+     * from <code>getFrame</code>, which holds the lock of the graphic.
+     */
+    private BufferedImage loadFrame(int frameIndex) {
+        BufferedImage frame;
+        
+        if (frameCache != null) {
+            frame = frameCache.get(frameIndex);
+            if (frame != null) {
+                return frame;
+            }
+        }
+        
+        DeltaFrame delta = deltaFrames.get(frameIndex);
+        if (delta != null) {
+            frame = delta.decode(getFrame(delta.base));
+        } else {
+            try {
+                frame = frameLoader.loadFrame(frameIndex);
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot decode frame " + frameIndex, e);
+            }
+        }
+        
+        if (frameCache != null) {
+            frameCache.put(frameIndex, frame);
+        } else {
+            frames.set(frameIndex, frame);
+        }
+        return frame;
+    }
+    
+    private void checkFrameIndex(int frameIndex) {
+        if (frameIndex < 0 || frameIndex >= frames.size()) {
+            throw new IndexOutOfBoundsException("Invalid frame index: " + frameIndex);
+        }
+    }
  
 }
@@ -0,0 +1,376 @@
+/* fenixlib - Library to support Fenix Files in Java
+ * Copyright (C) 2007  Daro Cutillas Carrillo
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+/*
+ * AnimationTimeline.java
+ *
+ * Created on 17 de abril de 2007
+ */
+
+package fenixlib;
+
+import java.util.Arrays;
+
+/**
+ * Turns the sequences of an <code>AnimatedGraphic</code> into a timeline, so
+ * it is possible to know which keyframe (and frame) is shown at a given time.
+ * 
+ * An animation starts at the first keyframe of a sequence. Each keyframe is
+ * shown during its pause and, when the last keyframe of a sequence has been
+ * shown, the animation continues with the next sequence. If the next sequence
+ * is -1 the animation stops and the last keyframe remains shown. If the chain
+ * of sequences returns to a sequence already played, the animation loops
+ * forever from that sequence.
+ * 
+ * Times are expressed in the same units as the pauses of keyframes. Negative
+ * pauses are taken as 0 and keyframes with a pause of 0 are never shown,
+ * unless they are the last keyframe of an animation that stops.
+ * 
+ * Pause tables and sequence chains are computed when the timeline is created,
+ * and lookups are done by binary search. The timeline is a snapshot: if the
+ * sequences or keyframes of the graphic are changed, a new timeline must be
+ * created.
+ * @author Daro Cutillas Carrillo (lord_danko at sourceforge.net)
+ * @see AnimatedGraphic
+ */
+public final class AnimationTimeline {
+    
+    /* Keyframes of all sequences. The keyframes of sequence s start at 
+     * seqFirst[s] in frameIndex and at seqFirst[s] + s in kfStart, which has
+     * an extra entry per sequence with the duration of the sequence */
+    private final int[] seqFirst;
+    private final int[] seqCount;
+    private final int[] frameIndex;
+    private final long[] kfStart;
+    
+    /* For each sequence, the chain of sequences played when starting there,
+     * the start time of each of them (plus the length of the whole chain) and
+     * the position in the chain where the loop starts (-1 if it stops) */
+    private final int[][] chains;
+    private final long[][] chainStart;
+    private final int[] loopIndex;
+    
+    /**
+     * Creates the timeline of an <code>AnimatedGraphic</code>.
+     * @param ag the graphic
+     */
+    public AnimationTimeline(AnimatedGraphic ag) {
+        int nSequences = ag.getSequenceCount();
+        
+        seqFirst = new int[nSequences];
+        seqCount = new int[nSequences];
+        int nKeyFrames = 0;
+        for (int s = 0; s < nSequences; s++) {
+            seqFirst[s] = nKeyFrames;
+            seqCount[s] = ag.getKeyFrameCount(s);
+            nKeyFrames += seqCount[s];
+        }
+        
+        // Cumulative pause tables
+        frameIndex = new int[nKeyFrames];
+        kfStart = new long[nKeyFrames + nSequences];
+        int[] pauses = new int[nKeyFrames];
+        for (int s = 0; s < nSequences; s++) {
+            ag.getKeyFrames(s, frameIndex, null, null, pauses, seqFirst[s]);
+            
+            int base = seqFirst[s] + s;
+            long t = 0;
+            for (int k = 0; k < seqCount[s]; k++) {
+                kfStart[base + k] = t;
+                t += Math.max(0, pauses[seqFirst[s] + k]);
+            }
+            kfStart[base + seqCount[s]] = t;
+        }
+        
+        // Sequence chains
+        chains = new int[nSequences][];
+        chainStart = new long[nSequences][];
+        loopIndex = new int[nSequences];
+        int[] chainPos = new int[nSequences];
+        int[] chain = new int[nSequences];
+        for (int s = 0; s < nSequences; s++) {
+            Arrays.fill(chainPos, -1);
+            
+            int length = 0;
+            int seq = s;
+            while (seq != -1 && chainPos[seq] == -1) {
+                chainPos[seq] = length;
+                chain[length++] = seq;
+                seq = ag.getNextSequence(seq);
+            }
+            
+            chains[s] = new int[length];
+            System.arraycopy(chain, 0, chains[s], 0, length);
+            chainStart[s] = new long[length + 1];
+            for (int i = 0; i < length; i++) {
+                chainStart[s][i + 1] = chainStart[s][i] + getDuration(chain[i]);
+            }
+            
+            // A loop of sequences with no duration would never advance
+            loopIndex[s] = (seq == -1 || 
+                    chainStart[s][length] == chainStart[s][chainPos[seq]]) ?
+                    -1 : chainPos[seq];
+        }
+    }
+    
+    /**
+     * Returns the number of sequences of the timeline.
+     * @return the number of sequences
+     */
+    public int getSequenceCount() {
+        return seqFirst.length;
+    }
+    
+    /**
+     * Returns the duration of a sequence, that is, the sum of the pauses of its
+     * keyframes.
+     * @param seqIndex the index of the sequence
+     * @return the duration of the sequence
+     */
+    public long getDuration(int seqIndex) {
+        return kfStart[seqFirst[seqIndex] + seqIndex + seqCount[seqIndex]];
+    }
+    
+    /**
+     * Returns the time an animation starting at a sequence takes to stop or, 
+     * if it loops, to reach the end of the first iteration of the loop.
+     * @param seqIndex the index of the sequence where the animation starts
+     * @return the length of the animation
+     */
+    public long getAnimationLength(int seqIndex) {
+        long[] starts = chainStart[seqIndex];
+        return starts[starts.length - 1];
+    }
+    
+    /**
+     * Tells if an animation starting at a sequence loops forever.
+     * @param seqIndex the index of the sequence where the animation starts
+     * @return true if the animation loops, false if it stops
+     */
+    public boolean isLooping(int seqIndex) {
+        return loopIndex[seqIndex] != -1;
+    }
+    
+    /**
+     * Returns the sequence shown at a given time of an animation.
+     * @param seqIndex the index of the sequence where the animation starts
+     * @param time the time elapsed since the start of the animation
+     * @return the index of the sequence, or -1 if the animation has no keyframes
+     */
+    public int getSequenceAt(int seqIndex, long time) {
+        long pos = locate(seqIndex, normalize(seqIndex, time));
+        return pos == -1 ? -1 : chains[seqIndex][(int)(pos >>> 32)];
+    }
+    
+    /**
+     * Returns the keyframe shown at a given time of an animation. The keyframe
+     * belongs to the sequence returned by <code>getSequenceAt</code>.
+     * @param seqIndex the index of the sequence where the animation starts
+     * @param time the time elapsed since the start of the animation
+     * @return the index of the keyframe in its sequence, or -1 if the 
+     * animation has no keyframes
+     */
+    public int getKeyFrameAt(int seqIndex, long time) {
+        long pos = locate(seqIndex, normalize(seqIndex, time));
+        return pos == -1 ? -1 : (int)pos;
+    }
+    
+    /**
+     * Returns the frame shown at a given time of an animation.
+     * @param seqIndex the index of the sequence where the animation starts
+     * @param time the time elapsed since the start of the animation
+     * @return the index of the frame, or -1 if the animation has no keyframes
+     */
+    public int getFrameAt(int seqIndex, long time) {
+        long pos = locate(seqIndex, normalize(seqIndex, time));
+        if (pos == -1) 
+            return -1;
+        return frameIndex[seqFirst[chains[seqIndex][(int)(pos >>> 32)]] + (int)pos];
+    }
+    
+    /**
+     * Creates a cursor to step through an animation.
+     * @param seqIndex the index of the sequence where the animation starts
+     * @return a new cursor placed at the start of the animation
+     */
+    public Cursor createCursor(int seqIndex) {
+        if (seqIndex < 0 || seqIndex >= seqFirst.length) {
+            throw new IndexOutOfBoundsException("Invalid sequence index: " 
+                    + seqIndex);
+        }
+        return new Cursor(seqIndex);
+    }
+    
+    /*
+     * Brings a time into [0, animation length], taking loops into account.
+     */
+    private long normalize(int seqIndex, long time) {
+        long[] starts = chainStart[seqIndex];
+        long length = starts[starts.length - 1];
+        
+        if (time < 0)
+            return 0;
+        if (time < length)
+            return time;
+        if (loopIndex[seqIndex] == -1)
+            return length;
+        
+        long loopStart = starts[loopIndex[seqIndex]];
+        return loopStart + (time - loopStart) % (length - loopStart);
+    }
+    
+    /*
+     * Finds the keyframe shown at a normalized time. Returns the position in
+     * the chain in the high 32 bits and the keyframe in the low 32 bits, or -1
+     * if there are no keyframes.
+     */
+    private long locate(int seqIndex, long time) {
+        int[] chain = chains[seqIndex];
+        long[] starts = chainStart[seqIndex];
+        
+        if (time >= starts[chain.length]) { // Stopped: last keyframe shown
+            for (int i = chain.length - 1; i >= 0; i--) {
+                if (seqCount[chain[i]] > 0)
+                    return ((long)i << 32) | (seqCount[chain[i]] - 1);
+            }
+            return -1;
+        }
+        
+        int i = upperBound(starts, 0, chain.length, time) - 1;
+        int seq = chain[i];
+        int base = seqFirst[seq] + seq;
+        int k = upperBound(kfStart, base, base + seqCount[seq], 
+                time - starts[i]) - 1 - base;
+        
+        return ((long)i << 32) | k;
+    }
+    
+    /*
+     * Returns the first position in [from, to) whose value is greater than
+     * key, or to if there is none.
+     */
+    private static int upperBound(long[] a, int from, int to, long key) {
+        int low = from, high = to;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (a[mid] <= key)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+    
+    /**
+     * Steps through an animation of the timeline. Advancing a cursor inside
+     * the same keyframe takes constant time, and moving to another keyframe is
+     * done by binary search, no matter how many keyframes are skipped.
+     */
+    public final class Cursor {
+        
+        private final int startSequence;
+        private long time;
+        private int sequence;
+        private int keyFrame;
+        private long keyFrameEnd;   // Time at which the current keyframe ends
+        
+        private Cursor(int startSequence) {
+            this.startSequence = startSequence;
+            reset();
+        }
+        
+        /**
+         * Places the cursor at the start of the animation.
+         */
+        public void reset() {
+            time = 0;
+            update();
+        }
+        
+        /**
+         * Advances the animation.
+         * @param dt the time to advance. Must not be negative.
+         */
+        public void advance(long dt) {
+            if (dt < 0) {
+                throw new IllegalArgumentException("Negative time: " + dt);
+            }
+            time += dt;
+            if (time >= keyFrameEnd) {
+                update();
+            }
+        }
+        
+        private void update() {
+            time = normalize(startSequence, time);
+            long pos = locate(startSequence, time);
+            
+            if (pos == -1) {
+                sequence = keyFrame = -1;
+                keyFrameEnd = Long.MAX_VALUE;
+                return;
+            }
+            
+            int i = (int)(pos >>> 32);
+            sequence = chains[startSequence][i];
+            keyFrame = (int)pos;
+            if (time >= getAnimationLength(startSequence)) { // Stopped
+                keyFrameEnd = Long.MAX_VALUE;
+            } else {
+                keyFrameEnd = chainStart[startSequence][i] + 
+                        kfStart[seqFirst[sequence] + sequence + keyFrame + 1];
+            }
+        }
+        
+        /**
+         * Returns the time elapsed since the start of the animation. For
+         * looping animations the time is brought back into the first 
+         * iteration of the loop.
+         * @return the time of the cursor in the animation
+         */
+        public long getTime() { return time; }
+        
+        /**
+         * Returns the current sequence.
+         * @return the index of the sequence, or -1 if there are no keyframes
+         */
+        public int getSequence() { return sequence; }
+        
+        /**
+         * Returns the current keyframe of the current sequence.
+         * @return the index of the keyframe, or -1 if there are no keyframes
+         */
+        public int getKeyFrame() { return keyFrame; }
+        
+        /**
+         * Returns the current frame.
+         * @return the index of the frame, or -1 if there are no keyframes
+         */
+        public int getFrame() {
+            return sequence == -1 ? -1 : frameIndex[seqFirst[sequence] + keyFrame];
+        }
+        
+        /**
+         * Tells if the animation has stopped.
+         * @return true if the animation does not loop and it has reached its end
+         */
+        public boolean isFinished() {
+            return keyFrameEnd == Long.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/* fenixlib - Library to support Fenix Files in Java
+ * Copyright (C) 2007  Daro Cutillas Carrillo
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+/*
+ * BlendTable.java
+ *
+ * Created on 27 de abril de 2007
+ */
+
+package fenixlib;
+
+import fenixlib.util.ParallelTasks;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A table to draw 8bpp pixels with translucency (ghosting) over other 8bpp
+ * pixels of the same palette. For each pair of source and destination 
+ * indices, the table holds the index of the palette color nearest to the mix
+ * of both colors, so blending costs a table lookup per pixel.
+ * <p>
+ * Index 0 of the source is transparent: blending it leaves the destination
+ * unchanged. Tables are obtained from <code>Palette.getBlendTable</code>,
+ * which builds them once and keeps them until a color of the palette changes.
+ * @author Daro Cutillas Carrillo (lord_danko at sourceforge.net)
+ * @see Palette#getBlendTable
+ */
+public final class BlendTable {
+    
+    private final int opacity;
+    
+    /* Result of each pair, indexed by (source << 8) | destination */
+    private final byte[] table = new byte[65536];
+    
+    /**
+     * Builds the table for the current colors of a palette.
+     * @param palette the palette
+     * @param opacity the weight of the source color, from 0 to 255
+     * @param executor the executor to build the table in parallel, or null
+     */
+    BlendTable(Palette palette, final int opacity, ExecutorService executor) {
+        this.opacity = opacity;
+        final int[] rgb = new int[256];
+        palette.getRGBs(rgb);
+        final ColorMatcher matcher = palette.getColorMatcher();
+        
+        ParallelTasks.forRange(executor, 0, 256, 16, new ParallelTasks.RangeTask() {
+            public void run(int from, int to) {
+                for (int src = from; src < to; src++) {
+                    for (int dst = 0; dst < 256; dst++) {
+                        int index = dst;
+                        if (src != 0) {
+                            index = matcher.getIndex(mix(rgb[src], rgb[dst], 
+                                    opacity, 255));
+                        }
+                        table[(src << 8) | dst] = (byte)index;
+                    }
+                }
+            }
+        });
+    }
+    
+    /**
+     * Mixes two colors: <code>(a * weight + b * (total - weight)) / total</code>,
+     * rounded, for each component.
+     */
+    static int mix(int a, int b, int weight, int total) {
+        int rest = total - weight;
+        int r = (((a >> 16) & 0xff) * weight + ((b >> 16) & 0xff) * rest + total / 2) / total;
+        int g = (((a >> 8) & 0xff) * weight + ((b >> 8) & 0xff) * rest + total / 2) / total;
+        int bl = ((a & 0xff) * weight + (b & 0xff) * rest + total / 2) / total;
+        return (r << 16) | (g << 8) | bl;
+    }
+    
+    /**
+     * Returns the weight of the source color, from 0 (invisible) to 255 
+     * (opaque).
+     */
+    public int getOpacity() {
+        return opacity;
+    }
+    
+    /**
+     * Blends two indices.
+     * @param src the index of the source pixel
+     * @param dst the index of the destination pixel
+     * @return the index of the blended color, or <code>dst</code> if 
+     * <code>src</code> is 0
+     */
+    public int blend(int src, int dst) {
+        return table[((src & 0xff) << 8) | (dst & 0xff)] & 0xff;
+    }
+    
+    /**
+     * Blends a span of source pixels over a span of destination pixels. 
+     * @param src the source indices
+     * @param srcOffset the position of the first source pixel
+     * @param dst the destination indices, which are replaced by the results
+     * @param dstOffset the position of the first destination pixel
+     * @param length the number of pixels
+     */
+    public void blend(byte[] src, int srcOffset, byte[] dst, int dstOffset, 
+            int length) {
+        for (int i = 0; i < length; i++) {
+            int s = src[srcOffset + i] & 0xff;
+            if (s != 0) {
+                dst[dstOffset + i] = table[(s << 8) | (dst[dstOffset + i] & 0xff)];
+            }
+        }
+    }
+}
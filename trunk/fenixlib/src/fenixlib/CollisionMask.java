@@ -0,0 +1,174 @@
+/* fenixlib - Library to support Fenix Files in Java
+ * Copyright (C) 2007  Daro Cutillas Carrillo
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+/*
+ * CollisionMask.java
+ *
+ * Created on 20 de abril de 2007
+ */
+
+package fenixlib;
+
+import java.awt.image.Raster;
+
+/**
+ * A bit mask with the opaque pixels of a frame, to perform pixel perfect 
+ * collision tests. Each row of the mask is stored as an array of 
+ * <code>long</code>s, one bit per pixel, so overlap tests between masks
+ * compare 64 pixels at once.
+ * 
+ * Masks of the frames of an <code>AnimatedGraphic</code> can be obtained with 
+ * <code>AnimatedGraphic.getCollisionMask</code>. Masks are immutable.
+ * @author Daro Cutillas Carrillo (lord_danko at sourceforge.net)
+ * @see AnimatedGraphic#getCollisionMask
+ */
+public final class CollisionMask {
+    
+    private final int width;
+    private final int height;
+    private final int wordsPerRow;
+    
+    /* Bit x of row y is bit (x % 64) of bits[y * wordsPerRow + x / 64]. Bits
+     * beyond the width of the mask are always 0 */
+    private final long[] bits;
+    
+    private CollisionMask(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.wordsPerRow = (width + 63) >>> 6;
+        this.bits = new long[wordsPerRow * height];
+    }
+    
+    /**
+     * Creates the mask of a single band raster. Pixels whose value is 0 (color
+     * index 0 in 8bpp graphics and 0x0000 in 16bpp graphics) are transparent.
+     */
+    static CollisionMask create(Raster raster) {
+        CollisionMask mask = new CollisionMask(raster.getWidth(), raster.getHeight());
+        Object row = null;
+        
+        for (int y = 0; y < mask.height; y++) {
+            int offset = FrameBuffers.getScanlineOffset(raster, y);
+            Object data;
+            if (offset != -1) {
+                data = FrameBuffers.getData(raster);
+            } else {
+                data = row = raster.getDataElements(raster.getMinX(),
+                        raster.getMinY() + y, mask.width, 1, row);
+                offset = 0;
+            }
+            
+            int rowStart = y * mask.wordsPerRow;
+            if (data instanceof byte[]) {
+                byte[] b = (byte[])data;
+                for (int x = 0; x < mask.width; x++)
+                    if (b[offset + x] != 0)
+                        mask.bits[rowStart + (x >>> 6)] |= 1L << x;
+            } else {
+                short[] s = (short[])data;
+                for (int x = 0; x < mask.width; x++)
+                    if (s[offset + x] != 0)
+                        mask.bits[rowStart + (x >>> 6)] |= 1L << x;
+            }
+        }
+        
+        return mask;
+    }
+    
+    /**
+     * Returns the width of the mask.
+     * @return the width of the mask
+     */
+    public int getWidth() { return width; }
+    
+    /**
+     * Returns the height of the mask.
+     * @return the height of the mask
+     */
+    public int getHeight() { return height; }
+    
+    /**
+     * Tells if a pixel is opaque.
+     * @param x the x coordinate of the pixel
+     * @param y the y coordinate of the pixel
+     * @return true if the pixel is opaque, false if it is transparent or 
+     * outside the mask
+     */
+    public boolean isOpaque(int x, int y) {
+        if (x < 0 || y < 0 || x >= width || y >= height)
+            return false;
+        return (bits[y * wordsPerRow + (x >>> 6)] & (1L << x)) != 0;
+    }
+    
+    /**
+     * Tells if any opaque pixel of this mask overlaps an opaque pixel of 
+     * another one, when the masks are placed at the given positions.
+     * @param x the x coordinate of the top-left corner of this mask
+     * @param y the y coordinate of the top-left corner of this mask
+     * @param other the other mask
+     * @param otherX the x coordinate of the top-left corner of the other mask
+     * @param otherY the y coordinate of the top-left corner of the other mask
+     * @return true if the masks collide
+     */
+    public boolean overlaps(int x, int y, CollisionMask other, int otherX, 
+            int otherY) {
+        // Position of the other mask relative to this one
+        long dx = (long)otherX - x;
+        long dy = (long)otherY - y;
+        
+        int y0 = (int)Math.max(0, dy);
+        int y1 = (int)Math.min(height, dy + other.height);
+        int x0 = (int)Math.max(0, dx);
+        int x1 = (int)Math.min(width, dx + other.width);
+        if (y0 >= y1 || x0 >= x1)
+            return false;
+        
+        int firstWord = x0 >>> 6;
+        int lastWord = (x1 - 1) >>> 6;
+        for (int row = y0; row < y1; row++) {
+            int rowStart = row * wordsPerRow;
+            int otherRow = (int)(row - dy);
+            for (int w = firstWord; w <= lastWord; w++) {
+                long word = bits[rowStart + w];
+                if (word != 0 && 
+                        (word & other.getBits(otherRow, (w << 6) - (int)dx)) != 0)
+                    return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    /*
+     * Returns 64 bits of a row starting at a column, which can be negative or
+     * beyond the width of the mask (bits outside the mask are 0).
+     */
+    private long getBits(int row, int column) {
+        int rowStart = row * wordsPerRow;
+        int word = column >> 6;     // Rounds towards minus infinity
+        int shift = column & 63;
+        long low = (word >= 0 && word < wordsPerRow) ? bits[rowStart + word] : 0;
+        
+        if (shift == 0)
+            return low;
+        
+        long high = (word + 1 >= 0 && word + 1 < wordsPerRow) ? 
+            bits[rowStart + word + 1] : 0;
+        return (low >>> shift) | (high << (64 - shift));
+    }
+}
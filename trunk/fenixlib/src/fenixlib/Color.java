@@ -26,6 +26,11 @@ package fenixlib;
 
 /**
  * A class for representing RGB colors
+ * 
+ * Colors returned by a <code>Palette</code> are views of the palette entries,
+ * so changing them changes the palette (or throws an 
+ * <code>UnsupportedOperationException</code> if the palette is immutable).
+ * Colors created by the programmer are independent objects.
  * @author Daro Cutillas Carrillo (lord_danko at sourceforge.net)
  */
 public class Color {
@@ -33,6 +38,10 @@ public class Color {
     private int g;
     private int b;
     
+    /* The palette if this is a view of one of its entries */
+    private final Palette palette;
+    private final int index;
+    
     /**
      * Creates an RGB color with the specified red, green and blue values in a range
      * from 0 to 255
@@ -42,6 +51,8 @@ public class Color {
      * @throws IllegalArgumentException if r,g or b are outside of the range 0 to 255
      */
     public Color(int r, int g, int b) throws IllegalArgumentException{
+        palette = null;
+        index = 0;
         setRGB(r,g,b);
     }
     
@@ -50,44 +61,57 @@ public class Color {
      * @param c a <code>java.awt.Color</code> object
      */
     public Color(java.awt.Color c) {
+        palette = null;
+        index = 0;
         setRGB(c.getRed(),c.getGreen(),c.getBlue());
     }
     
+    /**
+     * Creates a view of an entry of a palette.
+     */
+    Color(Palette palette, int index) {
+        this.palette = palette;
+        this.index = index;
+    }
+    
     /**
      * Gets the red component (0-255) of the <code>Color</code>.
      * @return the RED component
      */
-    public int getRed() {return r;}
+    public int getRed() {
+        return palette != null ? (palette.getRGB(index) >> 16) & 0xff : r;
+    }
     
     /**
      * Gets the green component (0-255) of the <code>Color</code>.
      * @return the GREEN component
      */
-    public int getGreen() {return g;}
+    public int getGreen() {
+        return palette != null ? (palette.getRGB(index) >> 8) & 0xff : g;
+    }
     
     /**
      * Gets the blue component (0-255) of the <code>Color</code>.
      * @return the BLUE component
      */
-    public int getBlue() {return b;}
+    public int getBlue() {
+        return palette != null ? palette.getRGB(index) & 0xff : b;
+    }
     
     /**
      * Performs grayscale conversion transformation.
      */
     public void toGrayScale() {
-        int grayTone = (int)((float)r*0.299f+(float)g*0.587f + (float)b*0.114f);
-        r = grayTone;
-        g = grayTone;
-        b = grayTone;
+        int grayTone = (int)((float)getRed()*0.299f+(float)getGreen()*0.587f 
+                + (float)getBlue()*0.114f);
+        store(grayTone, grayTone, grayTone);
     }
     
     /**
      * Performs color inversion transformation.
      */
     public void invert() {
-        r = 255-r;
-        g = 255-g;
-        b = 255-b;
+        store(255-getRed(), 255-getGreen(), 255-getBlue());
     }
     
     /**
@@ -102,7 +126,7 @@ public class Color {
         if(r>255||r<0||g>255||g<0||b>255||b<0) {
             throw new IllegalArgumentException();
         } else {
-            this.r=r;this.g=g;this.b=b;
+            store(r, g, b);
         }
     }
     
@@ -111,9 +135,7 @@ public class Color {
      * @param c The <code>java.awt.Color</code> object
      */
     public void setRGB(java.awt.Color c) {
-        r = c.getRed();
-        g = c.getGreen();
-        b = c.getBlue();
+        store(c.getRed(), c.getGreen(), c.getBlue());
     }
     
     /**
@@ -125,7 +147,7 @@ public class Color {
         if(r<0||r>255) {
             throw new IllegalArgumentException();
         } else {
-            this.r=r;
+            store(r, getGreen(), getBlue());
         }
     }
     
@@ -138,7 +160,7 @@ public class Color {
         if(g<0||g>255) {
             throw new IllegalArgumentException();
         } else {
-            this.g=g;
+            store(getRed(), g, getBlue());
         }
     }
     
@@ -151,7 +173,7 @@ public class Color {
         if(b<0||b>255) {
             throw new IllegalArgumentException();
         } else {
-            this.b=b;
+            store(getRed(), getGreen(), b);
         }
     }
     
@@ -160,7 +182,7 @@ public class Color {
      * @return a new <code>Color</code> with the same RGB components
      */
     public Color getCopy() {
-        return new Color(r, g, b);
+        return new Color(getRed(), getGreen(), getBlue());
     }
     
     /**
@@ -168,6 +190,15 @@ public class Color {
      * @return a new <code>java.awt.Color</code> object with the same RGB components
      */
     public java.awt.Color getAWTColor() {
-        return new java.awt.Color(r,g,b);
+        return new java.awt.Color(getRed(),getGreen(),getBlue());
     }    
+    
+    /* Sets the components, which must be valid, in the color or its palette */
+    private void store(int r, int g, int b) {
+        if (palette != null) {
+            palette.setRGB(index, (r << 16) | (g << 8) | b);
+        } else {
+            this.r=r;this.g=g;this.b=b;
+        }
+    }
 }
@@ -0,0 +1,349 @@
+/* fenixlib - Library to support Fenix Files in Java
+ * Copyright (C) 2007  Daro Cutillas Carrillo
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+/*
+ * ColorMatcher.java
+ *
+ * Created on 24 de abril de 2007
+ */
+
+package fenixlib;
+
+import fenixlib.util.ParallelTasks;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Finds the nearest color of a palette to any RGB color. Distances are 
+ * euclidean in the RGB space and ties are resolved in favor of the lowest 
+ * index. Index 0, the transparent color of 8bpp graphics, is never returned.
+ * <p>
+ * Exact queries use a k-d tree of the palette colors. Approximate queries
+ * first reduce the color to 16 bits (5 bits red, 6 bits green and 5 bits
+ * blue, the precision of 16bpp graphics) and then read a precomputed table of
+ * 32x64x32 entries, so they are exact for the colors of 16bpp graphics. The 
+ * table is built the first time it is needed or when 
+ * <code>buildLookupTable</code> is called.
+ * <p>
+ * A <code>ColorMatcher</code> keeps a copy of the colors of the palette, so 
+ * later changes to the palette do not affect it. Use 
+ * <code>Palette.getColorMatcher</code> to get one that is always up to date.
+ * Queries are thread safe.
+ * @author Daro Cutillas Carrillo (lord_danko at sourceforge.net)
+ * @see Palette#getColorMatcher
+ */
+public final class ColorMatcher {
+    
+    /* Minimum number of pixels worth giving to a thread */
+    private static final int MIN_CHUNK = 4096;
+    
+    private final int[] rgb = new int[256];
+    
+    /* 
+     * The k-d tree. For a range [lo, hi) of points, the point at 
+     * (lo + hi) / 2 is the node, [lo, mid) is its left subtree and 
+     * [mid + 1, hi) its right subtree.
+     */
+    private final int[] points;         // Palette indices
+    private final byte[] axis;          // Split axis of each node: 0 R, 1 G, 2 B
+    
+    /* The 32x64x32 table, indexed by 565 colors. Built when needed */
+    private volatile byte[] lookupTable = null;
+    
+    /**
+     * Creates a <code>ColorMatcher</code> for the current colors of a palette.
+     * @param palette the palette
+     */
+    public ColorMatcher(Palette palette) {
+        palette.getRGBs(rgb);
+        
+        // Colors with the same value as a lower index are never the nearest
+        int[] unique = new int[255];
+        int n = 0;
+        for (int i = 1; i < 256; i++) {
+            boolean duplicate = false;
+            for (int j = 0; j < n; j++) {
+                if (rgb[unique[j]] == rgb[i]) {
+                    duplicate = true;
+                    break;
+                }
+            }
+            if (!duplicate)
+                unique[n++] = i;
+        }
+        
+        points = new int[n];
+        axis = new byte[n];
+        System.arraycopy(unique, 0, points, 0, n);
+        build(0, n);
+    }
+    
+    /* Arranges the points of [lo, hi) as a subtree */
+    private void build(int lo, int hi) {
+        if (hi - lo <= 1)
+            return;
+        
+        // Split by the component with the widest range
+        int[] min = {255, 255, 255}, max = {0, 0, 0};
+        for (int i = lo; i < hi; i++) {
+            for (int c = 0; c < 3; c++) {
+                int v = component(rgb[points[i]], c);
+                min[c] = Math.min(min[c], v);
+                max[c] = Math.max(max[c], v);
+            }
+        }
+        int c = 0;
+        if (max[1] - min[1] > max[c] - min[c])
+            c = 1;
+        if (max[2] - min[2] > max[c] - min[c])
+            c = 2;
+        
+        // Insertion sort by that component; ranges are small
+        for (int i = lo + 1; i < hi; i++) {
+            int p = points[i];
+            int v = component(rgb[p], c);
+            int j = i - 1;
+            while (j >= lo && component(rgb[points[j]], c) > v) {
+                points[j + 1] = points[j];
+                j--;
+            }
+            points[j + 1] = p;
+        }
+        
+        int mid = (lo + hi) >>> 1;
+        axis[mid] = (byte)c;
+        build(lo, mid);
+        build(mid + 1, hi);
+    }
+    
+    private static int component(int rgb, int c) {
+        return (rgb >> (16 - 8 * c)) & 0xff;
+    }
+    
+    /**
+     * Returns the index of the palette color nearest to a color.
+     * @param rgb the color as a 0xRRGGBB integer. Upper bits are ignored.
+     * @return the index of the nearest color, from 1 to 255
+     */
+    public int getIndex(int rgb) {
+        Query q = new Query(rgb);
+        search(q, 0, points.length);
+        return q.bestIndex;
+    }
+    
+    private void search(Query q, int lo, int hi) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int p = points[mid];
+            int color = rgb[p];
+            int dr = q.r - ((color >> 16) & 0xff);
+            int dg = q.g - ((color >> 8) & 0xff);
+            int db = q.b - (color & 0xff);
+            int dist = dr * dr + dg * dg + db * db;
+            if (dist < q.bestDist || (dist == q.bestDist && p < q.bestIndex)) {
+                q.bestDist = dist;
+                q.bestIndex = p;
+            }
+            
+            int diff = axis[mid] == 0 ? dr : (axis[mid] == 1 ? dg : db);
+            if (diff < 0) {
+                search(q, lo, mid);
+                if (diff * diff > q.bestDist)
+                    return;
+                lo = mid + 1;
+            } else {
+                search(q, mid + 1, hi);
+                if (diff * diff > q.bestDist)
+                    return;
+                hi = mid;
+            }
+        }
+    }
+    
+    /**
+     * Returns the index of the palette color nearest to a 16 bits color, 
+     * using the lookup table.
+     * @param pixel the color, in the format of 16bpp graphics (5 bits red, 6
+     * bits green and 5 bits blue)
+     * @return the index of the nearest color, from 1 to 255
+     */
+    public int getIndex565(int pixel) {
+        return getLookupTable()[pixel & 0xffff] & 0xff;
+    }
+    
+    /**
+     * Returns the index of a palette color near to a color, using the lookup
+     * table. The color is reduced to 16 bits first, so the result may differ
+     * from <code>getIndex</code>.
+     * @param rgb the color as a 0xRRGGBB integer. Upper bits are ignored.
+     * @return the index of the nearest color to the reduced color
+     */
+    public int getApproximateIndex(int rgb) {
+        return getLookupTable()[to565(rgb)] & 0xff;
+    }
+    
+    /**
+     * Finds the palette colors nearest to an array of colors.
+     * @param rgb the colors, as 0xRRGGBB integers. Upper bits are ignored.
+     * @param rgbOffset the position of the first color in <code>rgb</code>
+     * @param indices the array where the palette indices are stored
+     * @param indicesOffset the position of the first index in <code>indices</code>
+     * @param length the number of colors
+     * @param exact true to use the k-d tree, false to use the lookup table
+     */
+    public void getIndices(int[] rgb, int rgbOffset, byte[] indices, 
+            int indicesOffset, int length, boolean exact) {
+        if (!exact) {
+            byte[] table = getLookupTable();
+            for (int i = 0; i < length; i++)
+                indices[indicesOffset + i] = table[to565(rgb[rgbOffset + i])];
+            return;
+        }
+        
+        // Consecutive pixels often have the same color
+        int last = -1;
+        byte lastIndex = 0;
+        for (int i = 0; i < length; i++) {
+            int color = rgb[rgbOffset + i] & 0xffffff;
+            if (color != last) {
+                last = color;
+                lastIndex = (byte)getIndex(color);
+            }
+            indices[indicesOffset + i] = lastIndex;
+        }
+    }
+    
+    /**
+     * Finds the palette colors nearest to an array of colors, splitting the 
+     * work across the threads of an executor.
+     * @param rgb the colors, as 0xRRGGBB integers. Upper bits are ignored.
+     * @param indices the array where the palette indices are stored, at least
+     * as long as <code>rgb</code>
+     * @param exact true to use the k-d tree, false to use the lookup table
+     * @param executor the executor, or null to work in the calling thread
+     */
+    public void getIndices(final int[] rgb, final byte[] indices, 
+            final boolean exact, ExecutorService executor) {
+        if (!exact)
+            buildLookupTable(executor);
+        
+        ParallelTasks.forRange(executor, 0, rgb.length, MIN_CHUNK,
+                new ParallelTasks.RangeTask() {
+            public void run(int from, int to) {
+                getIndices(rgb, from, indices, from, to - from, exact);
+            }
+        });
+    }
+    
+    /**
+     * Creates a table to translate the indices of another palette into 
+     * indices of the palette of this matcher. Index 0 (transparent) is always
+     * translated to 0, and the rest of indices to the nearest color.
+     * @param source the palette whose indices are translated
+     * @param exact true if every color of <code>source</code> (but index 0)
+     * must be in the palette of this matcher
+     * @return a table of 256 indices
+     * @throws IllegalArgumentException if <code>exact</code> is true and a 
+     * color is missing
+     */
+    public byte[] createRemapTable(Palette source, boolean exact) {
+        byte[] table = new byte[256];
+        
+        for (int i = 1; i < 256; i++) {
+            int color = source.getRGB(i);
+            int index = getIndex(color);
+            if (exact && rgb[index] != color) {
+                throw new IllegalArgumentException("Color " + i + " (0x" 
+                        + Integer.toHexString(color) + ") is not in the palette");
+            }
+            table[i] = (byte)index;
+        }
+        
+        return table;
+    }
+    
+    /**
+     * Builds the lookup table used by approximate queries, if it has not been
+     * built yet.
+     * @param executor the executor to build the table in parallel, or null to
+     * build it in the calling thread
+     */
+    public void buildLookupTable(ExecutorService executor) {
+        if (lookupTable != null)
+            return;
+        
+        final byte[] table = new byte[65536];
+        ParallelTasks.forRange(executor, 0, 32, 1, new ParallelTasks.RangeTask() {
+            public void run(int from, int to) {
+                for (int r = from; r < to; r++) {
+                    int red = (r << 3) | (r >> 2);
+                    for (int g = 0; g < 64; g++) {
+                        int green = (g << 2) | (g >> 4);
+                        int last = -1;
+                        for (int b = 0; b < 32; b++) {
+                            int blue = (b << 3) | (b >> 2);
+                            Query q = new Query((red << 16) | (green << 8) | blue);
+                            if (last != -1) {
+                                // Start from the previous cell, which is close
+                                int color = ColorMatcher.this.rgb[last];
+                                q.bestIndex = last;
+                                q.bestDist = q.distance(color);
+                            }
+                            search(q, 0, points.length);
+                            last = q.bestIndex;
+                            table[(r << 11) | (g << 5) | b] = (byte)last;
+                        }
+                    }
+                }
+            }
+        });
+        lookupTable = table;
+    }
+    
+    private byte[] getLookupTable() {
+        byte[] table = lookupTable;
+        if (table == null) {
+            buildLookupTable(null);
+            table = lookupTable;
+        }
+        return table;
+    }
+    
+    private static int to565(int rgb) {
+        return ((rgb >> 8) & 0xf800) | ((rgb >> 5) & 0x07e0) | ((rgb >> 3) & 0x001f);
+    }
+    
+    /* The state of a nearest color search */
+    private static final class Query {
+        final int r, g, b;
+        int bestIndex = 0;
+        int bestDist = Integer.MAX_VALUE;
+        
+        Query(int rgb) {
+            r = (rgb >> 16) & 0xff;
+            g = (rgb >> 8) & 0xff;
+            b = rgb & 0xff;
+        }
+        
+        int distance(int rgb) {
+            int dr = r - ((rgb >> 16) & 0xff);
+            int dg = g - ((rgb >> 8) & 0xff);
+            int db = b - (rgb & 0xff);
+            return dr * dr + dg * dg + db * db;
+        }
+    }
+}
@@ -0,0 +1,494 @@
+/* fenixlib - Library to support Fenix Files in Java
+ * Copyright (C) 2007  Daro Cutillas Carrillo
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+/*
+ * ColorQuantizer.java
+ *
+ * Created on 25 de abril de 2007
+ */
+
+package fenixlib;
+
+import fenixlib.util.ParallelTasks;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Converts truecolor images into 8bpp frames. A palette of up to 255 colors
+ * is chosen for a set of images by the median cut algorithm, over a histogram
+ * of their colors with 5 bits per component, or a fixed palette is given with
+ * <code>setPalette</code>. Then each pixel gets the index of the nearest 
+ * palette color (see <code>ColorMatcher</code>), optionally with dithering.
+ * <p>
+ * Error diffusion dithering uses the Floyd-Steinberg weights with a 
+ * serpentine scan. To run in parallel, images are divided in bands of a fixed
+ * number of rows. Each band starts diffusing the error some rows above its
+ * first row, without writing them, so no seams are visible between bands. 
+ * The result doesn't depend on the number of threads. Ordered dithering adds
+ * the threshold of an 8x8 Bayer matrix to each pixel, so all pixels are
+ * independent.
+ * <p>
+ * Index 0 is reserved for transparent pixels, those whose alpha is below 128.
+ * Images of type TYPE_USHORT_565_RGB, like frames of 16bpp graphics, have no
+ * alpha, so their pixels whose value is 0x0000 are taken as transparent as 
+ * Fenix does. Transparent pixels do not count when a palette is created and
+ * no error is diffused from them.
+ * Images are processed in bands of rows, in parallel if an executor is set.
+ * @author Daro Cutillas Carrillo (lord_danko at sourceforge.net)
+ * @see ColorMatcher
+ */
+public final class ColorQuantizer {
+    
+    /** Pixels get the nearest color, without dithering */
+    public static final int DITHER_NONE = 0;
+    
+    /** Floyd-Steinberg error diffusion with a serpentine scan */
+    public static final int DITHER_ERROR_DIFFUSION = 1;
+    
+    /** Ordered dithering with an 8x8 Bayer matrix */
+    public static final int DITHER_ORDERED = 2;
+    
+    /* Colors available for opaque pixels */
+    private static final int MAX_COLORS = 255;
+    
+    /* Minimum number of rows worth giving to a thread */
+    private static final int MIN_ROWS = 16;
+    
+    /* Rows of the bands of error diffusion, and rows diffused before a band */
+    private static final int DIFFUSION_BAND = 32;
+    private static final int DIFFUSION_OVERLAP = 8;
+    
+    /* Thresholds of ordered dithering, from 0 to 63, and their amplitude */
+    private static final int[] BAYER = createBayerMatrix();
+    private static final int ORDERED_SPREAD = 32;
+    
+    private Palette palette = null;
+    private boolean exactMatching = true;
+    private int dithering = DITHER_NONE;
+    private ExecutorService executor = null;
+    
+    /**
+     * Creates a <code>ColorQuantizer</code> which computes a palette for each
+     * set of images and matches colors exactly.
+     */
+    public ColorQuantizer() {
+    }
+    
+    /**
+     * Sets a fixed palette to be used for all images instead of computing one.
+     * @param palette the palette, or null to compute the palette from the images
+     */
+    public void setPalette(Palette palette) {
+        this.palette = palette;
+    }
+    
+    /**
+     * Returns the fixed palette set with <code>setPalette</code>.
+     * @return the fixed palette or null if palettes are computed
+     */
+    public Palette getPalette() {
+        return palette;
+    }
+    
+    /**
+     * Sets if pixels are matched with the exact nearest color of the palette
+     * (the default) or with the faster 16 bits lookup table of 
+     * <code>ColorMatcher</code>.
+     * @param exact true for exact matching
+     */
+    public void setExactMatching(boolean exact) {
+        exactMatching = exact;
+    }
+    
+    /**
+     * Sets the dithering used when converting images.
+     * @param mode <code>DITHER_NONE</code> (the default), 
+     * <code>DITHER_ERROR_DIFFUSION</code> or <code>DITHER_ORDERED</code>
+     * @throws IllegalArgumentException if the mode is not valid
+     */
+    public void setDithering(int mode) {
+        if (mode != DITHER_NONE && mode != DITHER_ERROR_DIFFUSION 
+                && mode != DITHER_ORDERED) {
+            throw new IllegalArgumentException("Unknown dithering mode: " + mode);
+        }
+        dithering = mode;
+    }
+    
+    /**
+     * Sets the executor used to process images in parallel.
+     * @param executor an <code>ExecutorService</code>, or null to work in the 
+     * calling thread (the default)
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+    
+    /**
+     * Converts a set of images into the frames of a new 8bpp graphic. The
+     * graphic has no sequences.
+     * @param images the images, all of them of the same size
+     * @return an 8bpp <code>AnimatedGraphic</code> with one frame per image
+     * @throws IllegalArgumentException if there are no images or they are not
+     * of the same size
+     */
+    public AnimatedGraphic quantize(BufferedImage[] images) {
+        if (images.length == 0) {
+            throw new IllegalArgumentException("No images to quantize");
+        }
+        
+        Palette p = createPalette(images);
+        AnimatedGraphic ag = AnimatedGraphic.create8(images[0].getWidth(),
+                images[0].getHeight(), p);
+        for (BufferedImage image : images)
+            ag.addFrame(toIndexed(image, p));
+        
+        return ag;
+    }
+    
+    /**
+     * Chooses the palette for a set of images. If a fixed palette is set, that
+     * palette is returned.
+     * @param images the images
+     * @return a new palette with the colors of the images from index 1, or 
+     * the fixed palette
+     */
+    public Palette createPalette(BufferedImage[] images) {
+        if (palette != null)
+            return palette;
+        
+        final Histogram histogram = new Histogram();
+        for (final BufferedImage image : images) {
+            ParallelTasks.forRange(executor, 0, image.getHeight(), MIN_ROWS,
+                    new ParallelTasks.RangeTask() {
+                public void run(int from, int to) {
+                    Histogram band = new Histogram();
+                    band.add(image, from, to);
+                    histogram.merge(band);
+                }
+            });
+        }
+        
+        return histogram.medianCut(MAX_COLORS);
+    }
+    
+    /**
+     * Converts an image into an 8bpp frame using a palette, with the current
+     * dithering mode. Frames of 16bpp graphics can also be converted.
+     * @param image the image
+     * @param palette the palette. Its color model is used by the frame.
+     * @return a TYPE_BYTE_INDEXED image of the same size as <code>image</code>
+     */
+    public BufferedImage toIndexed(final BufferedImage image, Palette palette) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final byte[] data = new byte[width * height];
+        final ColorMatcher matcher = palette.getColorMatcher();
+        final int[] colors = new int[256];
+        palette.getRGBs(colors);
+        
+        if (!exactMatching)
+            matcher.buildLookupTable(executor);
+        
+        if (dithering == DITHER_ERROR_DIFFUSION) {
+            int nBands = (height + DIFFUSION_BAND - 1) / DIFFUSION_BAND;
+            ParallelTasks.forRange(executor, 0, nBands, 1,
+                    new ParallelTasks.RangeTask() {
+                public void run(int from, int to) {
+                    for (int band = from; band < to; band++)
+                        diffuse(image, matcher, colors, data, 
+                                band * DIFFUSION_BAND,
+                                Math.min(height, (band + 1) * DIFFUSION_BAND));
+                }
+            });
+        } else {
+            ParallelTasks.forRange(executor, 0, height, MIN_ROWS,
+                    new ParallelTasks.RangeTask() {
+                public void run(int from, int to) {
+                    int[] argb = getARGB(image, from, to - from, null);
+                    if (dithering == DITHER_ORDERED)
+                        addThresholds(argb, width, from);
+                    int offset = from * width;
+                    matcher.getIndices(argb, 0, data, offset, argb.length, 
+                            exactMatching);
+                    for (int i = 0; i < argb.length; i++)
+                        if ((argb[i] >>> 24) < 0x80)
+                            data[offset + i] = 0;
+                }
+            });
+        }
+        
+        return FrameBuffers.create8(width, height, data, palette.getColorModel());
+    }
+    
+    /* 
+     * Converts the rows [from, to) with error diffusion. Error is diffused 
+     * from some rows above so it is already spread when the first row is 
+     * reached, as if the image had been processed from the top.
+     */
+    private void diffuse(BufferedImage image, ColorMatcher matcher, 
+            int[] colors, byte[] data, int from, int to) {
+        int width = image.getWidth();
+        int[] argb = new int[width];
+        
+        // Errors (multiplied by 16) of the current and the next row, with an
+        // extra pixel at each side
+        int[] error = new int[3 * (width + 2)];
+        int[] next = new int[3 * (width + 2)];
+        
+        for (int y = Math.max(0, from - DIFFUSION_OVERLAP); y < to; y++) {
+            getARGB(image, y, 1, argb);
+            Arrays.fill(next, 0);
+            
+            // Odd rows are scanned from right to left
+            int dir = (y & 1) == 0 ? 1 : -1;
+            int x = dir == 1 ? 0 : width - 1;
+            for (int i = 0; i < width; i++, x += dir) {
+                int c = argb[x];
+                if ((c >>> 24) < 0x80) {
+                    if (y >= from)
+                        data[y * width + x] = 0;
+                    continue;
+                }
+                
+                int e = 3 * (x + 1);
+                int r = clamp(((c >> 16) & 0xff) + ((error[e] + 8) >> 4));
+                int g = clamp(((c >> 8) & 0xff) + ((error[e + 1] + 8) >> 4));
+                int b = clamp((c & 0xff) + ((error[e + 2] + 8) >> 4));
+                int rgb = (r << 16) | (g << 8) | b;
+                int index = exactMatching ? matcher.getIndex(rgb) 
+                        : matcher.getApproximateIndex(rgb);
+                if (y >= from)
+                    data[y * width + x] = (byte)index;
+                
+                int p = colors[index];
+                spread(error, next, e, dir, r - ((p >> 16) & 0xff));
+                spread(error, next, e + 1, dir, g - ((p >> 8) & 0xff));
+                spread(error, next, e + 2, dir, b - (p & 0xff));
+            }
+            
+            int[] swap = error;
+            error = next;
+            next = swap;
+        }
+    }
+    
+    /* 
+     * Gets some rows of an image as ARGB colors. Pixels of 565 images whose
+     * value is 0x0000 are returned as transparent.
+     */
+    private static int[] getARGB(BufferedImage image, int y, int rows, int[] argb) {
+        int width = image.getWidth();
+        argb = image.getRGB(0, y, width, rows, argb, 0, width);
+        if (image.getType() == BufferedImage.TYPE_USHORT_565_RGB) {
+            short[] pixels = (short[])image.getRaster().getDataElements(0, y, 
+                    width, rows, null);
+            for (int i = 0; i < pixels.length; i++)
+                if (pixels[i] == 0)
+                    argb[i] = 0;
+        }
+        return argb;
+    }
+    
+    /* Spreads the error of a component to the neighbours of a pixel */
+    private static void spread(int[] error, int[] next, int e, int dir, int diff) {
+        error[e + 3 * dir] += diff * 7;
+        next[e - 3 * dir] += diff * 3;
+        next[e] += diff * 5;
+        next[e + 3 * dir] += diff;
+    }
+    
+    /* Adds the thresholds of ordered dithering to some rows of opaque pixels */
+    private static void addThresholds(int[] argb, int width, int firstRow) {
+        for (int i = 0; i < argb.length; i++) {
+            int c = argb[i];
+            int x = i % width, y = firstRow + i / width;
+            int t = ((BAYER[((y & 7) << 3) | (x & 7)] * 2 - 63) * ORDERED_SPREAD) >> 7;
+            argb[i] = (c & 0xff000000)
+                    | (clamp(((c >> 16) & 0xff) + t) << 16)
+                    | (clamp(((c >> 8) & 0xff) + t) << 8)
+                    | clamp((c & 0xff) + t);
+        }
+    }
+    
+    private static int clamp(int v) {
+        return v < 0 ? 0 : (v > 255 ? 255 : v);
+    }
+    
+    /* Builds the 8x8 Bayer matrix by doubling the 1x1 matrix three times */
+    private static int[] createBayerMatrix() {
+        int[] m = {0};
+        for (int size = 1; size < 8; size *= 2) {
+            int[] n = new int[4 * size * size];
+            for (int y = 0; y < size; y++) {
+                for (int x = 0; x < size; x++) {
+                    int v = 4 * m[y * size + x];
+                    n[y * 2 * size + x] = v;
+                    n[y * 2 * size + x + size] = v + 2;
+                    n[(y + size) * 2 * size + x] = v + 3;
+                    n[(y + size) * 2 * size + x + size] = v + 1;
+                }
+            }
+            m = n;
+        }
+        return m;
+    }
+    
+    /* Population and color sums of the cells of the RGB 5-5-5 space */
+    private static final class Histogram {
+        final int[] counts = new int[32768];
+        final long[] sums = new long[3 * 32768];
+        
+        /* Adds the opaque pixels of some rows of an image */
+        void add(BufferedImage image, int from, int to) {
+            int width = image.getWidth();
+            int[] argb = new int[width];
+            for (int y = from; y < to; y++) {
+                getARGB(image, y, 1, argb);
+                for (int x = 0; x < width; x++) {
+                    int c = argb[x];
+                    if ((c >>> 24) < 0x80)
+                        continue;
+                    int r = (c >> 16) & 0xff, g = (c >> 8) & 0xff, b = c & 0xff;
+                    int cell = ((r >> 3) << 10) | ((g >> 3) << 5) | (b >> 3);
+                    counts[cell]++;
+                    sums[3 * cell] += r;
+                    sums[3 * cell + 1] += g;
+                    sums[3 * cell + 2] += b;
+                }
+            }
+        }
+        
+        synchronized void merge(Histogram other) {
+            for (int i = 0; i < counts.length; i++)
+                counts[i] += other.counts[i];
+            for (int i = 0; i < sums.length; i++)
+                sums[i] += other.sums[i];
+        }
+        
+        /* Splits the used cells into boxes and makes a palette of their colors */
+        synchronized Palette medianCut(int maxColors) {
+            int[] cells = new int[counts.length];
+            int n = 0;
+            for (int i = 0; i < counts.length; i++)
+                if (counts[i] != 0)
+                    cells[n++] = i;
+            if (n == 0)
+                return new Palette();
+            
+            // Boxes are ranges of cells
+            int[] lo = new int[maxColors], hi = new int[maxColors];
+            long[] score = new long[maxColors];
+            int[] axis = new int[maxColors];
+            int nBoxes = 1;
+            hi[0] = n;
+            measure(cells, lo, hi, score, axis, 0);
+            
+            while (nBoxes < maxColors) {
+                // Split the box with most pixels over the widest range
+                int box = -1;
+                for (int b = 0; b < nBoxes; b++)
+                    if (score[b] > 0 && (box == -1 || score[b] > score[box]))
+                        box = b;
+                if (box == -1)
+                    break;
+                
+                int split = sortAndSplit(cells, lo[box], hi[box], axis[box]);
+                lo[nBoxes] = split;
+                hi[nBoxes] = hi[box];
+                hi[box] = split;
+                measure(cells, lo, hi, score, axis, box);
+                measure(cells, lo, hi, score, axis, nBoxes);
+                nBoxes++;
+            }
+            
+            // Each box gives the average color of its pixels
+            int[] rgb = new int[256];
+            for (int b = 0; b < nBoxes; b++) {
+                long population = 0, r = 0, g = 0, bl = 0;
+                for (int i = lo[b]; i < hi[b]; i++) {
+                    int cell = cells[i];
+                    population += counts[cell];
+                    r += sums[3 * cell];
+                    g += sums[3 * cell + 1];
+                    bl += sums[3 * cell + 2];
+                }
+                rgb[b + 1] = (int)((r + population / 2) / population) << 16
+                        | (int)((g + population / 2) / population) << 8
+                        | (int)((bl + population / 2) / population);
+            }
+            
+            // Unused entries repeat a color so they are never matched
+            for (int i = nBoxes + 1; i < 256; i++)
+                rgb[i] = rgb[1];
+            
+            return new Palette(rgb);
+        }
+        
+        /* Computes the split axis and the score of a box (0 if it can't be split) */
+        private void measure(int[] cells, int[] lo, int[] hi, long[] score,
+                int[] axis, int box) {
+            int[] min = {31, 31, 31}, max = {0, 0, 0};
+            long population = 0;
+            for (int i = lo[box]; i < hi[box]; i++) {
+                int cell = cells[i];
+                population += counts[cell];
+                for (int c = 0; c < 3; c++) {
+                    int v = (cell >> (10 - 5 * c)) & 31;
+                    min[c] = Math.min(min[c], v);
+                    max[c] = Math.max(max[c], v);
+                }
+            }
+            
+            int c = 0;
+            if (max[1] - min[1] > max[c] - min[c])
+                c = 1;
+            if (max[2] - min[2] > max[c] - min[c])
+                c = 2;
+            axis[box] = c;
+            score[box] = population * (max[c] - min[c]);
+        }
+        
+        /* 
+         * Sorts the cells of a box along an axis and returns the position 
+         * where the population is divided in two halves.
+         */
+        private int sortAndSplit(int[] cells, int lo, int hi, int axis) {
+            long[] keys = new long[hi - lo];
+            long population = 0;
+            for (int i = lo; i < hi; i++) {
+                int cell = cells[i];
+                keys[i - lo] = ((long)((cell >> (10 - 5 * axis)) & 31) << 16) | cell;
+                population += counts[cell];
+            }
+            Arrays.sort(keys);
+            
+            long accumulated = 0;
+            int split = -1;
+            for (int i = lo; i < hi; i++) {
+                cells[i] = (int)(keys[i - lo] & 0xffff);
+                accumulated += counts[cells[i]];
+                if (split == -1 && accumulated * 2 >= population)
+                    split = i + 1;
+            }
+            
+            // Both halves must have at least one cell
+            return Math.max(lo + 1, Math.min(split, hi - 1));
+        }
+    }
+}
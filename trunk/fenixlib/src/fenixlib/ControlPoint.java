@@ -36,6 +36,14 @@ package fenixlib;
  * which is stored in an AbstractGraphic. The reason for having this information
  * in <code>ControlPoint</code> is to allow the programmer extract a <code>ControlPoint</code>
  * and then inserting it in the same position.
+ * 
+ * Control points returned by a graphic are views of the control points stored
+ * in it, so changing their coordinates changes the control points of the 
+ * graphic, and redefining the control point in the graphic changes the
+ * view. When the control point is removed from the graphic, the view is 
+ * detached and becomes an independent object which keeps the
+ * coordinates it had. Control points created by the programmer are 
+ * independent objects.
  * @author Daro Cutillas Carrillo (lord_danko at sourceforge.net)
  * @see AbstractGraphic
  */
@@ -45,6 +53,9 @@ public class ControlPoint { //implements Comparable {
     
     private final int index;
     
+    /* The store of the graphic if this is a view of one of its control points */
+    private ControlPointStore store;
+    
     /**
      * Creates a new <code>ControlPoint</code> setting its x, y coordinates to 0, 0.
      * @param index The index of the control point
@@ -53,6 +64,7 @@ public class ControlPoint { //implements Comparable {
         this.index = index;
         this.x = 0;
         this.y = 0;
+        this.store = null;
     }
     
     /**
@@ -65,6 +77,27 @@ public class ControlPoint { //implements Comparable {
         this.index = index;
         this.x = x;
         this.y = y;
+        this.store = null;
+    }
+    
+    /**
+     * Creates a view of a control point of a <code>ControlPointStore</code>.
+     */
+    ControlPoint(ControlPointStore store, int index) {
+        this.index = index;
+        this.store = store;
+    }
+    
+    /**
+     * Turns a view into an independent control point with the coordinates
+     * currently stored for it.
+     */
+    void detach() {
+        if (store != null) {
+            x = store.x[index];
+            y = store.y[index];
+            store = null;
+        }
     }
     
     /**
@@ -77,32 +110,42 @@ public class ControlPoint { //implements Comparable {
      * Gets the X coordinate of the control point.
      * @return The X coordinate of the control point
      */
-    public int getX(){ return x; }
+    public int getX(){ return store != null ? store.x[index] : x; }
     
     /**
      * Gets the Y coordinate of the control point.
      * @return The Y coordinate of the control point
      */
-    public int getY(){ return y; }
+    public int getY(){ return store != null ? store.y[index] : y; }
     
     /**
      * Sets the X coordinate of the control point.
      * @param x The new value for the X coordinate of the control point
      */
-    public void setX(int x) { this.x = x; }
+    public void setX(int x) { 
+        if (store != null) 
+            store.x[index] = x;
+        else
+            this.x = x;
+    }
     
     /**
      * Sets the Y coordinate of the control point.
      * @param y The new value for the Y coordinate of the control point
      */
-    public void setY(int y) { this.y = y; }
+    public void setY(int y) { 
+        if (store != null) 
+            store.y[index] = y;
+        else
+            this.y = y;
+    }
     
     /**
      * Returns a string representation of this control point.
      * @return a string representation of this control point.
      */
     @Override
-    public String toString() { return index + ": (" + x + ", " + y + ")"; }
+    public String toString() { return index + ": (" + getX() + ", " + getY() + ")"; }
  /*   
     public int compareTo(Object o) {
         ControlPoint c;
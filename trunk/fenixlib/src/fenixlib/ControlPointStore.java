@@ -0,0 +1,125 @@
+/* fenixlib - Library to support Fenix Files in Java
+ * Copyright (C) 2007  Daro Cutillas Carrillo
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+/*
+ * ControlPointStore.java
+ *
+ * Created on 22 de abril de 2007
+ */
+
+package fenixlib;
+
+import java.util.BitSet;
+
+/**
+ * Stores the control points of a graphic in arrays of coordinates indexed by
+ * the index of the control point, and a bitmap telling which control points 
+ * are defined.
+ * 
+ * <code>ControlPoint</code> objects returned by the graphic are views of the
+ * store, created once per index, so changes made to them are written in the 
+ * arrays. Redefining a control point changes the coordinates seen by its
+ * view. When a control point is removed its view is detached from the store
+ * and keeps the last coordinates.
+ * @author Daro Cutillas Carrillo (lord_danko at sourceforge.net)
+ * @see AbstractGraphic
+ */
+final class ControlPointStore {
+    
+    /**
+     * The greatest index allowed for a control point.
+     */
+    static final int MAX_INDEX = 0xffff;
+    
+    int[] x = new int[0];
+    int[] y = new int[0];
+    final BitSet defined = new BitSet();
+    private ControlPoint[] views = new ControlPoint[0];
+    
+    boolean contains(int index) {
+        return index >= 0 && defined.get(index);
+    }
+    
+    void set(int index, int x, int y) {
+        if (index < 0 || index > MAX_INDEX) {
+            throw new IllegalArgumentException("Invalid control point index: " 
+                    + index);
+        }
+        
+        if (index >= this.x.length) {
+            int length = Math.min(MAX_INDEX + 1, 
+                    Math.max(index + 1, this.x.length * 2));
+            this.x = grow(this.x, length);
+            this.y = grow(this.y, length);
+        }
+        this.x[index] = x;
+        this.y[index] = y;
+        defined.set(index);
+    }
+    
+    boolean remove(int index) {
+        if (!contains(index)) {
+            return false;
+        }
+        detachView(index);
+        defined.clear(index);
+        return true;
+    }
+    
+    int size() {
+        return defined.cardinality();
+    }
+    
+    /**
+     * Returns the greatest defined index, or -1 if there are no control points.
+     */
+    int last() {
+        return defined.length() - 1;
+    }
+    
+    /**
+     * Returns the view of a defined control point.
+     */
+    ControlPoint getView(int index) {
+        if (index >= views.length) {
+            ControlPoint[] newViews = new ControlPoint[x.length];
+            System.arraycopy(views, 0, newViews, 0, views.length);
+            views = newViews;
+        }
+        if (views[index] == null) {
+            views[index] = new ControlPoint(this, index);
+        }
+        return views[index];
+    }
+    
+    /**
+     * Detaches the view of a control point, if it has been created.
+     */
+    private void detachView(int index) {
+        if (index < views.length && views[index] != null) {
+            views[index].detach();
+            views[index] = null;
+        }
+    }
+    
+    private static int[] grow(int[] array, int length) {
+        int[] newArray = new int[length];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+}
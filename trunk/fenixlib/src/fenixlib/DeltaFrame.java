@@ -0,0 +1,187 @@
+/* fenixlib - Library to support Fenix Files in Java
+ * Copyright (C) 2007  Daro Cutillas Carrillo
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+/*
+ * DeltaFrame.java
+ *
+ * Created on 19 de abril de 2007
+ */
+
+package fenixlib;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+
+/**
+ * A frame stored as the differences with a base frame: a list of rectangles
+ * and the pixels inside them. The rest of pixels are the same as in the base
+ * frame, which is always a full (not delta) frame of the same graphic.
+ * 
+ * Pixels of all rectangles are stored one after another, row by row, in
+ * <code>pixels8</code> (8bpp graphics) or <code>pixels16</code> (16bpp).
+ * @author Daro Cutillas Carrillo (lord_danko at sourceforge.net)
+ * @see AnimatedGraphic#encodeDeltaFrames
+ */
+final class DeltaFrame {
+    
+    final int base;         // Index of the base frame
+    final int[] rects;      // x, y, width and height of each rectangle
+    final byte[] pixels8;   // null for 16bpp graphics
+    final short[] pixels16; // null for 8bpp graphics
+    
+    DeltaFrame(int base, int[] rects, byte[] pixels8, short[] pixels16) {
+        this.base = base;
+        this.rects = rects;
+        this.pixels8 = pixels8;
+        this.pixels16 = pixels16;
+    }
+    
+    /**
+     * Returns the number of rectangles of the frame.
+     */
+    int getRectCount() {
+        return rects.length / 4;
+    }
+    
+    /**
+     * Compares a frame with a base frame and creates a delta frame from the
+     * differences. Rows with differences are grouped in bands of consecutive 
+     * rows, and each band becomes a rectangle as wide as its differences.
+     * @param base the index of the base frame
+     * @param baseRaster the raster of the base frame
+     * @param raster the raster of the frame to encode
+     * @param maxPixels the maximum number of pixels the rectangles can have
+     * @return the delta frame, or null if the rectangles would have more than
+     * <code>maxPixels</code> pixels
+     */
+    static DeltaFrame encode(int base, Raster baseRaster, Raster raster, 
+            int maxPixels) {
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        
+        // Columns of the first and last differences of each row (-1 if none)
+        int[] first = new int[height];
+        int[] last = new int[height];
+        Object baseRow = null, row = null;
+        for (int y = 0; y < height; y++) {
+            baseRow = baseRaster.getDataElements(baseRaster.getMinX(), 
+                    baseRaster.getMinY() + y, width, 1, baseRow);
+            row = raster.getDataElements(raster.getMinX(), raster.getMinY() + y,
+                    width, 1, row);
+            first[y] = last[y] = -1;
+            for (int x = 0; x < width; x++) {
+                if (differs(baseRow, row, x)) {
+                    if (first[y] == -1)
+                        first[y] = x;
+                    last[y] = x;
+                }
+            }
+        }
+        
+        // Bands of consecutive rows with differences
+        int[] rects = new int[4 * height];
+        int nRects = 0;
+        int nPixels = 0;
+        for (int y = 0; y < height; y++) {
+            if (first[y] == -1)
+                continue;
+            
+            int x0 = first[y], x1 = last[y], y0 = y;
+            while (y + 1 < height && first[y + 1] != -1) {
+                y++;
+                x0 = Math.min(x0, first[y]);
+                x1 = Math.max(x1, last[y]);
+            }
+            
+            rects[4 * nRects] = x0;
+            rects[4 * nRects + 1] = y0;
+            rects[4 * nRects + 2] = x1 - x0 + 1;
+            rects[4 * nRects + 3] = y - y0 + 1;
+            nRects++;
+            nPixels += (x1 - x0 + 1) * (y - y0 + 1);
+            if (nPixels > maxPixels)
+                return null;
+        }
+        
+        int[] trimmedRects = new int[4 * nRects];
+        System.arraycopy(rects, 0, trimmedRects, 0, trimmedRects.length);
+        
+        // Pixels of the rectangles
+        byte[] pixels8 = null;
+        short[] pixels16 = null;
+        Object pixels;
+        if (row instanceof byte[])
+            pixels = pixels8 = new byte[nPixels];
+        else
+            pixels = pixels16 = new short[nPixels];
+        
+        int pos = 0;
+        for (int r = 0; r < trimmedRects.length; r += 4) {
+            int rectWidth = trimmedRects[r + 2];
+            for (int y = 0; y < trimmedRects[r + 3]; y++) {
+                row = raster.getDataElements(raster.getMinX() + trimmedRects[r], 
+                        raster.getMinY() + trimmedRects[r + 1] + y, 
+                        rectWidth, 1, row);
+                System.arraycopy(row, 0, pixels, pos, rectWidth);
+                pos += rectWidth;
+            }
+        }
+        
+        return new DeltaFrame(base, trimmedRects, pixels8, pixels16);
+    }
+    
+    private static boolean differs(Object a, Object b, int x) {
+        if (a instanceof byte[])
+            return ((byte[])a)[x] != ((byte[])b)[x];
+        return ((short[])a)[x] != ((short[])b)[x];
+    }
+    
+    /**
+     * Rebuilds the frame from its base frame.
+     * @param baseFrame the base frame
+     * @return a new frame with the pixels of the base frame and the rectangles
+     */
+    BufferedImage decode(BufferedImage baseFrame) {
+        int width = baseFrame.getWidth();
+        int height = baseFrame.getHeight();
+        Raster baseRaster = baseFrame.getRaster();
+        
+        Object data = (pixels8 != null ? 
+            (Object)new byte[width * height] : new short[width * height]);
+        baseRaster.getDataElements(baseRaster.getMinX(), baseRaster.getMinY(),
+                width, height, data);
+        
+        int pos = 0;
+        for (int r = 0; r < rects.length; r += 4) {
+            int rectWidth = rects[r + 2];
+            for (int y = 0; y < rects[r + 3]; y++) {
+                System.arraycopy(pixels8 != null ? (Object)pixels8 : pixels16, 
+                        pos, data, (rects[r + 1] + y) * width + rects[r], 
+                        rectWidth);
+                pos += rectWidth;
+            }
+        }
+        
+        if (pixels8 != null) {
+            return FrameBuffers.create8(width, height, (byte[])data, 
+                    (IndexColorModel)baseFrame.getColorModel());
+        }
+        return FrameBuffers.create16(width, height, (short[])data);
+    }
+}
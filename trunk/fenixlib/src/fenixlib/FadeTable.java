@@ -0,0 +1,131 @@
+/* fenixlib - Library to support Fenix Files in Java
+ * Copyright (C) 2007  Daro Cutillas Carrillo
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+/*
+ * FadeTable.java
+ *
+ * Created on 27 de abril de 2007
+ */
+
+package fenixlib;
+
+import fenixlib.util.ParallelTasks;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Tables to fade 8bpp pixels towards a color in a number of levels. Level 0
+ * leaves indices unchanged and the last level gives the palette color nearest
+ * to the target color. For the levels between, each index is translated to
+ * the palette color nearest to the mix of its color and the target color, so
+ * fading costs a table lookup per pixel.
+ * <p>
+ * Index 0 (transparent) is never changed. Tables are obtained from 
+ * <code>Palette.getFadeTable</code>, which builds them once and keeps them 
+ * until a color of the palette changes.
+ * @author Daro Cutillas Carrillo (lord_danko at sourceforge.net)
+ * @see Palette#getFadeTable
+ */
+public final class FadeTable {
+    
+    private final int color;
+    private final int levels;
+    
+    /* Result of each index at each level, indexed by (level << 8) | index */
+    private final byte[] table;
+    
+    /**
+     * Builds the tables for the current colors of a palette.
+     * @param palette the palette
+     * @param color the target color, as a 0xRRGGBB integer
+     * @param levels the number of the last level (where the target is reached)
+     * @param executor the executor to build the tables in parallel, or null
+     */
+    FadeTable(Palette palette, final int color, final int levels, 
+            ExecutorService executor) {
+        this.color = color;
+        this.levels = levels;
+        this.table = new byte[(levels + 1) << 8];
+        final int[] rgb = new int[256];
+        palette.getRGBs(rgb);
+        final ColorMatcher matcher = palette.getColorMatcher();
+        
+        ParallelTasks.forRange(executor, 0, levels + 1, 4, 
+                new ParallelTasks.RangeTask() {
+            public void run(int from, int to) {
+                for (int level = from; level < to; level++) {
+                    for (int i = 0; i < 256; i++) {
+                        int index = i;
+                        if (i != 0 && level != 0) {
+                            index = matcher.getIndex(BlendTable.mix(color, rgb[i], 
+                                    level, levels));
+                        }
+                        table[(level << 8) | i] = (byte)index;
+                    }
+                }
+            }
+        });
+    }
+    
+    /**
+     * Returns the target color, as a 0xRRGGBB integer.
+     */
+    public int getColor() {
+        return color;
+    }
+    
+    /**
+     * Returns the number of the last level, where pixels reach the target
+     * color.
+     */
+    public int getLevels() {
+        return levels;
+    }
+    
+    /**
+     * Fades an index.
+     * @param index the index of the pixel
+     * @param level the level, from 0 to <code>getLevels()</code>
+     * @return the index of the faded color
+     * @throws IndexOutOfBoundsException if the level is not valid
+     */
+    public int fade(int index, int level) {
+        checkLevel(level);
+        return table[(level << 8) | (index & 0xff)] & 0xff;
+    }
+    
+    /**
+     * Fades a span of pixels in place.
+     * @param data the indices, which are replaced by the results
+     * @param offset the position of the first pixel
+     * @param length the number of pixels
+     * @param level the level, from 0 to <code>getLevels()</code>
+     * @throws IndexOutOfBoundsException if the level is not valid
+     */
+    public void fade(byte[] data, int offset, int length, int level) {
+        checkLevel(level);
+        int base = level << 8;
+        for (int i = offset; i < offset + length; i++)
+            data[i] = table[base | (data[i] & 0xff)];
+    }
+    
+    private void checkLevel(int level) {
+        if (level < 0 || level > levels) {
+            throw new IndexOutOfBoundsException("Invalid level: " + level);
+        }
+    }
+}
@@ -28,10 +28,7 @@ import fenixlib.util.GZFileReader;
 import static fenixlib.FenixlibConstants.FBM_MAGIC;
 
 import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
-import java.awt.image.DataBufferUShort;
 import java.awt.image.IndexColorModel;
-import java.awt.image.Raster;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -42,14 +39,23 @@ import java.util.ArrayList;
  * @author Daro Cutillas Carrillo (lord_danko at sourceforge.net)
  * @see FileReader
  */
-public class FbmReader implements FileReader<AnimatedGraphic> {
+public class FbmReader implements FileReader<AnimatedGraphic>,
+        FileProber<GraphicInfo> {
     
     private File file;
     
     /* Version code constants */
     private static final short VERSION_MAJOR = 0x0100;
+    private static final short VERSION_MAJOR_DELTA = 0x0200;    // Delta frames
     private static final short VERSION_MINOR = 0x0000;    
     
+    /* Size in bytes of a sequence and a keyframe in the file */
+    private static final int SEQUENCE_SIZE = 32 + 3 * 4;
+    private static final int KEYFRAME_SIZE = 4 * 4;
+    
+    private boolean lazyFrames = false;
+    private PalettePool palettePool = null;
+    
     
     /**
      * Constructs a new <code>FbmReader</code> associated to the specified file.
@@ -60,6 +66,32 @@ public class FbmReader implements FileReader<AnimatedGraphic> {
     }
     
     
+    /**
+     * Sets if frames must be decoded when the file is read (the default) or
+     * only when they are accessed for the first time. In the last case, the
+     * file must not be modified or deleted while the returned 
+     * <code>AnimatedGraphic</code> is in use. Files with delta frames (see
+     * <code>FbmWriter.setDeltaFrames</code>) are always decoded when read.
+     * The file is kept open while frames are being decoded, until 
+     * <code>AnimatedGraphic.releaseFrameLoader</code> is called.
+     * @param lazy true if frames must be decoded on first access
+     * @see AnimatedGraphic#setFrameCacheSize
+     */
+    public void setLazyFrames(boolean lazy) {
+        lazyFrames = lazy;
+    }
+    
+    /**
+     * Sets the pool used to share the palettes of the files read by this 
+     * <code>FbmReader</code>. If it is not null, files with the same colors get the
+     * same, immutable, <code>Palette</code> object. By default there is no pool
+     * and each file gets its own palette.
+     * @param pool a <code>PalettePool</code> or null
+     */
+    public void setPalettePool(PalettePool pool) {
+        palettePool = pool;
+    }
+    
     /**
      * Reads the file associated to this <code>FbmReader</code> object as if it was
      * an Fbm fenix file and returns an <code>AnimatedGraphic</code> object created
@@ -70,41 +102,23 @@ public class FbmReader implements FileReader<AnimatedGraphic> {
      */
     public AnimatedGraphic read() throws IOException {
         GZFileReader gzfile = new GZFileReader(file);
+        try {
+            return read(gzfile);
+        } finally {
+            gzfile.close();
+        }
+    }
+    
+    /**
+     * Reads an Fbm file from an opened <code>GZFileReader</code>.
+     */
+    private AnimatedGraphic read(GZFileReader gzfile) throws IOException {
         
         AnimatedGraphic ag = null;
         
         // Check header
-        byte[] descriptor = gzfile.readBytes(16);
-        DepthMode depth;
-        
-        if( FBM_MAGIC.compareTo(new String(descriptor))==0 ) {
-            
-            // Check version
-            short versionMajor = gzfile.readShort();
-            short versionMinor = gzfile.readShort();
-            
-            if( versionMajor == VERSION_MAJOR ) {
-                // Check depth
-                int d = gzfile.readInt();
-                switch (d) {
-                    /*case 1:
-                        depth = DepthMode.DEPTH_1BPP;
-                        break;
-                     */
-                    case 8:
-                        depth = DepthMode.DEPTH_8BPP;
-                        break;
-                    case 16:
-                        depth = DepthMode.DEPTH_16BPP;
-                        break;
-                    default:
-                        throw new IOException("Unsuported depth");
-                }
-                
-            } else      /* Incompatible version */
-                throw new IOException("Incompatible file version");
-        } else          /* Invalid FPL descriptor */
-            throw new IOException("The file is not a valid fbm file");
+        boolean deltaFrames = readVersion(gzfile);
+        DepthMode depth = readDepth(gzfile);
         
         // Descriptor
         String name = gzfile.readAsciiZ(64);       // Name
@@ -123,14 +137,14 @@ public class FbmReader implements FileReader<AnimatedGraphic> {
         Palette palette = null;
         
         if (depth==DepthMode.DEPTH_8BPP) {
-            Color[] colors = new Color[256];
+            byte[] components = gzfile.readBytes(768);
+            int[] colors = new int[256];
             for(int i=0;i<256;i++)
-                colors[i] = new Color(
-                                gzfile.readUnsignedByte(), 
-                                gzfile.readUnsignedByte(),
-                                gzfile.readUnsignedByte() 
-                                );
-            palette = new Palette(colors);
+                colors[i] = ((components[3 * i] & 0xff) << 16)
+                        | ((components[3 * i + 1] & 0xff) << 8)
+                        | (components[3 * i + 2] & 0xff);
+            palette = palettePool != null ? palettePool.intern(colors)
+                    : new Palette(colors);
             ag = AnimatedGraphic.create8 (width, height, palette);
         } else if (depth == DepthMode.DEPTH_16BPP)
             ag = AnimatedGraphic.create16 (width, height);   
@@ -160,68 +174,61 @@ public class FbmReader implements FileReader<AnimatedGraphic> {
         }        
         
         // Control Points
-        ArrayList<ControlPoint> controlPoints = new ArrayList<ControlPoint>();
-        for (int i = 0; i < nPoints; i++) {
-            controlPoints.add (new ControlPoint (
-                                    gzfile.readInt(), 
-                                    gzfile.readInt(), 
-                                    gzfile.readInt()
-                                    ));   
-        }
-        
-        for(ControlPoint cp : controlPoints) {
+        for(ControlPoint cp : readControlPoints(gzfile, nPoints)) {
             ag.setControlPoint(cp);
         }
         
         // Image data 
         BufferedImage bi;
+        
+        // The IndexColorModel to store the palette (8bpp)
+        IndexColorModel cm = null;
+        if (depth == DepthMode.DEPTH_8BPP) {
+            cm = palette.getColorModel();
+        }
+        
         // Note: I decided to duplicate the for loop instead of putting the
         //       if sentence inside to get better perfomance.        
         
-        if (depth == DepthMode.DEPTH_8BPP) { // 8bpp          
+        if (lazyFrames && !deltaFrames) { // Only the position of the frames is recorded
             
-            // The IndexColorModel to store the palette
-            IndexColorModel cm = new IndexColorModel(8, 256, palette.getRedComponents(),
-                    palette.getGreenComponents(), palette.getBlueComponents());    
+            ag.addLazyFrames(maxFrame + 1, new FbmFrameLoader(file, 
+                    gzfile.getPosition(), width, height, cm));
+            
+        } else if (depth == DepthMode.DEPTH_8BPP) { // 8bpp          
             
-            DataBufferByte dbb;
             byte[] data; 
             
             for (int i=0; i<maxFrame+1; i++) {
-                // Get pixel data from the file
-                data = gzfile.readBytes(width * height);
-                
-                // Create a BufferedImage which uses the IndexColorModel created before
-                bi = new BufferedImage(width, height,
-                        BufferedImage.TYPE_BYTE_INDEXED, cm);
+                if (deltaFrames && readDeltaFrame(ag, i, gzfile)) {
+                    continue;
+                }
                 
-                // To set the data of the BufferedImage we need a data byte buffer where
-                // each byte indicates the index of the color of the pixel in the palette
-                dbb = new DataBufferByte(data, data.length);
+                // Get pixel data from the file. Each byte indicates the index
+                // of the color of the pixel in the palette
+                data = gzfile.readBytes(width * height);
                 
-                bi.setData (Raster.createRaster (bi.getSampleModel(),dbb,
-                        new java.awt.Point(0,0)));
+                // Create a BufferedImage which uses the IndexColorModel created
+                // before and is backed by the pixel data, without copying it
+                bi = FrameBuffers.create8(width, height, data, cm);
                 
                 ag.addFrame(bi);
             }            
             
         } else if (depth == DepthMode.DEPTH_16BPP) { /* 16bpp */
             short[] data; 
-            DataBufferUShort dbus;
             
             for (int i=0; i<maxFrame+1; i++) {
+                if (deltaFrames && readDeltaFrame(ag, i, gzfile)) {
+                    continue;
+                }
+                
                 data = gzfile.readShorts(width * height);
                
                 // Each pixel of the image is stored as a 16 bit number in
                  // 565 format (5 bits for red component, 6 for green and 5 for blue
                  //
-                bi = new BufferedImage(width, height,
-                        BufferedImage.TYPE_USHORT_565_RGB);
-                
-                dbus = new DataBufferUShort(data, data.length);
-                
-                bi.setData(Raster.createRaster(bi.getSampleModel(), dbus,
-                        new java.awt.Point(0,0))); 
+                bi = FrameBuffers.create16(width, height, data);
                 
                 ag.addFrame(bi);
             }
@@ -254,4 +261,213 @@ public class FbmReader implements FileReader<AnimatedGraphic> {
         
         return ag;
     }
+    /**
+     * Reads only the header of the file associated to this <code>FbmReader</code>
+     * object (descriptor, sequence and keyframe counts and control points), as
+     * if it was an Fbm fenix file. Pixel data is neither read nor decompressed.
+     * @return a <code>GraphicInfo</code> object with the information of the file
+     * @see GraphicInfo
+     * @throws java.io.IOException if the file is not a valid Fbm file or it 
+     * couldn't be read for any reason
+     */
+    public GraphicInfo probe() throws IOException {
+        GZFileReader gzfile = new GZFileReader(file);
+        try {
+            readVersion(gzfile);
+            DepthMode depth = readDepth(gzfile);
+            
+            // Descriptor
+            String name = gzfile.readAsciiZ(64);       // Name
+            int width = gzfile.readInt();               // Width
+            int height = gzfile.readInt();              // Height
+            int flags = gzfile.readInt();               // Flags
+            int id = gzfile.readInt();                  // Id
+            
+            int maxFrame = gzfile.readInt();            // Max frame
+            int maxSequence = gzfile.readInt();         // Max sequence
+            int maxKeyFrame = gzfile.readInt();         // Max keyframe
+            int maxPoint = gzfile.readInt();            // Max point
+            int nPoints = gzfile.readInt();             // Points 
+            
+            // Palette (8bpp), sequences and keyframes are not needed
+            if (depth == DepthMode.DEPTH_8BPP)
+                gzfile.skip(768);
+            gzfile.skip((maxSequence + 1) * SEQUENCE_SIZE 
+                    + (maxKeyFrame + 1) * KEYFRAME_SIZE);
+            
+            ControlPoint[] controlPoints = readControlPoints(gzfile, nPoints)
+                    .toArray(new ControlPoint[0]);
+            
+            return new GraphicInfo(name, width, height, depth, id, flags,
+                    maxFrame + 1, maxSequence + 1, maxKeyFrame + 1, 
+                    controlPoints);
+        } finally {
+            gzfile.close();
+        }
+    }
+    
+    /**
+     * Reads and checks the magic and version of an Fbm file. Files with delta
+     * frames have their own major version, so that Fenix does not load them.
+     * @return true if the file has delta frames
+     */
+    private static boolean readVersion(GZFileReader gzfile) throws IOException {
+        byte[] descriptor = gzfile.readBytes(16);
+        
+        if( FBM_MAGIC.compareTo(new String(descriptor))==0 ) {
+            
+            // Check version
+            short versionMajor = gzfile.readShort();
+            short versionMinor = gzfile.readShort();
+            
+            if (versionMinor != VERSION_MINOR) {    /* Unknown extension */
+                throw new IOException("Incompatible file version");
+            } else if( versionMajor == VERSION_MAJOR ) {
+                return false;
+            } else if( versionMajor == VERSION_MAJOR_DELTA ) {
+                return true;
+            } else      /* Incompatible version */
+                throw new IOException("Incompatible file version");
+        } else          /* Invalid FPL descriptor */
+            throw new IOException("The file is not a valid fbm file");
+    }
+    
+    /**
+     * Reads the depth of an Fbm file, which follows its version.
+     */
+    private static DepthMode readDepth(GZFileReader gzfile) throws IOException {
+        int d = gzfile.readInt();
+        switch (d) {
+            /*case 1:
+                return DepthMode.DEPTH_1BPP;
+             */
+            case 8:
+                return DepthMode.DEPTH_8BPP;
+            case 16:
+                return DepthMode.DEPTH_16BPP;
+            default:
+                throw new IOException("Unsuported depth");
+        }
+    }
+    
+    /**
+     * Reads the header of a frame of a file with delta frames and, if it is
+     * a delta frame, its rectangles and pixels, which are added to the graphic.
+     * @return true if the frame was a delta frame, false if its full pixels 
+     * follow
+     */
+    private static boolean readDeltaFrame(AnimatedGraphic ag, int frameIndex,
+            GZFileReader gzfile) throws IOException {
+        int base = gzfile.readInt();                // Base frame
+        if (base == -1) {
+            return false;
+        }
+        if (base < 0 || base >= frameIndex || ag.getDeltaFrame(base) != null) {
+            throw new IOException("Invalid base frame: " + base);
+        }
+        
+        int nRects = gzfile.readInt();              // Number of rectangles
+        if (nRects < 0 || nRects > ag.getHeight()) {
+            throw new IOException("Invalid number of rectangles: " + nRects);
+        }
+        int[] rects = gzfile.readInts(4 * nRects);  // x, y, width, height
+        int nPixels = 0;
+        for (int r = 0; r < rects.length; r += 4) {
+            if (rects[r] < 0 || rects[r + 1] < 0 || rects[r + 2] < 0 
+                    || rects[r + 3] < 0
+                    || rects[r] + rects[r + 2] > ag.getWidth()
+                    || rects[r + 1] + rects[r + 3] > ag.getHeight()) {
+                throw new IOException("Invalid rectangle in frame " + frameIndex);
+            }
+            nPixels += rects[r + 2] * rects[r + 3];
+        }
+        
+        if (ag.getDepth() == DepthMode.DEPTH_8BPP) {
+            ag.addDeltaFrame(new DeltaFrame(base, rects, 
+                    gzfile.readBytes(nPixels), null));
+        } else {
+            ag.addDeltaFrame(new DeltaFrame(base, rects, 
+                    null, gzfile.readShorts(nPixels)));
+        }
+        return true;
+    }
+    
+    /**
+     * Reads the control points section of an Fbm file.
+     */
+    private static ArrayList<ControlPoint> readControlPoints(GZFileReader gzfile,
+            int nPoints) throws IOException {
+        ArrayList<ControlPoint> controlPoints = new ArrayList<ControlPoint>();
+        for (int i = 0; i < nPoints; i++) {
+            controlPoints.add (new ControlPoint (
+                                    gzfile.readInt(), 
+                                    gzfile.readInt(), 
+                                    gzfile.readInt()
+                                    ));   
+        }
+        return controlPoints;
+    }
+    
+    /**
+     * Decodes the frames of an Fbm file on demand. The file is kept open 
+     * between calls so that frames accessed in increasing order do not need
+     * to inflate the file again from the begining, until <code>close</code>
+     * is called.
+     */
+    private static class FbmFrameLoader implements FrameLoader {
+        private final File file;
+        private final long offset;          // Position of the first frame
+        private final int width, height;
+        private final IndexColorModel cm;   // null for 16bpp graphics
+        private GZFileReader gzfile = null;
+        
+        FbmFrameLoader(File file, long offset, int width, int height,
+                IndexColorModel cm) {
+            this.file = file;
+            this.offset = offset;
+            this.width = width;
+            this.height = height;
+            this.cm = cm;
+        }
+        
+        public synchronized BufferedImage loadFrame(int frameIndex) 
+                throws IOException {
+            int frameSize = width * height * (cm != null ? 1 : 2);
+            long position = offset + (long)frameIndex * frameSize;
+            
+            // Reopen the file if the frame is before the current position
+            if (gzfile != null && gzfile.getPosition() > position) {
+                gzfile.close();
+                gzfile = null;
+            }
+            if (gzfile == null) {
+                gzfile = new GZFileReader(file);
+            }
+            
+            try {
+                gzfile.skip(position - gzfile.getPosition());
+                if (cm != null) {
+                    return FrameBuffers.create8(width, height,
+                            gzfile.readBytes(width * height), cm);
+                } else {
+                    return FrameBuffers.create16(width, height,
+                            gzfile.readShorts(width * height));
+                }
+            } catch (IOException e) {
+                gzfile.close();
+                gzfile = null;
+                throw e;
+            }
+        }
+        
+        public synchronized void close() throws IOException {
+            if (gzfile != null) {
+                try {
+                    gzfile.close();
+                } finally {
+                    gzfile = null;
+                }
+            }
+        }
+    }
 }
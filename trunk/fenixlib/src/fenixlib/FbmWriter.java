@@ -27,13 +27,12 @@ package fenixlib;
 import fenixlib.util.GZFileWriter;
 import static fenixlib.FenixlibConstants.FBM_MAGIC;
 
-import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
 import java.awt.image.DataBufferUShort;
 import java.awt.image.Raster;
 import java.io.File;
-import java.util.ArrayList;
 import java.io.IOException;
+import java.util.zip.Deflater;
 
 /**
  * An implementation of the <code>FileWriter</code> interface to write Fbm Fenix
@@ -47,8 +46,14 @@ public class FbmWriter implements FileWriter<AnimatedGraphic> {
     
     /* Version code constants */
     private static final short VERSION_MAJOR = 0x0100;
+    private static final short VERSION_MAJOR_DELTA = 0x0200;    // Delta frames
     private static final short VERSION_MINOR = 0x0000;      
     
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private int compressionStrategy = Deflater.DEFAULT_STRATEGY;
+    private boolean removeDuplicateFrames = false;
+    private boolean deltaFrames = false;
+    
 
     /**
      * Constructs a new <code>FbmWriter</code> associated to the specified file.
@@ -61,26 +66,114 @@ public class FbmWriter implements FileWriter<AnimatedGraphic> {
     }
     
     
+    /**
+     * Sets the compression level used to write the file.
+     * @param level the compression level (0-9) as defined in <code>java.util.zip.Deflater</code>
+     */
+    public void setCompressionLevel(int level) {
+        compressionLevel = level;
+    }
+    
+    /**
+     * Sets the compression strategy used to write the file.
+     * @param strategy the compression strategy as defined in <code>java.util.zip.Deflater</code>
+     */
+    public void setCompressionStrategy(int strategy) {
+        compressionStrategy = strategy;
+    }
+    
+    /**
+     * Sets whether frames whose pixels are identical to those of a previous
+     * frame are written only once. Keyframes are written pointing to the frame
+     * that remains. The graphic itself is not modified (see 
+     * <code>AnimatedGraphic.removeDuplicateFrames</code> to do so).
+     * @param remove true to remove duplicated frames from the file. By default
+     * all frames are written.
+     */
+    public void setRemoveDuplicateFrames(boolean remove) {
+        removeDuplicateFrames = remove;
+    }
+    
+    /**
+     * Sets whether delta frames of the graphic (see 
+     * <code>AnimatedGraphic.encodeDeltaFrames</code>) are written as such.
+     * This requires an extension of the Fbm format (major version 2) that
+     * only <code>FbmReader</code> understands, so files written this way can
+     * not be loaded by Fenix. When disabled (the default), delta frames are
+     * rebuilt and written as full frames.
+     * @param delta true to write delta frames using the extended format
+     */
+    public void setDeltaFrames(boolean delta) {
+        deltaFrames = delta;
+    }
+    
     /**
      * Writes an Fbm file from the information in an <code>AnimatedGraphic</code>
      * object.
+     * 
+     * The file is first written to a temporary file in the same directory,
+     * which replaces the original one only when the whole graphic has been
+     * written, so a failed write never leaves a partial file behind. In 
+     * platforms where a file can't be renamed over an existing one, the 
+     * original file is moved aside and restored if the replacement fails.
      * @param ag the <code>AnimatedGraphic</code> whose information is being used to write
      * the file
      * @throws java.io.IOException if any error occurrs during the writing process
      */
     public void write (AnimatedGraphic ag) throws IOException { 
+        File dir = file.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile("fenixlib", ".tmp", dir);
+        boolean done = false;
+        try {
+            GZFileWriter gzfile = new GZFileWriter(tmp, compressionLevel, 
+                    compressionStrategy);
+            try {
+                write(ag, gzfile);
+            } finally {
+                gzfile.close();
+            }
+            replace(file, tmp);
+            done = true;
+        } finally {
+            if (!done)
+                tmp.delete();
+        }
+    }
+    
+    /**
+     * Replaces a file with a new one. renameTo does not replace existing files
+     * in every platform, so the old file is renamed to a backup first and
+     * restored if the new file can't be renamed.
+     */
+    private static void replace(File file, File newFile) throws IOException {
+        if (newFile.renameTo(file)) {
+            return;
+        }
         
-       GZFileWriter gzfile = new GZFileWriter();
+        File backup = File.createTempFile("fenixlib", ".bak", 
+                newFile.getAbsoluteFile().getParentFile());
+        if (!backup.delete() || !file.renameTo(backup)) {
+            backup.delete();
+            throw new IOException("Unable to rename " + newFile + " to " + file);
+        }
+        if (!newFile.renameTo(file)) {
+            backup.renameTo(file);
+            throw new IOException("Unable to rename " + newFile + " to " + file);
+        }
+        backup.delete();
+    }
+    
+    /**
+     * Writes an Fbm file to an opened <code>GZFileWriter</code>.
+     */
+    private void write (AnimatedGraphic ag, GZFileWriter gzfile) throws IOException { 
         
-       // Generate InternalSequence and InternalKeyFrame structures from the
-       // data in the AnimatedGraphic   
+       // Generate InternalSequence structures from the data in the 
+       // AnimatedGraphic. Keyframes are written directly from the graphic.
        SequenceInfo [] seqsInfo = ag.getSequencesInfo();
-       KeyFrameInfo [] kfsInfo;
        
        InternalSequence[] intSeqs = 
                     new InternalSequence[seqsInfo.length]; 
-       ArrayList<InternalKeyFrame> intKFs = new ArrayList<InternalKeyFrame>();
-       InternalKeyFrame intKF;
        
        int keyFrameCount = 0; 
        for (int i = 0; i < seqsInfo.length; i++) {
@@ -90,28 +183,38 @@ public class FbmWriter implements FileWriter<AnimatedGraphic> {
            intSeqs[i].firstKeyFrame = keyFrameCount;
            keyFrameCount += seqsInfo[i].nKeyFrames - 1;
            intSeqs[i].lastKeyFrame = keyFrameCount;
-           
-           kfsInfo = ag.getKeyFramesInfo(i);
-           for (KeyFrameInfo kfInfo : kfsInfo) {
-               intKF = new InternalKeyFrame();
-               intKF.frameIndex = kfInfo.frameIndex;
-               intKF.flags = kfInfo.flags;
-               intKF.angle = kfInfo.angle;
-               intKF.pause = kfInfo.pause;
-               intKFs.add (intKF);
-           }
-           
            keyFrameCount++;
        }  
         
+        // Frames to write and the index each frame gets in the file
+        int[] frameMap = new int[ag.getFrameCount()];
+        int[] writtenFrames;
+        if (removeDuplicateFrames) {
+            int[] first = FrameBuffers.findDuplicates(ag, false);
+            int nUnique = 0;
+            for (int f = 0; f < frameMap.length; f++) {
+                frameMap[f] = (first[f] == f ? nUnique++ : frameMap[first[f]]);
+            }
+            writtenFrames = new int[nUnique];
+            for (int f = 0; f < frameMap.length; f++) {
+                if (first[f] == f) 
+                    writtenFrames[frameMap[f]] = f;
+            }
+        } else {
+            writtenFrames = frameMap;
+            for (int f = 0; f < frameMap.length; f++) {
+                frameMap[f] = f;
+            }
+        }
+        
         // Animation parameters
-        int maxFrame = ag.getFrames().length;
-        int maxKeyFrame = intKFs.size();
+        int maxFrame = writtenFrames.length;
+        int maxKeyFrame = keyFrameCount;
         int maxSequence = intSeqs.length;
         
         // Header
         gzfile.writeAsciiZ(FBM_MAGIC,16);
-        gzfile.writeShort(VERSION_MAJOR);
+        gzfile.writeShort(deltaFrames ? VERSION_MAJOR_DELTA : VERSION_MAJOR);
         gzfile.writeShort(VERSION_MINOR);              
         gzfile.writeInt(ag.getDepth().toInt());     // Depth
         
@@ -126,19 +229,19 @@ public class FbmWriter implements FileWriter<AnimatedGraphic> {
         gzfile.writeInt(maxKeyFrame - 1);   // Max keyframe
         
         int lastCp, nCp = 0;
-        nCp = ag.getControlPoints().length;
-        lastCp = (nCp == 0 ? 0 : ag.getLastControlPoint().getIndex());
+        nCp = ag.getControlPointCount();
+        lastCp = (nCp == 0 ? 0 : ag.getLastControlPointIndex());
         gzfile.writeInt(lastCp);            // Max control point index
         gzfile.writeInt(nCp);               // Number of cps
 
         // Palette (8bpp)
         if (ag.depth==DepthMode.DEPTH_8BPP) {
-            Color c;
+            int rgb;
             for(int i=0; i<256; i++) {
-                c = ag.getPalette().getColor(i);
-                gzfile.writeByte ((byte)c.getRed());
-                gzfile.writeByte ((byte)c.getGreen());
-                gzfile.writeByte ((byte)c.getBlue());
+                rgb = ag.getPalette().getRGB(i);
+                gzfile.writeByte ((byte)(rgb >> 16));
+                gzfile.writeByte ((byte)(rgb >> 8));
+                gzfile.writeByte ((byte)rgb);
             }
         }
         
@@ -151,22 +254,31 @@ public class FbmWriter implements FileWriter<AnimatedGraphic> {
         }
         
         // KeyFrames
-        for (InternalKeyFrame internalKeyFrame : intKFs) {
-            gzfile.writeInt(internalKeyFrame.frameIndex);       // Frame Index
-            gzfile.writeInt(internalKeyFrame.angle);            // Angle
-            gzfile.writeInt(internalKeyFrame.flags);            // Flags
-            gzfile.writeInt(internalKeyFrame.pause);            // Pause 
+        for (int i = 0; i < intSeqs.length; i++) {
+            int nKeyFrames = ag.getKeyFrameCount(i);
+            for (int k = 0; k < nKeyFrames; k++) {
+                gzfile.writeInt(frameMap[ag.getKeyFrameFrameIndex(i, k)]); // Frame Index
+                gzfile.writeInt(ag.getKeyFrameAngle(i, k));         // Angle
+                gzfile.writeInt(ag.getKeyFrameFlags(i, k));         // Flags
+                gzfile.writeInt(ag.getKeyFramePause(i, k));         // Pause 
+            }
         }
         
         // Control Points
-        for (ControlPoint cp : ag.getControlPoints()) {
-            gzfile.writeInt(cp.getIndex());
-            gzfile.writeInt(cp.getX());
-            gzfile.writeInt(cp.getY());
+        int[] cpIndices = new int[nCp], cpXs = new int[nCp], cpYs = new int[nCp];
+        ag.getControlPoints(cpIndices, cpXs, cpYs);
+        for (int i = 0; i < nCp; i++) {
+            gzfile.writeInt(cpIndices[i]);
+            gzfile.writeInt(cpXs[i]);
+            gzfile.writeInt(cpYs[i]);
         }
         
-        // Graphic data
+        // Graphic data. Pixels are read from the rasters of the frames, since
+        // getData() would return a copy of them
         Raster raster;
+        int width = ag.getWidth();
+        int height = ag.getHeight();
+        boolean[] writtenAsDelta = new boolean[maxFrame];
         
         switch (ag.getDepth()) {
            /*
@@ -204,33 +316,103 @@ public class FbmWriter implements FileWriter<AnimatedGraphic> {
             
             case DEPTH_8BPP:
                 {
-                    DataBufferByte dbb;
                     byte[] data;
-                    // Write each frame
-                    for (BufferedImage bi : ag.getFrames()) {
-                        raster = bi.getData();
-                        dbb = (DataBufferByte)raster.getDataBuffer();
-                        data = dbb.getData();
-                        gzfile.writeBytes(data);
+                    byte[] row = null;  // Only used for non contiguous scanlines
+                    int offset;
+                    // Write each frame reading directly from its data buffer
+                    for (int f = 0; f < maxFrame; f++) {
+                        if (deltaFrames && writeDeltaFrame(ag, f, writtenFrames,
+                                frameMap, writtenAsDelta, gzfile)) {
+                            continue;
+                        }
+                        raster = ag.getFrame(writtenFrames[f]).getRaster();
+                        data = ((DataBufferByte)raster.getDataBuffer()).getData();
+                        if (FrameBuffers.isContiguous(raster)) {
+                            gzfile.writeBytes(data, 
+                                    FrameBuffers.getScanlineOffset(raster, 0),
+                                    width * height);
+                            continue;
+                        }
+                        for (int y = 0; y < height; y++) {
+                            offset = FrameBuffers.getScanlineOffset(raster, y);
+                            if (offset != -1) {
+                                gzfile.writeBytes(data, offset, width);
+                            } else {
+                                row = (byte[])raster.getDataElements(
+                                        raster.getMinX(), raster.getMinY() + y,
+                                        width, 1, row);
+                                gzfile.writeBytes(row, 0, width);
+                            }
+                        }
                     }   
                 }
                 break;
                 
             case DEPTH_16BPP:
                 {
-                    DataBufferUShort dbus;
                     short[] data;
-                    // Write each frame
-                    for (BufferedImage bi: ag.getFrames()) {
-                        raster = bi.getData();    
-                        dbus = (DataBufferUShort)raster.getDataBuffer();
-                        data = dbus.getData();    
-                        gzfile.writeShorts(data);
+                    short[] row = null; // Only used for non contiguous scanlines
+                    int offset;
+                    // Write each frame reading directly from its data buffer
+                    for (int f = 0; f < maxFrame; f++) {
+                        if (deltaFrames && writeDeltaFrame(ag, f, writtenFrames,
+                                frameMap, writtenAsDelta, gzfile)) {
+                            continue;
+                        }
+                        raster = ag.getFrame(writtenFrames[f]).getRaster();
+                        data = ((DataBufferUShort)raster.getDataBuffer()).getData();
+                        if (FrameBuffers.isContiguous(raster)) {
+                            gzfile.writeShorts(data, 
+                                    FrameBuffers.getScanlineOffset(raster, 0),
+                                    width * height);
+                            continue;
+                        }
+                        for (int y = 0; y < height; y++) {
+                            offset = FrameBuffers.getScanlineOffset(raster, y);
+                            if (offset != -1) {
+                                gzfile.writeShorts(data, offset, width);
+                            } else {
+                                row = (short[])raster.getDataElements(
+                                        raster.getMinX(), raster.getMinY() + y,
+                                        width, 1, row);
+                                gzfile.writeShorts(row, 0, width);
+                            }
+                        }
                     }
                 }
                 break;
         }           
+    }
+    
+    /**
+     * Writes the header of a frame in the delta frames format and, if the
+     * frame can be written as a delta frame, its rectangles and pixels.
+     * @return true if the frame has been written as a delta frame, false if
+     * its full pixels must follow
+     */
+    private boolean writeDeltaFrame(AnimatedGraphic ag, int f, 
+            int[] writtenFrames, int[] frameMap, boolean[] writtenAsDelta, 
+            GZFileWriter gzfile) throws IOException {
+        DeltaFrame delta = ag.getDeltaFrame(writtenFrames[f]);
+        
+        // The base frame must be a full frame in the file too
+        if (delta == null || writtenAsDelta[frameMap[delta.base]]) {
+            gzfile.writeInt(-1);
+            return false;
+        }
+        
+        gzfile.writeInt(frameMap[delta.base]);      // Base frame
+        gzfile.writeInt(delta.getRectCount());      // Number of rectangles
+        for (int r : delta.rects) {                 // x, y, width, height
+            gzfile.writeInt(r);
+        }
+        if (delta.pixels8 != null) {
+            gzfile.writeBytes(delta.pixels8);
+        } else {
+            gzfile.writeShorts(delta.pixels16);
+        }
         
-        gzfile.toFile(file);        
+        writtenAsDelta[f] = true;
+        return true;
     }
 }
@@ -0,0 +1,35 @@
+/* fenixlib - Library to support Fenix Files in Java
+ * Copyright (C) 2007  Daro Cutillas Carrillo
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+/*
+ * FileProber.java
+ *
+ * Created on 14 de abril de 2007
+ */
+
+package fenixlib;
+
+import java.io.IOException;
+
+/**
+ * Implemented by readers which can extract the information of a file from its
+ * header, without reading the whole file.
+ *  @author Daro Cutillas Carrillo (lord_danko at sourceforge.net)
+ */
+public interface FileProber<T> {
+    public T probe() throws IOException;
+}
@@ -36,8 +36,9 @@ import java.io.IOException;
  * @author Daro Cutillas Carrillo (lord_danko at sourceforge.net)
  * @see FileReader
  */
-public class FplReader implements FileReader<Palette> {
+public class FplReader implements FileReader<Palette>, FileProber<PaletteInfo> {
     private final File file;
+    private PalettePool palettePool = null;
     
     /* Version code constants */
     private static final short VERSION_MAJOR = 0x0100;
@@ -50,7 +51,18 @@ public class FplReader implements FileReader<Palette> {
     public FplReader(File f) {
         file = f;
     }
-
+    
+    /**
+     * Sets the pool used to share the palettes of the files read by this 
+     * <code>FplReader</code>. If it is not null, files with the same colors get the
+     * same, immutable, <code>Palette</code> object. By default there is no pool
+     * and each file gets its own palette.
+     * @param pool a <code>PalettePool</code> or null
+     */
+    public void setPalettePool(PalettePool pool) {
+        palettePool = pool;
+    }
+    
     /**
      * Reads the file associated to this <code>FplReader</code> object as if it was
      * an Fpl fenix file and returns a <code>Palette</code> object created
@@ -62,10 +74,54 @@ public class FplReader implements FileReader<Palette> {
      */
     public Palette read() throws IOException {
         GZFileReader buff = new GZFileReader(file);
+        try {
+            return read(buff);
+        } finally {
+            buff.close();
+        }
+    }
+    
+    /**
+     * Reads only the header of the file associated to this <code>FplReader</code>
+     * object, as if it was an Fpl fenix file. Colors are not read.
+     * @return a <code>PaletteInfo</code> object with the information of the file
+     * @see PaletteInfo
+     * @throws java.io.IOException if the file is not a valid Fpl file or it 
+     * couldn't be read for any reason
+     */
+    public PaletteInfo probe() throws IOException {
+        GZFileReader buff = new GZFileReader(file);
+        try {
+            readHeader(buff);
+            return new PaletteInfo(DepthMode.DEPTH_8BPP, 256);
+        } finally {
+            buff.close();
+        }
+    }
+    
+    /**
+     * Reads an Fpl file from an opened <code>GZFileReader</code>.
+     */
+    private Palette read(GZFileReader buff) throws IOException {
         
-        byte[] descriptor = buff.readBytes(16);
+        readHeader(buff);
         
-        Color[] colors = new Color[256];
+        byte[] components = buff.readBytes(768);
+        int[] colors = new int[256];
+        for (int i = 0; i < 256; i++) // Read Colors
+            colors[i] = ((components[3 * i] & 0xff) << 16)
+                    | ((components[3 * i + 1] & 0xff) << 8)
+                    | (components[3 * i + 2] & 0xff);
+        
+        return palettePool != null ? palettePool.intern(colors)
+                : new Palette(colors);
+    } 
+    
+    /**
+     * Reads and checks the header (descriptor, version and depth) of an Fpl file.
+     */
+    private static void readHeader(GZFileReader buff) throws IOException {
+        byte[] descriptor = buff.readBytes(16);
         
         // Check descriptor
         if( FPL_MAGIC.compareTo(new String(descriptor))==0 ) {  
@@ -75,20 +131,11 @@ public class FplReader implements FileReader<Palette> {
             if (versionMajor == VERSION_MAJOR) {
                 // Check depth
                 int depth = buff.readInt();
-                if (depth == 8) {
-                    colors = new Color[256];
-                    for (int i = 0; i < 256; i++) // Read Colors
-                        colors[i] = new Color(
-                                buff.readUnsignedByte(), 
-                                buff.readUnsignedByte(),
-                                buff.readUnsignedByte());
-                } else 	// Unsuported depth
+                if (depth != 8) // Unsuported depth
                     throw new IOException("Unsuported depth");
             } else // Incompatible version 
                 throw new IOException("Incompatible file version");
         } else 	// Invalid FPL descriptor
             throw new IOException("The file is not a valid fpl file");    
-        
-        return new Palette(colors);
-    } 
+    }
 }
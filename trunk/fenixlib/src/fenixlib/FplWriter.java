@@ -61,20 +61,30 @@ public class FplWriter implements FileWriter<Palette> {
      * @throws java.io.IOException if any error occurrs during the writing process
      */ 
     public void write(Palette palette) throws IOException {
-        GZFileWriter gzfile = new GZFileWriter();
-        
+        GZFileWriter gzfile = new GZFileWriter(file);
+        try {
+            write(palette, gzfile);
+        } finally {
+            gzfile.close();
+        }
+    }
+    
+    /**
+     * Writes an Fpl file to an opened <code>GZFileWriter</code>.
+     */
+    private void write(Palette palette, GZFileWriter gzfile) throws IOException {
         gzfile.writeAsciiZ(FPL_MAGIC,16);
         gzfile.writeShort(VERSION_MAJOR);
         gzfile.writeShort(VERSION_MINOR);
         gzfile.writeInt(8); // Depth
         
-        Color[] colors = palette.getColors();
+        int rgb;
         for(int i=0; i<256; i++) {
-            gzfile.writeByte((byte)colors[i].getRed());
-            gzfile.writeByte((byte)colors[i].getGreen());
-            gzfile.writeByte((byte)colors[i].getBlue());
+            rgb = palette.getRGB(i);
+            gzfile.writeByte((byte)(rgb >> 16));
+            gzfile.writeByte((byte)(rgb >> 8));
+            gzfile.writeByte((byte)rgb);
         }
-        gzfile.toFile(file);        
     }
     
 }
@@ -0,0 +1,392 @@
+/* fenixlib - Library to support Fenix Files in Java
+ * Copyright (C) 2007  Daro Cutillas Carrillo
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+/*
+ * FrameBuffers.java
+ *
+ * Created on 13 de abril de 2007
+ */
+
+package fenixlib;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.DirectColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Utility methods to create frames around existing pixel arrays and to access
+ * the arrays backing existing frames, so that pixel data is never copied.
+ * @author Daro Cutillas Carrillo (lord_danko at sourceforge.net)
+ */
+final class FrameBuffers {
+
+    /* The color model of TYPE_USHORT_565_RGB buffered images */
+    private static final DirectColorModel CM_565 =
+            new DirectColorModel(16, 0xf800, 0x07e0, 0x001f);
+
+    private FrameBuffers() {}
+
+    /**
+     * Creates a TYPE_BYTE_INDEXED <code>BufferedImage</code> backed by the
+     * given array.
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param data the pixel data, one byte (palette index) per pixel
+     * @param cm the color model holding the palette
+     * @return a <code>BufferedImage</code> whose data buffer is <code>data</code>
+     */
+    static BufferedImage create8(int width, int height, byte[] data,
+            IndexColorModel cm) {
+        DataBufferByte dbb = new DataBufferByte(data, width * height);
+        WritableRaster raster = Raster.createInterleavedRaster(dbb,
+                width, height, width, 1, new int[] {0}, null);
+
+        return new BufferedImage(cm, raster, false, null);
+    }
+
+    /**
+     * Creates a TYPE_USHORT_565_RGB <code>BufferedImage</code> backed by the
+     * given array.
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param data the pixel data, one 565 short per pixel
+     * @return a <code>BufferedImage</code> whose data buffer is <code>data</code>
+     */
+    static BufferedImage create16(int width, int height, short[] data) {
+        DataBufferUShort dbus = new DataBufferUShort(data, width * height);
+        WritableRaster raster = Raster.createPackedRaster(dbus,
+                width, height, width, CM_565.getMasks(), null);
+
+        return new BufferedImage(CM_565, raster, false, null);
+    }
+
+    /**
+     * Creates a copy of a part of a frame, backed by a new array.
+     * @param frame a TYPE_BYTE_INDEXED or TYPE_USHORT_565_RGB image
+     * @param rect the part to copy, relative to the frame
+     * @return a new frame of the size of <code>rect</code>
+     */
+    static BufferedImage crop(BufferedImage frame, Rectangle rect) {
+        Raster raster = frame.getRaster();
+        Object data = raster.getDataElements(raster.getMinX() + rect.x, 
+                raster.getMinY() + rect.y, rect.width, rect.height, null);
+        
+        if (data instanceof byte[]) {
+            return create8(rect.width, rect.height, (byte[])data, 
+                    (IndexColorModel)frame.getColorModel());
+        }
+        return create16(rect.width, rect.height, (short[])data);
+    }
+    
+    /**
+     * Gets the position, in the data array of the raster, of the first pixel of
+     * a scanline. Offsets of the data buffer and translations of the sample
+     * model (as in rasters of subimages) are taken into account.
+     * @param raster a single band raster
+     * @param y the scanline, relative to the first scanline of the raster
+     * @return the position of the first pixel of the scanline or -1 if the
+     * pixels of the scanline are not contiguous in the data array
+     */
+    static int getScanlineOffset(Raster raster, int y) {
+        SampleModel sm = raster.getSampleModel();
+        int smX = raster.getMinX() - raster.getSampleModelTranslateX();
+        int smY = raster.getMinY() + y - raster.getSampleModelTranslateY();
+        int offset;
+
+        if (sm instanceof ComponentSampleModel) {
+            ComponentSampleModel csm = (ComponentSampleModel)sm;
+            if (csm.getNumBands() != 1 || csm.getPixelStride() != 1)
+                return -1;
+            offset = csm.getOffset(smX, smY);
+        } else if (sm instanceof SinglePixelPackedSampleModel) {
+            offset = ((SinglePixelPackedSampleModel)sm).getOffset(smX, smY);
+        } else {
+            return -1;
+        }
+
+        return raster.getDataBuffer().getOffset() + offset;
+    }
+
+    /**
+     * Tells if all pixels of a raster are contiguous in its data array, so
+     * they can be accessed as a unique block starting at
+     * <code>getScanlineOffset(raster, 0)</code>.
+     * @param raster a single band raster
+     * @return true if there is no gap between the scanlines of the raster
+     */
+    static boolean isContiguous(Raster raster) {
+        int first = getScanlineOffset(raster, 0);
+        int last = getScanlineOffset(raster, raster.getHeight() - 1);
+
+        return first != -1 && last != -1 &&
+                last - first == (raster.getHeight() - 1) * raster.getWidth();
+    }
+
+    /**
+     * Finds frames with identical pixel data. Frames are grouped by a hash of
+     * their pixels and only frames with the same hash are compared. Frames
+     * are accessed one at a time through <code>getFrame</code>, so lazy frames
+     * are not all kept in memory if the graphic has a frame cache.
+     * @param ag the graphic
+     * @param compareColors true if 8bpp frames must also have the same colors
+     * in their color models to be taken as duplicates
+     * @return an array with, for each frame, the index of the first frame
+     * with the same pixels (which is the frame itself if it is unique)
+     */
+    static int[] findDuplicates(AnimatedGraphic ag, boolean compareColors) {
+        int[] first = new int[ag.getFrameCount()];
+        Map<Integer, List<Integer>> candidates = new HashMap<Integer, List<Integer>>();
+        
+        for (int f = 0; f < first.length; f++) {
+            BufferedImage frame = ag.getFrame(f);
+            Integer hash = hashPixels(frame.getRaster());
+            List<Integer> sameHash = candidates.get(hash);
+            
+            first[f] = f;
+            if (sameHash == null) {
+                sameHash = new ArrayList<Integer>(1);
+                candidates.put(hash, sameHash);
+            } else {
+                for (int c : sameHash) {
+                    BufferedImage candidate = ag.getFrame(c);
+                    if (samePixels(candidate.getRaster(), frame.getRaster()) &&
+                            (!compareColors || sameColors(candidate, frame))) {
+                        first[f] = c;
+                        break;
+                    }
+                }
+            }
+            if (first[f] == f) {
+                sameHash.add(f);
+            }
+        }
+        
+        return first;
+    }
+    
+    /**
+     * Tells if two frames have the same colors. 16bpp frames always do, and 
+     * 8bpp frames do if their color models have the same entries.
+     */
+    static boolean sameColors(BufferedImage a, BufferedImage b) {
+        if (a.getColorModel() == b.getColorModel() ||
+                !(a.getColorModel() instanceof IndexColorModel)) {
+            return true;
+        }
+        IndexColorModel cmA = (IndexColorModel)a.getColorModel();
+        IndexColorModel cmB = (IndexColorModel)b.getColorModel();
+        if (cmA.getMapSize() != cmB.getMapSize()) {
+            return false;
+        }
+        int[] rgbA = new int[cmA.getMapSize()];
+        int[] rgbB = new int[cmB.getMapSize()];
+        cmA.getRGBs(rgbA);
+        cmB.getRGBs(rgbB);
+        return Arrays.equals(rgbA, rgbB);
+    }
+    
+    /**
+     * Computes a hash of the pixels of a single band raster.
+     */
+    static int hashPixels(Raster raster) {
+        int width = raster.getWidth();
+        int hash = 1;
+        Object row = null;
+        
+        for (int y = 0; y < raster.getHeight(); y++) {
+            int offset = getScanlineOffset(raster, y);
+            Object data;
+            if (offset != -1) {
+                data = getData(raster);
+            } else {
+                data = row = raster.getDataElements(raster.getMinX(), 
+                        raster.getMinY() + y, width, 1, row);
+                offset = 0;
+            }
+            
+            if (data instanceof byte[]) {
+                byte[] b = (byte[])data;
+                for (int i = offset; i < offset + width; i++)
+                    hash = 31 * hash + b[i];
+            } else {
+                short[] s = (short[])data;
+                for (int i = offset; i < offset + width; i++)
+                    hash = 31 * hash + s[i];
+            }
+        }
+        
+        return hash;
+    }
+    
+    /**
+     * Tells if two single band rasters of the same size and type have the
+     * same pixels.
+     */
+    static boolean samePixels(Raster a, Raster b) {
+        int width = a.getWidth();
+        Object rowA = null, rowB = null;
+        
+        for (int y = 0; y < a.getHeight(); y++) {
+            int offsetA = getScanlineOffset(a, y);
+            int offsetB = getScanlineOffset(b, y);
+            Object dataA, dataB;
+            if (offsetA != -1) {
+                dataA = getData(a);
+            } else {
+                dataA = rowA = a.getDataElements(a.getMinX(), a.getMinY() + y,
+                        width, 1, rowA);
+                offsetA = 0;
+            }
+            if (offsetB != -1) {
+                dataB = getData(b);
+            } else {
+                dataB = rowB = b.getDataElements(b.getMinX(), b.getMinY() + y,
+                        width, 1, rowB);
+                offsetB = 0;
+            }
+            
+            if (dataA instanceof byte[]) {
+                byte[] ba = (byte[])dataA, bb = (byte[])dataB;
+                for (int i = 0; i < width; i++)
+                    if (ba[offsetA + i] != bb[offsetB + i])
+                        return false;
+            } else {
+                short[] sa = (short[])dataA, sb = (short[])dataB;
+                for (int i = 0; i < width; i++)
+                    if (sa[offsetA + i] != sb[offsetB + i])
+                        return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Returns the data array (byte[] or short[]) of a raster whose data buffer
+     * is a <code>DataBufferByte</code> or a <code>DataBufferUShort</code>.
+     */
+    static Object getData(Raster raster) {
+        if (raster.getDataBuffer() instanceof DataBufferByte)
+            return ((DataBufferByte)raster.getDataBuffer()).getData();
+        return ((DataBufferUShort)raster.getDataBuffer()).getData();
+    }
+    
+    /**
+     * Computes the smallest rectangle containing all the opaque pixels of a
+     * single band raster. Pixels whose value is 0 (color index 0 in 8bpp 
+     * graphics and 0x0000 in 16bpp graphics) are transparent.
+     * @param raster the raster
+     * @return the bounds of the opaque pixels, relative to the raster, or an
+     * empty rectangle at (0, 0) if all pixels are transparent
+     */
+    static Rectangle getOpaqueBounds(Raster raster) {
+        int width = raster.getWidth();
+        int minX = width, maxX = -1, minY = -1, maxY = -1;
+        Object row = null;
+        
+        for (int y = 0; y < raster.getHeight(); y++) {
+            int offset = getScanlineOffset(raster, y);
+            Object data;
+            if (offset != -1) {
+                data = getData(raster);
+            } else {
+                data = row = raster.getDataElements(raster.getMinX(), 
+                        raster.getMinY() + y, width, 1, row);
+                offset = 0;
+            }
+            
+            // Only the pixels outside the current horizontal bounds are checked
+            int first = -1, last = -1;
+            if (data instanceof byte[]) {
+                byte[] b = (byte[])data;
+                for (int x = 0; x < minX; x++)
+                    if (b[offset + x] != 0) { first = x; break; }
+                for (int x = width - 1; x > maxX; x--)
+                    if (b[offset + x] != 0) { last = x; break; }
+                if (first == -1 && last == -1 && maxX >= 0 
+                        && !isTransparent(b, offset + minX, maxX - minX + 1))
+                    first = minX;
+            } else {
+                short[] s = (short[])data;
+                for (int x = 0; x < minX; x++)
+                    if (s[offset + x] != 0) { first = x; break; }
+                for (int x = width - 1; x > maxX; x--)
+                    if (s[offset + x] != 0) { last = x; break; }
+                if (first == -1 && last == -1 && maxX >= 0 
+                        && !isTransparent(s, offset + minX, maxX - minX + 1))
+                    first = minX;
+            }
+            
+            if (first != -1 || last != -1) {
+                if (first != -1)
+                    minX = Math.min(minX, first);
+                if (last != -1)
+                    maxX = Math.max(maxX, last);
+                else
+                    maxX = Math.max(maxX, first);
+                if (minY == -1)
+                    minY = y;
+                maxY = y;
+            }
+        }
+        
+        if (minY == -1) {
+            return new Rectangle();
+        }
+        return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+    }
+    
+    /**
+     * Translates the palette indices of a part of an array.
+     * @param data the indices
+     * @param offset the position of the first index to translate
+     * @param length the number of indices to translate
+     * @param table the new value of each index, 256 entries
+     */
+    static void remap(byte[] data, int offset, int length, byte[] table) {
+        for (int i = offset; i < offset + length; i++)
+            data[i] = table[data[i] & 0xff];
+    }
+    
+    private static boolean isTransparent(byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++)
+            if (data[i] != 0)
+                return false;
+        return true;
+    }
+    
+    private static boolean isTransparent(short[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++)
+            if (data[i] != 0)
+                return false;
+        return true;
+    }
+}
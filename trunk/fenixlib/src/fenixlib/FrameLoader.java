@@ -0,0 +1,51 @@
+/* fenixlib - Library to support Fenix Files in Java
+ * Copyright (C) 2007  Daro Cutillas Carrillo
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+/*
+ * FrameLoader.java
+ *
+ * Created on 15 de abril de 2007
+ */
+
+package fenixlib;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Decodes the frames of an <code>AnimatedGraphic</code> which are not loaded
+ * until they are accessed.
+ * @author Daro Cutillas Carrillo (lord_danko at sourceforge.net)
+ * @see AnimatedGraphic
+ */
+interface FrameLoader {
+    
+    /**
+     * Decodes a frame.
+     * @param frameIndex the index of the frame in the <code>AnimatedGraphic</code>
+     * @return a new <code>BufferedImage</code> with the frame
+     * @throws java.io.IOException if the frame couldn't be read
+     */
+    BufferedImage loadFrame(int frameIndex) throws IOException;
+    
+    /**
+     * Releases the resources kept to decode frames. Frames can still be 
+     * decoded after calling this method.
+     * @throws java.io.IOException if the resources couldn't be released
+     */
+    void close() throws IOException;
+}
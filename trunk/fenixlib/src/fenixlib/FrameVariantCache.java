@@ -0,0 +1,265 @@
+/* fenixlib - Library to support Fenix Files in Java
+ * Copyright (C) 2007  Daro Cutillas Carrillo
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+/*
+ * FrameVariantCache.java
+ *
+ * Created on 21 de abril de 2007
+ */
+
+package fenixlib;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of rotated and mirrored versions (variants) of the frames of an
+ * <code>AnimatedGraphic</code>, as they are drawn by keyframes with an angle
+ * and mirroring flags.
+ * 
+ * Angles are expressed in thousandths of degree, as in keyframes, and positive
+ * angles rotate counterclockwise. Angles are rounded to a number of steps per
+ * turn given when the cache is created, so a small number of variants serve
+ * all angles. Frames are mirrored first and then rotated around their center;
+ * rotated frames are as big as needed to contain the whole rotated frame, and
+ * the new pixels are transparent.
+ * 
+ * Rotations by multiples of 90 degrees and mirroring just move pixels. Other
+ * angles are computed with fixed point arithmetic, taking for each pixel the
+ * nearest pixel of the frame (colors are never mixed, so palette indices
+ * remain valid).
+ * 
+ * The cache keeps the most recently used variants up to a maximum size in
+ * bytes. Variants are built from the frames of the graphic at the time they
+ * are requested, so <code>clear</code> must be called if frames are modified.
+ * @author Daro Cutillas Carrillo (lord_danko at sourceforge.net)
+ * @see AnimatedGraphic
+ */
+public class FrameVariantCache {
+    
+    /**
+     * Keyframe flag to mirror the frame horizontally.
+     */
+    public static final int FLAG_HMIRROR = 1;
+    /**
+     * Keyframe flag to mirror the frame vertically.
+     */
+    public static final int FLAG_VMIRROR = 2;
+    
+    private static final int FULL_TURN = 360000;
+    
+    private final AnimatedGraphic ag;
+    private final int angleSteps;
+    private final long maxBytes;
+    private long bytes = 0;
+    
+    /* Variants by frame, angle step and flags, in access order */
+    private final LinkedHashMap<Long, BufferedImage> variants = 
+            new LinkedHashMap<Long, BufferedImage>(16, 0.75f, true);
+    
+    /**
+     * Creates an empty cache.
+     * @param ag the graphic whose frames are transformed
+     * @param angleSteps the number of different angles per turn. For example,
+     * 360 rounds angles to whole degrees.
+     * @param maxBytes the maximum size of the pixels of all cached variants
+     */
+    public FrameVariantCache(AnimatedGraphic ag, int angleSteps, long maxBytes) {
+        if (angleSteps <= 0) {
+            throw new IllegalArgumentException("Invalid number of angle steps: " 
+                    + angleSteps);
+        }
+        this.ag = ag;
+        this.angleSteps = angleSteps;
+        this.maxBytes = maxBytes;
+    }
+    
+    /**
+     * Returns a frame rotated and mirrored. The original frame is returned if
+     * the angle is rounded to 0 and no mirroring flag is set.
+     * @param frameIndex the index of the frame
+     * @param angle the angle, in thousandths of degree
+     * @param flags the keyframe flags. Only <code>FLAG_HMIRROR</code> and 
+     * <code>FLAG_VMIRROR</code> are taken into account.
+     * @return the transformed frame
+     */
+    public BufferedImage getVariant(int frameIndex, int angle, int flags) {
+        int step = quantize(angle);
+        flags &= FLAG_HMIRROR | FLAG_VMIRROR;
+        
+        if (step == 0 && flags == 0) {
+            return ag.getFrame(frameIndex);
+        }
+        
+        Long key = ((long)frameIndex << 32) | ((long)step << 2) | flags;
+        BufferedImage variant = variants.get(key);
+        if (variant == null) {
+            variant = transform(ag.getFrame(frameIndex), 
+                    (long)step * FULL_TURN / angleSteps, flags);
+            variants.put(key, variant);
+            bytes += getBytes(variant);
+            evict();
+        }
+        
+        return variant;
+    }
+    
+    /**
+     * Returns the frame of a keyframe, rotated and mirrored as indicated by
+     * the angle and flags of the keyframe.
+     * @param seqIndex the index of the sequence
+     * @param kfIndex the index of the keyframe in the sequence
+     * @return the transformed frame
+     */
+    public BufferedImage getVariant(int seqIndex, int kfIndex) {
+        return getVariant(ag.getKeyFrameFrameIndex(seqIndex, kfIndex),
+                ag.getKeyFrameAngle(seqIndex, kfIndex),
+                ag.getKeyFrameFlags(seqIndex, kfIndex));
+    }
+    
+    /**
+     * Returns the size of the pixels of all cached variants.
+     * @return the size of the cache in bytes
+     */
+    public long getSize() {
+        return bytes;
+    }
+    
+    /**
+     * Removes all cached variants.
+     */
+    public void clear() {
+        variants.clear();
+        bytes = 0;
+    }
+    
+    private int quantize(int angle) {
+        long step = Math.round((double)angle * angleSteps / FULL_TURN) % angleSteps;
+        return (int)(step < 0 ? step + angleSteps : step);
+    }
+    
+    /* Removes the least recently used variants until the cache fits */
+    private void evict() {
+        Iterator<Map.Entry<Long, BufferedImage>> it = variants.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= getBytes(it.next().getValue());
+            it.remove();
+        }
+    }
+    
+    private static long getBytes(BufferedImage image) {
+        int pixelSize = image.getType() == BufferedImage.TYPE_BYTE_INDEXED ? 1 : 2;
+        return (long)image.getWidth() * image.getHeight() * pixelSize;
+    }
+    
+    /**
+     * Mirrors and rotates a frame.
+     * @param frame a TYPE_BYTE_INDEXED or TYPE_USHORT_565_RGB frame
+     * @param angle the angle in thousandths of degree, from 0 to 359999
+     * @param flags mirroring flags
+     * @return a new frame
+     */
+    static BufferedImage transform(BufferedImage frame, long angle, int flags) {
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        
+        // Exact sine and cosine for multiples of 90 degrees
+        double cos, sin;
+        if (angle % 90000 == 0) {
+            int quadrant = (int)(angle / 90000);
+            cos = (quadrant == 0 ? 1 : quadrant == 2 ? -1 : 0);
+            sin = (quadrant == 1 ? 1 : quadrant == 3 ? -1 : 0);
+        } else {
+            double radians = Math.toRadians(angle / 1000.0);
+            cos = Math.cos(radians);
+            sin = Math.sin(radians);
+        }
+        
+        int newWidth = (int)Math.ceil(
+                Math.abs(width * cos) + Math.abs(height * sin) - 1e-9);
+        int newHeight = (int)Math.ceil(
+                Math.abs(width * sin) + Math.abs(height * cos) - 1e-9);
+        
+        // Pixels of the frame
+        Raster raster = frame.getRaster();
+        Object src;
+        int srcOffset;
+        if (FrameBuffers.isContiguous(raster)) {
+            src = FrameBuffers.getData(raster);
+            srcOffset = FrameBuffers.getScanlineOffset(raster, 0);
+        } else {
+            src = raster.getDataElements(raster.getMinX(), raster.getMinY(),
+                    width, height, null);
+            srcOffset = 0;
+        }
+        
+        // For each pixel of the new frame, the pixel of the frame is found by
+        // rotating the center of the pixel back around the center of the
+        // frames: (x, y) = (x' cos - y' sin, x' sin + y' cos). Coordinates are
+        // fixed point numbers with 16 bits of decimals.
+        int du = toFixed(cos), dv = toFixed(sin);
+        byte[] src8 = null, dst8 = null;
+        short[] src16 = null, dst16 = null;
+        if (src instanceof byte[]) {
+            src8 = (byte[])src;
+            dst8 = new byte[newWidth * newHeight];
+        } else {
+            src16 = (short[])src;
+            dst16 = new short[newWidth * newHeight];
+        }
+        
+        for (int y = 0; y < newHeight; y++) {
+            double rx = 0.5 - newWidth / 2.0;
+            double ry = y + 0.5 - newHeight / 2.0;
+            int u = toFixed(rx * cos - ry * sin + width / 2.0);
+            int v = toFixed(rx * sin + ry * cos + height / 2.0);
+            int pos = y * newWidth;
+            
+            for (int x = 0; x < newWidth; x++, u += du, v += dv, pos++) {
+                int sx = u >> 16;
+                int sy = v >> 16;
+                if (sx < 0 || sy < 0 || sx >= width || sy >= height)
+                    continue;
+                if ((flags & FLAG_HMIRROR) != 0)
+                    sx = width - 1 - sx;
+                if ((flags & FLAG_VMIRROR) != 0)
+                    sy = height - 1 - sy;
+                
+                int srcPos = srcOffset + sy * width + sx;
+                if (src8 != null)
+                    dst8[pos] = src8[srcPos];
+                else
+                    dst16[pos] = src16[srcPos];
+            }
+        }
+        
+        if (dst8 != null) {
+            return FrameBuffers.create8(newWidth, newHeight, dst8, 
+                    (IndexColorModel)frame.getColorModel());
+        }
+        return FrameBuffers.create16(newWidth, newHeight, dst16);
+    }
+    
+    private static int toFixed(double value) {
+        return (int)Math.floor(value * 65536 + 0.5);
+    }
+}
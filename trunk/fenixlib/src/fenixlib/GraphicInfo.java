@@ -0,0 +1,101 @@
+/* fenixlib - Library to support Fenix Files in Java
+ * Copyright (C) 2007  Daro Cutillas Carrillo
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+/*
+ * GraphicInfo.java
+ *
+ * Created on 14 de abril de 2007
+ */
+
+package fenixlib;
+
+/**
+ * A class to be used as an read-only structure with information about a graphic
+ * file, obtained from its header. <code>MapReader</code> and <code>FbmReader</code>
+ * return objects of this class when probing files.
+ * @author Daro Cutillas Carrillo (lord_danko at sourceforge.net)
+ * @see FileProber
+ */
+public final class GraphicInfo {
+    /**
+     * The name of the graphic.
+     */
+    public final String name;
+    /**
+     * The width of the graphic.
+     */
+    public final int width;
+    /**
+     * The height of the graphic.
+     */
+    public final int height;
+    /**
+     * The depth of the graphic.
+     */
+    public final DepthMode depth;
+    /**
+     * The id of the graphic.
+     */
+    public final int id;
+    /**
+     * The flags of the graphic.
+     */
+    public final int flags;
+    /**
+     * The number of frames stored in the file.
+     */
+    public final int nFrames;
+    /**
+     * The number of sequences stored in the file.
+     */
+    public final int nSequences;
+    /**
+     * The number of keyframes stored in the file, counting all sequences.
+     */
+    public final int nKeyFrames;
+    
+    private final ControlPoint[] controlPoints;
+    
+    GraphicInfo(String name, int width, int height, DepthMode depth, int id,
+            int flags, int nFrames, int nSequences, int nKeyFrames,
+            ControlPoint[] controlPoints) {
+        this.name = name;
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.id = id;
+        this.flags = flags;
+        this.nFrames = nFrames;
+        this.nSequences = nSequences;
+        this.nKeyFrames = nKeyFrames;
+        this.controlPoints = controlPoints;
+    }
+    
+    /**
+     * Returns an array with the control points defined in the file.
+     * @return an array of <code>ControlPoint</code> objects, which are copies
+     * of the control points of the file
+     */
+    public ControlPoint[] getControlPoints() {
+        ControlPoint[] cps = new ControlPoint[controlPoints.length];
+        for (int i = 0; i < cps.length; i++) {
+            cps[i] = new ControlPoint(controlPoints[i].getIndex(), 
+                    controlPoints[i].getX(), controlPoints[i].getY());
+        }
+        return cps;
+    }
+}
@@ -36,11 +36,35 @@ import javax.imageio.ImageIO;
 public class ImageIOReader implements FileReader<AnimatedGraphic> {
     
     private File file;
+    private PalettePool palettePool = null;
+    private ColorQuantizer quantizer = null;
     
     public ImageIOReader(File f) {
         file = f;
     }
     
+    /**
+     * Sets the pool used to share the palettes of the files read by this 
+     * <code>ImageIOReader</code>. If it is not null, files with the same colors get the
+     * same, immutable, <code>Palette</code> object. By default there is no pool
+     * and each file gets its own palette.
+     * @param pool a <code>PalettePool</code> or null
+     */
+    public void setPalettePool(PalettePool pool) {
+        palettePool = pool;
+    }
+    
+    /**
+     * Sets the quantizer used to convert images which are neither 8bpp indexed
+     * nor 16bpp 565 images. If it is null (the default), those images are 
+     * converted to 16bpp graphics. Otherwise they are converted to 8bpp 
+     * graphics with the palette chosen by the quantizer.
+     * @param quantizer a <code>ColorQuantizer</code> or null
+     */
+    public void setQuantizer(ColorQuantizer quantizer) {
+        this.quantizer = quantizer;
+    }
+    
     public AnimatedGraphic read() throws IOException {
         
         AnimatedGraphic ag;
@@ -68,29 +92,28 @@ public class ImageIOReader implements FileReader<AnimatedGraphic> {
             // Get the indexed color model associated to the BufferedImage
             IndexColorModel cm = (IndexColorModel)buffImage.getColorModel();
             
-            // Get componets
-            byte[] reds = new byte[cm.getMapSize()],
-                    blues = new byte[cm.getMapSize()],
-                    greens = new byte[cm.getMapSize()];
-            cm.getReds(reds);
-            cm.getGreens(greens);
-            cm.getBlues(blues);
-            
-            // Only consider
-            int nColors = java.lang.Math.min(cm.getMapSize(), 256); 
-            
-            // Create an empty palette and set its colors
-            Palette palette = new Palette();
-            for (int i = 0; i < nColors; i++)
-                palette.getColor(i).setRGB( 
-                        ((int)reds[i]) & 0xFF,
-                        ((int)greens[i]) & 0xFF,
-                        ((int)blues[i]) & 0xFF
-                        );
-                //palette.setColor(0, new Color(reds[i], greens[i], blues[i]));
-            
-            // The frame is directly the buffered image
-            frame = buffImage;
+            // Only consider the first 256 colors
+            int[] colors = new int[cm.getMapSize()];
+            cm.getRGBs(colors);
+            if (colors.length > 256) {
+                int[] first = new int[256];
+                System.arraycopy(colors, 0, first, 0, 256);
+                colors = first;
+            }
+            
+            // Create a palette from the packed colors
+            Palette palette;
+            if (palettePool != null) {
+                // The frame uses the color model of the shared palette
+                palette = palettePool.intern(colors);
+                frame = new BufferedImage(palette.getColorModel(), 
+                        buffImage.getRaster(), false, null);
+            } else {
+                palette = new Palette(colors);
+                
+                // The frame is directly the buffered image
+                frame = buffImage;
+            }
             
             // Create an 8bpp animated graphic
             ag = AnimatedGraphic.create8(
@@ -110,6 +133,22 @@ public class ImageIOReader implements FileReader<AnimatedGraphic> {
                 buffImage.getHeight()
                 );
             
+        } else if (quantizer != null) { // Quantize other images to 8bpp
+            
+            BufferedImage[] images = new BufferedImage[] {buffImage};
+            Palette palette = quantizer.createPalette(images);
+            if (palettePool != null)
+                palette = palettePool.intern(palette);
+            
+            frame = quantizer.toIndexed(buffImage, palette);
+            
+            // Create an 8bpp animated graphic
+            ag = AnimatedGraphic.create8(
+                buffImage.getWidth(),
+                buffImage.getHeight(),
+                palette
+                );
+            
         } else { // If the image has a type other than the previous, convert it to 16bpp
             
             // Create a compatible BufferedImage
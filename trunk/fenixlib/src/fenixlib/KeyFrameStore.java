@@ -0,0 +1,120 @@
+/* fenixlib - Library to support Fenix Files in Java
+ * Copyright (C) 2007  Daro Cutillas Carrillo
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+/*
+ * KeyFrameStore.java
+ *
+ * Created on 16 de abril de 2007
+ */
+
+package fenixlib;
+
+/**
+ * Stores the keyframes of all sequences of an <code>AnimatedGraphic</code> in
+ * parallel arrays of primitives, as they are laid out in an Fbm file: keyframes
+ * of a sequence are contiguous and each sequence knows the position of its
+ * first keyframe and the number of keyframes it has.
+ * 
+ * Arrays are accessed directly by other classes of the package. Only the first
+ * <code>size</code> positions of keyframe arrays and the first 
+ * <code>nSequences</code> positions of sequence arrays are valid.
+ * @author Daro Cutillas Carrillo (lord_danko at sourceforge.net)
+ * @see AnimatedGraphic
+ */
+final class KeyFrameStore {
+    
+    /* Keyframe data */
+    int[] frameIndex = new int[16];
+    int[] flags = new int[16];
+    int[] angle = new int[16];
+    int[] pause = new int[16];
+    int size = 0;
+    
+    /* Sequence data: position of the first keyframe and number of keyframes */
+    int[] seqFirst = new int[4];
+    int[] seqCount = new int[4];
+    int nSequences = 0;
+    
+    /**
+     * Adds an empty sequence after the existing ones.
+     */
+    void addSequence() {
+        if (nSequences == seqFirst.length) {
+            seqFirst = grow(seqFirst, nSequences * 2);
+            seqCount = grow(seqCount, nSequences * 2);
+        }
+        seqFirst[nSequences] = size;
+        seqCount[nSequences] = 0;
+        nSequences++;
+    }
+    
+    /**
+     * Adds a keyframe at the end of a sequence. Keyframes of the following
+     * sequences are moved one position.
+     */
+    void add(int seq, int frameIndex, int flags, int angle, int pause) {
+        checkSequence(seq);
+        
+        if (size == this.frameIndex.length) {
+            this.frameIndex = grow(this.frameIndex, size * 2);
+            this.flags = grow(this.flags, size * 2);
+            this.angle = grow(this.angle, size * 2);
+            this.pause = grow(this.pause, size * 2);
+        }
+        
+        int pos = seqFirst[seq] + seqCount[seq];
+        if (pos < size) { // Make room for the keyframe
+            System.arraycopy(this.frameIndex, pos, this.frameIndex, pos + 1, size - pos);
+            System.arraycopy(this.flags, pos, this.flags, pos + 1, size - pos);
+            System.arraycopy(this.angle, pos, this.angle, pos + 1, size - pos);
+            System.arraycopy(this.pause, pos, this.pause, pos + 1, size - pos);
+        }
+        for (int s = seq + 1; s < nSequences; s++) // Even if they are empty
+            seqFirst[s]++;
+        
+        this.frameIndex[pos] = frameIndex;
+        this.flags[pos] = flags;
+        this.angle[pos] = angle;
+        this.pause[pos] = pause;
+        seqCount[seq]++;
+        size++;
+    }
+    
+    /**
+     * Returns the position in the keyframe arrays of a keyframe of a sequence.
+     * @throws IndexOutOfBoundsException if the sequence or the keyframe do not exist
+     */
+    int indexOf(int seq, int kf) {
+        checkSequence(seq);
+        if (kf < 0 || kf >= seqCount[seq]) {
+            throw new IndexOutOfBoundsException("Invalid keyframe index: " + kf);
+        }
+        return seqFirst[seq] + kf;
+    }
+    
+    void checkSequence(int seq) {
+        if (seq < 0 || seq >= nSequences) {
+            throw new IndexOutOfBoundsException("Invalid sequence index: " + seq);
+        }
+    }
+    
+    private static int[] grow(int[] array, int length) {
+        int[] newArray = new int[length];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+}
@@ -29,11 +29,7 @@ import static fenixlib.FenixlibConstants.MAP_MAGIC;
 import static fenixlib.FenixlibConstants.M16_MAGIC;
 
 import java.awt.image.BufferedImage;
-import java.awt.image.DataBuffer;
-import java.awt.image.DataBufferByte;
-import java.awt.image.DataBufferUShort;
 import java.awt.image.IndexColorModel;
-import java.awt.image.Raster;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -44,9 +40,11 @@ import java.util.ArrayList;
  * @author Daro Cutillas Carrillo (lord_danko at sourceforge.net)
  * @see FileReader
  */
-public class MapReader implements FileReader<AnimatedGraphic> {
+public class MapReader implements FileReader<AnimatedGraphic>,
+        FileProber<GraphicInfo> {
     
     private final File file;
+    private PalettePool palettePool = null;
     
     /**
      * Constructs a new <code>MapReader</code> associated to the specified file.
@@ -56,6 +54,17 @@ public class MapReader implements FileReader<AnimatedGraphic> {
         file = f;
     }
     
+    /**
+     * Sets the pool used to share the palettes of the files read by this 
+     * <code>MapReader</code>. If it is not null, files with the same colors get the
+     * same, immutable, <code>Palette</code> object. By default there is no pool
+     * and each file gets its own palette.
+     * @param pool a <code>PalettePool</code> or null
+     */
+    public void setPalettePool(PalettePool pool) {
+        palettePool = pool;
+    }
+    
     /**
      * Reads the file associated to this <code>MapReader</code> object as if it was
      * a Map fenix file and returns an <code>AnimatedGraphic</code> object created
@@ -67,28 +76,30 @@ public class MapReader implements FileReader<AnimatedGraphic> {
      */
     public AnimatedGraphic read() throws IOException {
         GZFileReader gzfile = new GZFileReader(file);
+        try {
+            return read(gzfile);
+        } finally {
+            gzfile.close();
+        }
+    }
+    
+    /**
+     * Reads a Map file from an opened <code>GZFileReader</code>.
+     */
+    private AnimatedGraphic read(GZFileReader gzfile) throws IOException {
         
         String name;
-        String descriptor;
         int width, height, id;
         
         DepthMode depth;
         Palette palette;
         
         BufferedImage buffImage = null;
-        DataBuffer dataBuffer = null; // Stores image internaly as bytes        
         
         AnimatedGraphic ag = null;
         
         // Read and check descriptor
-        descriptor = new String(gzfile.readBytes(8));
-        if( MAP_MAGIC.compareToIgnoreCase(descriptor)==0 ) { // 8bpp MAP
-            depth = DepthMode.DEPTH_8BPP;
-        } else if( M16_MAGIC.compareToIgnoreCase(descriptor)==0 ) { // 16bpp Map
-            depth = DepthMode.DEPTH_16BPP;
-        } else	/* Incompatible format */ {
-            throw new IOException("The file is not a valid map file");
-        }
+        depth = readDepth(gzfile);
         
         // Read width, height, id and name of the map
         width = gzfile.readUnsignedShort();
@@ -99,90 +110,43 @@ public class MapReader implements FileReader<AnimatedGraphic> {
         // Read palette if 8bpp
         palette = null;
         if(depth == DepthMode.DEPTH_8BPP)	{
-            Color[] colors = new Color[256];
+            byte[] components = gzfile.readBytes(768);
+            int[] colors = new int[256];
             for(int i = 0; i < 256; i++)
-                colors[i] = new Color(
-                        gzfile.readUnsignedByte() << 2,
-                        gzfile.readUnsignedByte() << 2,
-                        gzfile.readUnsignedByte() << 2
-                        );
-            palette = new Palette(colors);
+                colors[i] = ((components[3 * i] & 0x3f) << 18)
+                        | ((components[3 * i + 1] & 0x3f) << 10)
+                        | ((components[3 * i + 2] & 0x3f) << 2);
+            palette = palettePool != null ? palettePool.intern(colors)
+                    : new Palette(colors);
             gzfile.skip(576); // This 576 bytes are useless in Fenix
         }
         
-        /*  CONTROL POINTS */
-        /*  Flags: First 12 bits of the short integer tells us the number of
-            stored control points. Bit 13 tells if there is animation or not, 
-            but since map animation is not actually supported by fenix we 
-            consider this an error.
-         */
-        ArrayList<ControlPoint> controlPoints = new ArrayList<ControlPoint>();
-        {
-            short nFlags = gzfile.readShort();
-            int nPoints = nFlags & 0xfff; // Number of Control Points 
-            if ((nFlags >> 12) != 0) // Animation bit set to one
-                throw new IOException("Map animation is not supported");
-            
-            if  (nPoints>0) { // Read all control points
-                short cX, cY;
-                for (int i = 0; i < nPoints; i++) {
-                    cX = gzfile.readShort();
-                    cY = gzfile.readShort();
-                    // Only create the Control Point if it is not the invalid CP (-1,-1)
-                    if (cX != -1 && cY != -1) {
-                        controlPoints.add (new ControlPoint(i, (int)cX, (int)cY));
-                    }
-                }
-                
-            }
-        }
+        // Control points
+        ArrayList<ControlPoint> controlPoints = readControlPoints(gzfile);
         
         /* MAP PIXEL DATA
-         * First create the buffered image. Then create a <Type>Buffer to 
-         * store pixel data and  set our BufferedImage data by
-         * creating a Raster object containing the ByteBuffer information
+         * The buffered image is created around the array of pixel data read
+         * from the file, so pixels are not copied again.
          */
         switch (depth) {
             case DEPTH_8BPP:
-                // Obtain pixel data and create the buffer    
-                {
-                    byte[] data = gzfile.readBytes(width * height); 
-                    dataBuffer =  new DataBufferByte(data, data.length);
-                }   
-                
-                // Create an IndexColorModel to store the 256 color palette
-                IndexColorModel cm = new IndexColorModel(8, 256, 
-                        palette.getRedComponents(),
-                        palette.getGreenComponents(), 
-                        palette.getBlueComponents()
-                        );      
+                // The IndexColorModel of the 256 color palette
+                IndexColorModel cm = palette.getColorModel();
                 
-                // Create a BufferedImage compatible with the IndexColorModel
-                buffImage = new BufferedImage(width, height,
-                        BufferedImage.TYPE_BYTE_INDEXED, cm);  
+                // Obtain pixel data and create a BufferedImage which uses it
+                buffImage = FrameBuffers.create8(width, height,
+                        gzfile.readBytes(width * height), cm);
                 
                 break;
             
             case DEPTH_16BPP:
-                // Obtain pixel data and create the buffer
-                {    
-                    short[] data = gzfile.readShorts(width * height);
-                    dataBuffer = new DataBufferUShort(data, data.length);
-                }
-                
-                // Create a BufferedImage compatible with the IndexColorModel
-                buffImage = new BufferedImage(width, height,
-                        BufferedImage.TYPE_USHORT_565_RGB);
+                // Obtain pixel data and create a BufferedImage which uses it
+                buffImage = FrameBuffers.create16(width, height,
+                        gzfile.readShorts(width * height));
             
                 break;
         }
         
-        // Set data to the BufferedImage
-        buffImage.setData(Raster.createRaster(
-                buffImage.getSampleModel(), dataBuffer, 
-                new java.awt.Point(0,0)
-                ));        
-        
         // Create the AnimatedGraphic
         if (depth == DepthMode.DEPTH_8BPP) {
             ag = AnimatedGraphic.create8(width, height, palette);
@@ -207,4 +171,81 @@ public class MapReader implements FileReader<AnimatedGraphic> {
         return ag;
     }
     
+    /**
+     * Reads only the header of the file associated to this <code>MapReader</code>
+     * object (descriptor, properties and control points), as if it was a Map
+     * fenix file. Pixel data is neither read nor decompressed.
+     * @return a <code>GraphicInfo</code> object with the information of the file
+     * @see GraphicInfo
+     * @throws java.io.IOException if the file is not a valid Map file or it couldn't 
+     * be read for any reason
+     */
+    public GraphicInfo probe() throws IOException {
+        GZFileReader gzfile = new GZFileReader(file);
+        try {
+            DepthMode depth = readDepth(gzfile);
+            int width = gzfile.readUnsignedShort();
+            int height = gzfile.readUnsignedShort();
+            int id = gzfile.readInt();
+            String name = gzfile.readAsciiZ(32);
+            
+            if (depth == DepthMode.DEPTH_8BPP)
+                gzfile.skip(768 + 576); // Palette and useless gamma data
+            
+            ArrayList<ControlPoint> controlPoints = readControlPoints(gzfile);
+            
+            // A map is a single frame in a single sequence
+            return new GraphicInfo(name, width, height, depth, id, 0, 1, 1, 1,
+                    controlPoints.toArray(new ControlPoint[0]));
+        } finally {
+            gzfile.close();
+        }
+    }
+    
+    /**
+     * Reads the descriptor of a Map file and returns the depth it indicates.
+     */
+    private static DepthMode readDepth(GZFileReader gzfile) throws IOException {
+        String descriptor = new String(gzfile.readBytes(8));
+        if( MAP_MAGIC.compareToIgnoreCase(descriptor)==0 ) { // 8bpp MAP
+            return DepthMode.DEPTH_8BPP;
+        } else if( M16_MAGIC.compareToIgnoreCase(descriptor)==0 ) { // 16bpp Map
+            return DepthMode.DEPTH_16BPP;
+        } else	/* Incompatible format */ {
+            throw new IOException("The file is not a valid map file");
+        }
+    }
+    
+    /**
+     * Reads the control points section of a Map file.
+     */
+    private static ArrayList<ControlPoint> readControlPoints(GZFileReader gzfile)
+            throws IOException {
+        ArrayList<ControlPoint> controlPoints = new ArrayList<ControlPoint>();
+        
+        /*  Flags: First 12 bits of the short integer tells us the number of
+            stored control points. Bit 13 tells if there is animation or not, 
+            but since map animation is not actually supported by fenix we 
+            consider this an error.
+         */
+        short nFlags = gzfile.readShort();
+        int nPoints = nFlags & 0xfff; // Number of Control Points 
+        if ((nFlags >> 12) != 0) // Animation bit set to one
+            throw new IOException("Map animation is not supported");
+        
+        if  (nPoints>0) { // Read all control points
+            short cX, cY;
+            for (int i = 0; i < nPoints; i++) {
+                cX = gzfile.readShort();
+                cY = gzfile.readShort();
+                // Only create the Control Point if it is not the invalid CP (-1,-1)
+                if (cX != -1 && cY != -1) {
+                    controlPoints.add (new ControlPoint(i, (int)cX, (int)cY));
+                }
+            }
+            
+        }
+        return controlPoints;
+    }
+    
 }
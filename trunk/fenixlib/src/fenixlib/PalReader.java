@@ -37,8 +37,9 @@ import java.io.IOException;
  * @author Daro Cutillas Carrillo (lord_danko at sourceforge.net)
  * @see FileReader
  */
-public class PalReader implements FileReader<Palette> {    
+public class PalReader implements FileReader<Palette>, FileProber<PaletteInfo> {
     private final File file;
+    private PalettePool palettePool = null;
 
     /**
      * Constructs a new <code>PalReader</code> associated to the specified file.
@@ -48,6 +49,17 @@ public class PalReader implements FileReader<Palette> {
         file = f;
     }
     
+    /**
+     * Sets the pool used to share the palettes of the files read by this 
+     * <code>PalReader</code>. If it is not null, files with the same colors get the
+     * same, immutable, <code>Palette</code> object. By default there is no pool
+     * and each file gets its own palette.
+     * @param pool a <code>PalettePool</code> or null
+     */
+    public void setPalettePool(PalettePool pool) {
+        palettePool = pool;
+    }
+    
     /**
      * Reads the file associated to this <code>PalReader</code> object as if it was
      * a Pal fenix file and returns a <code>Palette</code> object created
@@ -59,22 +71,59 @@ public class PalReader implements FileReader<Palette> {
      */
     public Palette read() throws IOException {
         GZFileReader buff = new GZFileReader(file);
+        try {
+            return read(buff);
+        } finally {
+            buff.close();
+        }
+    }
+    
+    /**
+     * Reads only the header of the file associated to this <code>PalReader</code>
+     * object, as if it was a Pal fenix file. Colors are not read.
+     * @return a <code>PaletteInfo</code> object with the information of the file
+     * @see PaletteInfo
+     * @throws java.io.IOException if the file is not a valid Pal file or it 
+     * couldn't be read for any reason
+     */
+    public PaletteInfo probe() throws IOException {
+        GZFileReader buff = new GZFileReader(file);
+        try {
+            readHeader(buff);
+            return new PaletteInfo(DepthMode.DEPTH_8BPP, 256);
+        } finally {
+            buff.close();
+        }
+    }
+    
+    /**
+     * Reads a Pal file from an opened <code>GZFileReader</code>.
+     */
+    private Palette read(GZFileReader buff) throws IOException {
+        
+        readHeader(buff);
+        
+        // Read all colors
+        byte[] components = buff.readBytes(768);
+        int[] colors = new int[256];
+        for(int i=0; i<256; i++)	
+            colors[i] = ((components[3 * i] & 0x3f) << 18)
+                    | ((components[3 * i + 1] & 0x3f) << 10)
+                    | ((components[3 * i + 2] & 0x3f) << 2);
         
+        return palettePool != null ? palettePool.intern(colors)
+                : new Palette(colors);
+    }
+    
+    /**
+     * Reads and checks the descriptor of a Pal file.
+     */
+    private static void readHeader(GZFileReader buff) throws IOException {
         byte[] descriptor = buff.readBytes(8);
-        Color[] colors = new Color [256];
         
         // Check descriptor
-        if (PAL_MAGIC.equals (new String(descriptor).toLowerCase())) { 
-            // Read all colors
-            for(int i=0; i<256; i++)	
-                colors[i] = new Color(
-                        (int)buff.readUnsignedByte() << 2, 
-                        (int)buff.readUnsignedByte() << 2,
-                        (int)buff.readUnsignedByte() << 2);
-        } else // Invalid PAL descriptor
+        if (!PAL_MAGIC.equals (new String(descriptor).toLowerCase())) // Invalid PAL descriptor
             throw new IOException("The file is not a valid pal file");
-        
-        return new Palette(colors);
     }
     
 }
@@ -24,39 +24,81 @@
 
 package fenixlib;
 
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
 /**
  * A class that defines a 256 color palette and provides methods for accesing these
  * colors.
+ * 
+ * Colors are stored packed as 0xRRGGBB integers. The <code>IndexColorModel</code>
+ * used by the frames of 8bpp graphics is built from them only when needed, and
+ * shared until a color of the palette changes.
+ * 
+ * Changes of colors and the objects built from them (color models, matchers
+ * and blend and fade tables) are synchronized on the palette, so they are 
+ * always built from the current colors even if the palette is modified from
+ * another thread.
  * @author Daro Cutillas Carrillo (lord_danko at sourceforge.net)
  */
 public class Palette {
-    Color[] colors = new Color[256];
+    
+    /* Maximum number of fade tables kept. The least recently used is discarded */
+    private static final int MAX_FADE_TABLES = 64;
+    
+    private final int[] rgb = new int[256];
+    
+    /* Views of the entries of the palette, created when first requested */
+    private final Color[] views = new Color[256];
+    
+    /* Built from rgb when first requested, null after a color changes */
+    private IndexColorModel colorModel = null;
+    
+    /* Built when first requested, null after a color changes */
+    private ColorMatcher colorMatcher = null;
+    
+    /* Built when first requested, discarded after a color changes. There can
+     * be at most 256 blend tables, but fade tables are bounded by an LRU */
+    private Map<Integer, BlendTable> blendTables = null;
+    private Map<Long, FadeTable> fadeTables = null;
+    
+    /* Set for palettes shared through a PalettePool */
+    private boolean immutable = false;
     
     /**
      * Creates a <code>Palette</code> and initialize all colors to black (0,0,0).
      */
     public Palette() {
-        for(int i=0; i<256; i++)
-            colors[i] = new Color(0, 0, 0);
     }
     
     /**
      * Creates a <code>Palette</code> so its colors are set from the <code>colors</code> 
-     * color array. The color array is copied  so changes in the palette will 
-     * not affect the original array. If the color array has less than 256 colors, 
-     * the palette is completed with black entries.
+     * color array. The values of the colors are copied, so the palette does not
+     * share <code>Color</code> objects with the array (not even if the array was
+     * returned by <code>getColors</code> of another palette) and changes in one
+     * of them will not affect the other. If the color array has less than 256 
+     * colors, the palette is completed with black entries.
      * @param colors the color array
      */
     public Palette(Color[] colors){
-        this();
-        System.arraycopy(colors,0,this.colors,0,colors.length);
+        for (int i = 0; i < colors.length; i++)
+            rgb[i] = (colors[i].getRed() << 16) | (colors[i].getGreen() << 8) 
+                    | colors[i].getBlue();
     }
     
-    /** Creates a palette from another palette. Changes in one of the palettes will 
-     *  affect the other 
+    /**
+     * Creates a <code>Palette</code> from an array of packed colors. The array 
+     * is copied. If it has less than 256 colors, the palette is completed with
+     * black entries.
+     * @param rgb the colors, as 0xRRGGBB integers. Upper bits are ignored.
      */
-    Palette(Palette palette) {
-        colors = palette.getColors();
+    public Palette(int[] rgb) {
+        for (int i = 0; i < rgb.length; i++)
+            this.rgb[i] = rgb[i] & 0xffffff;
     }
     
     /**
@@ -68,7 +110,10 @@ public class Palette {
      * color at the given position
      */
     public Color getColor(int index) {
-        return colors[index];
+        if (views[index] == null) {
+            views[index] = new Color(this, index);
+        }
+        return views[index];
     }
     
     /**
@@ -77,39 +122,195 @@ public class Palette {
      * object will not affect the color in the palette.
      * @param index the index of the color to be set
      * @param c a <code>Color</code>, representing the color to be set
+     * @throws UnsupportedOperationException if the palette is immutable
      */
     public void setColor(int index, Color c) {
-        colors[index] = c.getCopy();
+        setRGB(index, (c.getRed() << 16) | (c.getGreen() << 8) | c.getBlue());
     }
     
     /**	Returns the entire palette colors as an array of <code>Color</code> objects. 
-     *  Changes made to this array will result in changes
-     *	in the palette.
+     *  The colors of the array are views of the palette (see <code>getColor</code>),
+     *  so changing them changes the palette. The array itself is a new array
+     *  which is not backed by the palette: assigning its elements has no effect
+     *  on the palette, so <code>setColor</code> must be used instead.
      *	@return a <code>Color</code> array representing the entire palette.
      */
     public Color[] getColors() {
+        Color[] colors = new Color[256];
+        for (int i = 0; i < 256; i++)
+            colors[i] = getColor(i);
         return colors;
     }
     
-    /** The following functions return an array containing all Red, Green or Blue 
-        components 
+    /**
+     * Returns a color of the palette packed in an integer.
+     * @param index the index of the color in the palette
+     * @return the color as a 0xRRGGBB integer
+     */
+    public int getRGB(int index) {
+        return rgb[index];
+    }
+    
+    /**
+     * Sets a color of the palette from a packed integer.
+     * @param index the index of the color in the palette
+     * @param rgb the color as a 0xRRGGBB integer. Upper bits are ignored.
+     * @throws UnsupportedOperationException if the palette is immutable
+     */
+    public synchronized void setRGB(int index, int rgb) {
+        if (immutable) {
+            throw new UnsupportedOperationException(
+                    "The palette is shared and can't be modified");
+        }
+        rgb &= 0xffffff;
+        if (this.rgb[index] != rgb) {
+            this.rgb[index] = rgb;
+            colorModel = null;
+            colorMatcher = null;
+            blendTables = null;
+            fadeTables = null;
+        }
+    }
+    
+    /**
+     * Copies all colors of the palette, packed as 0xRRGGBB integers, into an 
+     * array.
+     * @param rgb an array with room for 256 colors
      */
-    byte[] getRedComponents() {
-        byte[] bytes = new byte[256];
-        for(int i=0; i<256; i++)
-            bytes[i]=(byte)colors[i].getRed();
-        return bytes;
+    public synchronized void getRGBs(int[] rgb) {
+        System.arraycopy(this.rgb, 0, rgb, 0, 256);
     }
-    byte[] getGreenComponents() {
-        byte[] bytes = new byte[256];
-        for(int i=0; i<256; i++)
-            bytes[i]=(byte)colors[i].getGreen();
-        return bytes;
+    
+    /**
+     * Returns an <code>IndexColorModel</code> with the colors of the palette. The
+     * same object is returned until a color of the palette changes.
+     * @return an 8 bit <code>IndexColorModel</code> of 256 opaque colors
+     */
+    public synchronized IndexColorModel getColorModel() {
+        IndexColorModel cm = colorModel;
+        if (cm == null) {
+            cm = new IndexColorModel(8, 256, rgb, 0, false, -1, 
+                    DataBuffer.TYPE_BYTE);
+            colorModel = cm;
+        }
+        return cm;
+    }
+    
+    /**
+     * Returns a <code>ColorMatcher</code> to find the nearest colors of this 
+     * palette. The same object is returned until a color of the palette 
+     * changes.
+     * @return a <code>ColorMatcher</code> for the current colors
+     */
+    public synchronized ColorMatcher getColorMatcher() {
+        ColorMatcher matcher = colorMatcher;
+        if (matcher == null) {
+            matcher = new ColorMatcher(this);
+            colorMatcher = matcher;
+        }
+        return matcher;
+    }
+    
+    /**
+     * Returns the table to blend pixels of this palette with a given opacity.
+     * The table is built the first time it is requested and kept until a 
+     * color of the palette changes.
+     * @param opacity the weight of the source color, from 0 to 255
+     * @return the <code>BlendTable</code> for the current colors
+     * @throws IllegalArgumentException if the opacity is not valid
+     */
+    public BlendTable getBlendTable(int opacity) {
+        return getBlendTable(opacity, null);
+    }
+    
+    /**
+     * Returns the table to blend pixels of this palette with a given opacity,
+     * building it in parallel if it is not built yet.
+     * @param opacity the weight of the source color, from 0 to 255
+     * @param executor the executor to build the table, or null to build it
+     * in the calling thread
+     * @return the <code>BlendTable</code> for the current colors
+     * @throws IllegalArgumentException if the opacity is not valid
+     */
+    public synchronized BlendTable getBlendTable(int opacity, 
+            ExecutorService executor) {
+        if (opacity < 0 || opacity > 255) {
+            throw new IllegalArgumentException("Invalid opacity: " + opacity);
+        }
+        if (blendTables == null) {
+            blendTables = new HashMap<Integer, BlendTable>();
+        }
+        
+        BlendTable table = blendTables.get(opacity);
+        if (table == null) {
+            table = new BlendTable(this, opacity, executor);
+            blendTables.put(opacity, table);
+        }
+        return table;
+    }
+    
+    /**
+     * Returns the tables to fade pixels of this palette towards a color. The
+     * tables are built the first time they are requested and kept until a 
+     * color of the palette changes. Only the 64 most recently used tables
+     * are kept; older ones are built again if they are requested.
+     * @param rgb the target color as a 0xRRGGBB integer. Upper bits are ignored.
+     * @param levels the number of levels to reach the target, from 1 to 255
+     * @return the <code>FadeTable</code> for the current colors
+     * @throws IllegalArgumentException if the number of levels is not valid
+     */
+    public FadeTable getFadeTable(int rgb, int levels) {
+        return getFadeTable(rgb, levels, null);
+    }
+    
+    /**
+     * Returns the tables to fade pixels of this palette towards a color, 
+     * building them in parallel if they are not built yet.
+     * @param rgb the target color as a 0xRRGGBB integer. Upper bits are ignored.
+     * @param levels the number of levels to reach the target, from 1 to 255
+     * @param executor the executor to build the tables, or null to build them
+     * in the calling thread
+     * @return the <code>FadeTable</code> for the current colors
+     * @throws IllegalArgumentException if the number of levels is not valid
+     */
+    public synchronized FadeTable getFadeTable(int rgb, int levels, 
+            ExecutorService executor) {
+        if (levels < 1 || levels > 255) {
+            throw new IllegalArgumentException("Invalid number of levels: " + levels);
+        }
+        if (fadeTables == null) {
+            fadeTables = new LinkedHashMap<Long, FadeTable>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(
+                        Map.Entry<Long, FadeTable> eldest) {
+                    return size() > MAX_FADE_TABLES;
+                }
+            };
+        }
+        
+        rgb &= 0xffffff;
+        Long key = Long.valueOf(((long)rgb << 8) | levels);
+        FadeTable table = fadeTables.get(key);
+        if (table == null) {
+            table = new FadeTable(this, rgb, levels, executor);
+            fadeTables.put(key, table);
+        }
+        return table;
+    }
+    
+    /**
+     * Tells if the colors of this palette can't be modified, as it happens 
+     * with palettes returned by a <code>PalettePool</code>.
+     * @return true if the palette is immutable
+     * @see PalettePool
+     */
+    public boolean isImmutable() {
+        return immutable;
+    }
+    
+    /**
+     * Makes this palette immutable. Used by <code>PalettePool</code>.
+     */
+    void setImmutable() {
+        immutable = true;
     }
-    byte[] getBlueComponents() {
-        byte[] bytes = new byte[256];
-        for(int i=0; i<256; i++)
-            bytes[i]=(byte)colors[i].getBlue();
-        return bytes;
-    }    
 }
@@ -0,0 +1,188 @@
+/* fenixlib - Library to support Fenix Files in Java
+ * Copyright (C) 2007  Daro Cutillas Carrillo
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+/*
+ * PaletteCycle.java
+ *
+ * Created on 26 de abril de 2007
+ */
+
+package fenixlib;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rotates ranges of colors of a palette over time, the classic effect used
+ * to animate water, fire or lights without changing any pixel. Each range
+ * moves its colors one position towards the last index of the range every
+ * step, and the color of the last index goes to the first one.
+ * <p>
+ * The palette itself is not modified: the colors are taken when the cycle is
+ * created and the cycle provides an <code>IndexColorModel</code> with the
+ * current colors, which is rebuilt only when a range moves. Frames are shown
+ * with these colors by wrapping their rasters with the color model (see
+ * <code>AnimatedGraphic.getFrame(int, IndexColorModel)</code>).
+ * <p>
+ * Time is measured in the same units as the pauses of keyframes.
+ * @author Daro Cutillas Carrillo (lord_danko at sourceforge.net)
+ * @see AnimatedGraphic#getFrame(int, IndexColorModel)
+ */
+public final class PaletteCycle {
+    
+    private final int[] baseColors = new int[256];
+    private final List<Range> ranges = new ArrayList<Range>();
+    private long time = 0;
+    
+    /* Built when first requested, null after a range moves */
+    private IndexColorModel colorModel = null;
+    
+    /**
+     * Creates a cycle with no ranges for the current colors of a palette.
+     * @param palette the palette
+     */
+    public PaletteCycle(Palette palette) {
+        palette.getRGBs(baseColors);
+    }
+    
+    /**
+     * Adds a range of colors to rotate.
+     * @param first the first index of the range
+     * @param last the last index of the range
+     * @param stepTime the time each step lasts
+     * @throws IllegalArgumentException if the range is not valid or the time
+     * is not positive
+     */
+    public void addRange(int first, int last, int stepTime) {
+        if (first < 0 || last > 255 || first >= last) {
+            throw new IllegalArgumentException("Invalid range: " + first + "-" + last);
+        }
+        if (stepTime <= 0) {
+            throw new IllegalArgumentException("Invalid step time: " + stepTime);
+        }
+        
+        Range range = new Range(first, last, stepTime);
+        range.step = range.stepAt(time);
+        ranges.add(range);
+        colorModel = null;
+    }
+    
+    /**
+     * Advances the time of the cycle.
+     * @param dt the time elapsed
+     * @return true if any range has moved, so the colors have changed
+     * @throws IllegalArgumentException if <code>dt</code> is negative
+     */
+    public boolean tick(int dt) {
+        if (dt < 0) {
+            throw new IllegalArgumentException("Negative time: " + dt);
+        }
+        return setTime(time + dt);
+    }
+    
+    /**
+     * Sets the time of the cycle. At time 0 all colors are in their original
+     * position.
+     * @param time the new time
+     * @return true if any range has moved, so the colors have changed
+     * @throws IllegalArgumentException if <code>time</code> is negative
+     */
+    public boolean setTime(long time) {
+        if (time < 0) {
+            throw new IllegalArgumentException("Negative time: " + time);
+        }
+        this.time = time;
+        
+        boolean changed = false;
+        for (Range range : ranges) {
+            int step = range.stepAt(time);
+            if (step != range.step) {
+                range.step = step;
+                changed = true;
+            }
+        }
+        if (changed) {
+            colorModel = null;
+        }
+        return changed;
+    }
+    
+    /**
+     * Returns the time of the cycle.
+     */
+    public long getTime() {
+        return time;
+    }
+    
+    /**
+     * Returns the current color of an index.
+     * @param index the index of the color
+     * @return the color as a 0xRRGGBB integer
+     */
+    public int getRGB(int index) {
+        for (int i = ranges.size() - 1; i >= 0; i--) {
+            Range range = ranges.get(i);
+            if (index >= range.first && index <= range.last) {
+                return baseColors[range.source(index)];
+            }
+        }
+        return baseColors[index];
+    }
+    
+    /**
+     * Returns an <code>IndexColorModel</code> with the current colors. The 
+     * same object is returned until a range moves.
+     * @return an 8 bit <code>IndexColorModel</code> of 256 opaque colors
+     */
+    public IndexColorModel getColorModel() {
+        IndexColorModel cm = colorModel;
+        if (cm == null) {
+            int[] rgb = new int[256];
+            for (int i = 0; i < 256; i++)
+                rgb[i] = getRGB(i);
+            cm = new IndexColorModel(8, 256, rgb, 0, false, -1, 
+                    DataBuffer.TYPE_BYTE);
+            colorModel = cm;
+        }
+        return cm;
+    }
+    
+    /* A range of colors. When ranges overlap, the last added one wins */
+    private static final class Range {
+        final int first, last, stepTime;
+        int step = 0;
+        
+        Range(int first, int last, int stepTime) {
+            this.first = first;
+            this.last = last;
+            this.stepTime = stepTime;
+        }
+        
+        int stepAt(long time) {
+            return (int)((time / stepTime) % (last - first + 1));
+        }
+        
+        /* The index whose original color is shown at an index of the range */
+        int source(int index) {
+            int length = last - first + 1;
+            return first + (index - first - step + length) % length;
+        }
+    }
+}
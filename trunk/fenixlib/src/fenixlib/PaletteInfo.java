@@ -0,0 +1,47 @@
+/* fenixlib - Library to support Fenix Files in Java
+ * Copyright (C) 2007  Daro Cutillas Carrillo
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+/*
+ * PaletteInfo.java
+ *
+ * Created on 14 de abril de 2007
+ */
+
+package fenixlib;
+
+/**
+ * A class to be used as an read-only structure with information about a palette
+ * file, obtained from its header. <code>PalReader</code> and <code>FplReader</code>
+ * return objects of this class when probing files.
+ * @author Daro Cutillas Carrillo (lord_danko at sourceforge.net)
+ * @see FileProber
+ */
+public final class PaletteInfo {
+    /**
+     * The depth of the graphics the palette is intended for.
+     */
+    public final DepthMode depth;
+    /**
+     * The number of colors stored in the file.
+     */
+    public final int nColors;
+    
+    PaletteInfo(DepthMode depth, int nColors) {
+        this.depth = depth;
+        this.nColors = nColors;
+    }
+}
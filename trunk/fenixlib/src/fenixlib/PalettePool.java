@@ -0,0 +1,130 @@
+/* fenixlib - Library to support Fenix Files in Java
+ * Copyright (C) 2007  Daro Cutillas Carrillo
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+/*
+ * PalettePool.java
+ *
+ * Created on 23 de abril de 2007
+ */
+
+package fenixlib;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A pool of shared, immutable palettes. Readers which are given a pool (see 
+ * <code>setPalettePool</code> in <code>MapReader</code>, <code>FbmReader</code>,
+ * <code>PalReader</code>, <code>FplReader</code> and <code>ImageIOReader</code>)
+ * return the same <code>Palette</code> object, and so the same 
+ * <code>IndexColorModel</code>, for all the files with the same colors. Two
+ * palettes of a pool are equal only if they are the same object.
+ * <p>
+ * Palettes of a pool can't be modified: <code>setRGB</code>, 
+ * <code>setColor</code> and the setters of their colors throw an
+ * <code>UnsupportedOperationException</code>. 
+ * <p>
+ * This class is thread safe.
+ * @author Daro Cutillas Carrillo (lord_danko at sourceforge.net)
+ * @see Palette#isImmutable
+ */
+public final class PalettePool {
+    
+    private final Map<Key, Palette> palettes = new HashMap<Key, Palette>();
+    
+    /**
+     * Creates an empty pool.
+     */
+    public PalettePool() {
+    }
+    
+    /**
+     * Returns the palette of the pool with the given colors, creating it if 
+     * there is no such palette yet.
+     * @param rgb the colors, as 0xRRGGBB integers. Upper bits are ignored. If
+     * there are less than 256 colors, the palette is completed with black 
+     * entries.
+     * @return an immutable <code>Palette</code>, shared by all the callers
+     * which request the same colors
+     */
+    public Palette intern(int[] rgb) {
+        int[] colors = new int[256];
+        for (int i = 0; i < rgb.length; i++)
+            colors[i] = rgb[i] & 0xffffff;
+        return internColors(colors);
+    }
+    
+    /**
+     * Returns the palette of the pool with the same colors as a given palette.
+     * @param palette a palette. It is not modified nor added to the pool.
+     * @return an immutable <code>Palette</code>, which is <code>palette</code> 
+     * itself if it was returned by this pool
+     */
+    public Palette intern(Palette palette) {
+        int[] colors = new int[256];
+        palette.getRGBs(colors);
+        return internColors(colors);
+    }
+    
+    private synchronized Palette internColors(int[] colors) {
+        Key key = new Key(colors);
+        Palette shared = palettes.get(key);
+        
+        if (shared == null) {
+            shared = new Palette(colors);
+            shared.setImmutable();
+            palettes.put(key, shared);
+        }
+        return shared;
+    }
+    
+    /**
+     * Returns the number of different palettes in the pool.
+     */
+    public synchronized int getSize() {
+        return palettes.size();
+    }
+    
+    /**
+     * Removes all palettes from the pool. Palettes already returned remain 
+     * immutable, but they won't be returned again.
+     */
+    public synchronized void clear() {
+        palettes.clear();
+    }
+    
+    /* The 256 colors of a palette, compared by value */
+    private static final class Key {
+        private final int[] rgb;
+        private final int hash;
+        
+        Key(int[] rgb) {
+            this.rgb = rgb;
+            this.hash = Arrays.hashCode(rgb);
+        }
+        
+        public int hashCode() {
+            return hash;
+        }
+        
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(rgb, ((Key)o).rgb);
+        }
+    }
+}
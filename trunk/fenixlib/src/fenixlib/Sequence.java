@@ -24,18 +24,15 @@
 
 package fenixlib;
 
-import java.util.ArrayList;
-
 /** A class which contains a sequence of frames and can optionaly point to another
- *  sequence.
+ *  sequence. Keyframes of the sequence are stored in the <code>KeyFrameStore</code>
+ *  of its graphic.
  *  @autor Daro Cutillas Carrillo (lord_danko at users.sourceforge.net)
  */
 class Sequence {
     
-    ArrayList<KeyFrame> keyFrames = new ArrayList<KeyFrame>();
-    
     private String name = "";
-    private Sequence nextSequence = null;
+    private int nextSequence = -1;  /* Index of the next sequence, or -1 */
     
     public Sequence() {}
     
@@ -51,11 +48,11 @@ class Sequence {
         return name;
     }
     
-    Sequence getNextSequence() {
+    int getNextSequence() {
         return nextSequence;
     }
     
-    void setNextSequence(Sequence ns) {
+    void setNextSequence(int ns) {
         nextSequence = ns;
     }
     
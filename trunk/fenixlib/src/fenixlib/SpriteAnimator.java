@@ -0,0 +1,482 @@
+/* fenixlib - Library to support Fenix Files in Java
+ * Copyright (C) 2007  Daro Cutillas Carrillo
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+/*
+ * SpriteAnimator.java
+ *
+ * Created on 18 de abril de 2007
+ */
+
+package fenixlib;
+
+import fenixlib.util.ParallelTasks;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Animates a large number of sprites, each of them playing a sequence of one
+ * of the <code>AnimatedGraphic</code>s registered in the animator.
+ * 
+ * Sprites are not objects: the state of every sprite (graphic, sequence,
+ * keyframe, remaining pause and flags) is kept in arrays of primitives and
+ * sprites are identified by their index. Keyframes and sequences of the
+ * graphics are copied into arrays too when the graphics are added, so
+ * advancing the animations never creates objects. Changes made to a graphic
+ * after adding it are not seen by the animator.
+ * 
+ * Sprites follow the same rules as <code>AnimationTimeline</code>: each
+ * keyframe is shown during its pause (negative pauses are taken as 0), the
+ * animation continues with the next sequence when a sequence ends, and stops
+ * at the last keyframe shown when the next sequence is -1. A sprite also stops
+ * if it enters a loop of sequences whose pauses add up to 0, since it would
+ * never leave it.
+ * 
+ * This class is not thread safe, but <code>tick</code> can split the work
+ * across the threads of an <code>ExecutorService</code>.
+ * @author Daro Cutillas Carrillo (lord_danko at sourceforge.net)
+ * @see AnimationTimeline
+ */
+public class SpriteAnimator {
+    
+    /**
+     * Flag of a sprite whose animation has stopped.
+     */
+    public static final int FINISHED = 1;
+    /**
+     * Flag of a sprite whose animation is paused by the user. Paused sprites
+     * are not advanced by <code>tick</code>.
+     */
+    public static final int PAUSED = 2;
+    
+    /* Minimum number of sprites for a thread when ticking in parallel */
+    private static final int MIN_SPRITES_PER_TASK = 4096;
+    
+    /* Graphics: first sequence of each graphic in the sequence arrays */
+    private int[] graphicSeqFirst = new int[4];
+    private int nGraphics = 0;
+    
+    /* Sequences of all graphics: first keyframe and number of keyframes, the
+     * next sequence (as a position in these arrays, or -1) and the duration of
+     * the loop that brings back to the sequence (-1 if there is no such loop) */
+    private int[] seqKfFirst = new int[16];
+    private int[] seqKfCount = new int[16];
+    private int[] seqNext = new int[16];
+    private int[] seqCycle = new int[16];
+    private int nSequences = 0;
+    
+    /* Keyframes of all sequences */
+    private int[] kfFrame = new int[64];
+    private int[] kfFlags = new int[64];
+    private int[] kfAngle = new int[64];
+    private int[] kfPause = new int[64];
+    private int nKeyFrames = 0;
+    
+    /* Sprites. sequence is a position in the sequence arrays and keyFrame is 
+     * relative to the sequence (-1 if no keyframe has been shown yet) */
+    private int[] graphic = new int[256];
+    private int[] sequence = new int[256];
+    private int[] keyFrame = new int[256];
+    private int[] remaining = new int[256];
+    private int[] flags = new int[256];
+    private int nSprites = 0;
+    
+    /* Task used by tick, so no object is created on each call. tickTime is 
+     * the time to advance in the current call */
+    private int tickTime;
+    private final ParallelTasks.RangeTask tickTask = new ParallelTasks.RangeTask() {
+        public void run(int from, int to) {
+            for (int i = from; i < to; i++) {
+                if ((flags[i] & (FINISHED | PAUSED)) == 0)
+                    advance(i, tickTime);
+            }
+        }
+    };
+    
+    /**
+     * Creates an animator with no graphics and no sprites.
+     */
+    public SpriteAnimator() {}
+    
+    /**
+     * Registers a graphic in the animator, copying its sequences and keyframes.
+     * @param ag the graphic
+     * @return the id of the graphic in the animator
+     */
+    public int addGraphic(AnimatedGraphic ag) {
+        int nSeqs = ag.getSequenceCount();
+        int nKfs = 0;
+        for (int s = 0; s < nSeqs; s++) {
+            nKfs += ag.getKeyFrameCount(s);
+        }
+        
+        if (nGraphics == graphicSeqFirst.length) {
+            graphicSeqFirst = grow(graphicSeqFirst, nGraphics * 2);
+        }
+        if (nSequences + nSeqs > seqKfFirst.length) {
+            int length = Math.max(seqKfFirst.length * 2, nSequences + nSeqs);
+            seqKfFirst = grow(seqKfFirst, length);
+            seqKfCount = grow(seqKfCount, length);
+            seqNext = grow(seqNext, length);
+            seqCycle = grow(seqCycle, length);
+        }
+        if (nKeyFrames + nKfs > kfFrame.length) {
+            int length = Math.max(kfFrame.length * 2, nKeyFrames + nKfs);
+            kfFrame = grow(kfFrame, length);
+            kfFlags = grow(kfFlags, length);
+            kfAngle = grow(kfAngle, length);
+            kfPause = grow(kfPause, length);
+        }
+        
+        int first = nSequences;
+        for (int s = 0; s < nSeqs; s++) {
+            int pos = first + s;
+            int next = ag.getNextSequence(s);
+            seqKfFirst[pos] = nKeyFrames;
+            seqKfCount[pos] = ag.getKeyFrames(s, kfFrame, kfFlags, kfAngle, 
+                    kfPause, nKeyFrames);
+            seqNext[pos] = (next == -1 ? -1 : first + next);
+            for (int k = 0; k < seqKfCount[pos]; k++) {
+                kfPause[nKeyFrames + k] = Math.max(0, kfPause[nKeyFrames + k]);
+            }
+            nKeyFrames += seqKfCount[pos];
+        }
+        nSequences += nSeqs;
+        
+        // Loops, so sprites can skip whole turns of them at once
+        for (int s = first; s < nSequences; s++) {
+            seqCycle[s] = -1;
+            long cycle = 0;
+            int seq = s;
+            for (int i = 0; i < nSeqs && seq != -1; i++) {
+                for (int k = 0; k < seqKfCount[seq]; k++) {
+                    cycle += kfPause[seqKfFirst[seq] + k];
+                }
+                seq = seqNext[seq];
+                if (seq == s) {
+                    seqCycle[s] = (int)Math.min(cycle, Integer.MAX_VALUE);
+                    break;
+                }
+            }
+        }
+        
+        graphicSeqFirst[nGraphics] = first;
+        return nGraphics++;
+    }
+    
+    /**
+     * Returns the number of graphics registered in the animator.
+     * @return the number of graphics
+     */
+    public int getGraphicCount() {
+        return nGraphics;
+    }
+    
+    /**
+     * Adds a sprite which starts playing a sequence of a graphic.
+     * @param graphicId the id of the graphic, as returned by <code>addGraphic</code>
+     * @param seqIndex the index of the sequence in the graphic
+     * @return the index of the new sprite
+     */
+    public int addSprite(int graphicId, int seqIndex) {
+        int seq = toSequencePosition(graphicId, seqIndex);
+        
+        if (nSprites == graphic.length) {
+            graphic = grow(graphic, nSprites * 2);
+            sequence = grow(sequence, nSprites * 2);
+            keyFrame = grow(keyFrame, nSprites * 2);
+            remaining = grow(remaining, nSprites * 2);
+            flags = grow(flags, nSprites * 2);
+        }
+        
+        int sprite = nSprites++;
+        graphic[sprite] = graphicId;
+        start(sprite, seq);
+        return sprite;
+    }
+    
+    /**
+     * Removes a sprite. To keep sprites packed, the last sprite is moved to the
+     * index of the removed one, so the index of the last sprite changes and
+     * callers which keep sprite indices must update it. Indices of all other
+     * sprites do not change.
+     * @param sprite the index of the sprite
+     * @return the index the moved sprite had before the call (it is now at 
+     * <code>sprite</code>), or -1 if the removed sprite was the last one and 
+     * no sprite was moved
+     */
+    public int removeSprite(int sprite) {
+        checkSprite(sprite);
+        
+        int last = --nSprites;
+        if (sprite == last) {
+            return -1;
+        }
+        graphic[sprite] = graphic[last];
+        sequence[sprite] = sequence[last];
+        keyFrame[sprite] = keyFrame[last];
+        remaining[sprite] = remaining[last];
+        flags[sprite] = flags[last];
+        return last;
+    }
+    
+    /**
+     * Returns the number of sprites.
+     * @return the number of sprites
+     */
+    public int getSpriteCount() {
+        return nSprites;
+    }
+    
+    /**
+     * Makes a sprite start playing a sequence of its graphic from its first 
+     * keyframe. The <code>PAUSED</code> flag of the sprite is kept.
+     * @param sprite the index of the sprite
+     * @param seqIndex the index of the sequence in the graphic of the sprite
+     */
+    public void setSequence(int sprite, int seqIndex) {
+        checkSprite(sprite);
+        start(sprite, toSequencePosition(graphic[sprite], seqIndex));
+    }
+    
+    /**
+     * Pauses or resumes the animation of a sprite.
+     * @param sprite the index of the sprite
+     * @param paused true to pause the sprite, false to resume it
+     */
+    public void setPaused(int sprite, boolean paused) {
+        checkSprite(sprite);
+        if (paused)
+            flags[sprite] |= PAUSED;
+        else
+            flags[sprite] &= ~PAUSED;
+    }
+    
+    /**
+     * Advances the animation of all sprites which are not paused nor finished.
+     * @param dt the time to advance, in the same units as the pauses of
+     * keyframes. Must not be negative.
+     */
+    public void tick(int dt) {
+        tick(dt, null);
+    }
+    
+    /**
+     * Advances the animation of all sprites which are not paused nor finished,
+     * splitting the sprites across the threads of an executor.
+     * @param dt the time to advance, in the same units as the pauses of
+     * keyframes. Must not be negative.
+     * @param executor the executor to use, or null to advance all sprites
+     * in the calling thread
+     */
+    public void tick(int dt, ExecutorService executor) {
+        if (dt < 0) {
+            throw new IllegalArgumentException("Negative time: " + dt);
+        }
+        
+        tickTime = dt;
+        ParallelTasks.forRange(executor, 0, nSprites, MIN_SPRITES_PER_TASK,
+                tickTask);
+    }
+    
+    /*
+     * Places a sprite before the first keyframe of a sequence and lets 
+     * advance() find the first keyframe to show.
+     */
+    private void start(int sprite, int seq) {
+        sequence[sprite] = seq;
+        keyFrame[sprite] = -1;
+        remaining[sprite] = 0;
+        flags[sprite] &= PAUSED;
+        advance(sprite, 0);
+    }
+    
+    /*
+     * Advances a sprite. Only the arrays of the sprite itself are written, so
+     * different sprites can be advanced at the same time.
+     */
+    private void advance(int sprite, int dt) {
+        int r = remaining[sprite] - dt;
+        if (r > 0) {
+            remaining[sprite] = r;
+            return;
+        }
+        
+        int s = sequence[sprite];
+        int k = keyFrame[sprite];
+        int shownSeq = s, shownKf = k;  // Last keyframe shown
+        
+        while (r <= 0) {
+            if (k + 1 < seqKfCount[s]) {    // Next keyframe of the sequence
+                k++;
+                r += kfPause[seqKfFirst[s] + k];
+                shownSeq = s;
+                shownKf = k;
+                continue;
+            }
+            
+            int next = seqNext[s];
+            if (next == -1 || seqCycle[next] == 0) { // Stop
+                flags[sprite] |= FINISHED;
+                r = 0;
+                break;
+            }
+            if (seqCycle[next] > 0 && -r >= seqCycle[next]) {
+                r = -(-r % seqCycle[next]);  // Skip whole turns of the loop
+            }
+            s = next;
+            k = -1;
+        }
+        
+        sequence[sprite] = shownSeq;
+        keyFrame[sprite] = shownKf;
+        remaining[sprite] = r;
+    }
+    
+    /**
+     * Returns the id of the graphic of a sprite.
+     * @param sprite the index of the sprite
+     * @return the id of the graphic
+     */
+    public int getGraphic(int sprite) {
+        checkSprite(sprite);
+        return graphic[sprite];
+    }
+    
+    /**
+     * Returns the sequence being played by a sprite.
+     * @param sprite the index of the sprite
+     * @return the index of the sequence in the graphic of the sprite
+     */
+    public int getSequence(int sprite) {
+        checkSprite(sprite);
+        return sequence[sprite] - graphicSeqFirst[graphic[sprite]];
+    }
+    
+    /**
+     * Returns the keyframe shown by a sprite.
+     * @param sprite the index of the sprite
+     * @return the index of the keyframe in its sequence, or -1 if the sprite
+     * has not found any keyframe to show
+     */
+    public int getKeyFrame(int sprite) {
+        checkSprite(sprite);
+        return keyFrame[sprite];
+    }
+    
+    /**
+     * Returns the time left before a sprite shows its next keyframe.
+     * @param sprite the index of the sprite
+     * @return the remaining pause of the current keyframe
+     */
+    public int getRemainingPause(int sprite) {
+        checkSprite(sprite);
+        return remaining[sprite];
+    }
+    
+    /**
+     * Returns the flags of a sprite (<code>FINISHED</code>, <code>PAUSED</code>).
+     * @param sprite the index of the sprite
+     * @return the flags of the sprite
+     */
+    public int getFlags(int sprite) {
+        checkSprite(sprite);
+        return flags[sprite];
+    }
+    
+    /**
+     * Returns the frame shown by a sprite.
+     * @param sprite the index of the sprite
+     * @return the index of the frame in the graphic of the sprite, or -1 if
+     * the sprite has no keyframe to show
+     */
+    public int getFrame(int sprite) {
+        checkSprite(sprite);
+        int k = keyFrame[sprite];
+        return k == -1 ? -1 : kfFrame[seqKfFirst[sequence[sprite]] + k];
+    }
+    
+    /**
+     * Returns the flags of the keyframe shown by a sprite.
+     * @param sprite the index of the sprite
+     * @return the flags of the keyframe, or 0 if the sprite has no keyframe
+     * to show
+     */
+    public int getKeyFrameFlags(int sprite) {
+        checkSprite(sprite);
+        int k = keyFrame[sprite];
+        return k == -1 ? 0 : kfFlags[seqKfFirst[sequence[sprite]] + k];
+    }
+    
+    /**
+     * Returns the angle of the keyframe shown by a sprite.
+     * @param sprite the index of the sprite
+     * @return the angle of the keyframe, or 0 if the sprite has no keyframe
+     * to show
+     */
+    public int getKeyFrameAngle(int sprite) {
+        checkSprite(sprite);
+        int k = keyFrame[sprite];
+        return k == -1 ? 0 : kfAngle[seqKfFirst[sequence[sprite]] + k];
+    }
+    
+    /**
+     * Copies the frames shown by a range of sprites into an array, which is
+     * faster than calling <code>getFrame</code> for each of them.
+     * @param first the index of the first sprite
+     * @param count the number of sprites
+     * @param frames the array where frames are stored, starting at index 0
+     */
+    public void getFrames(int first, int count, int[] frames) {
+        if (first < 0 || count < 0 || first + count > nSprites) {
+            throw new IndexOutOfBoundsException("Invalid sprite range: " 
+                    + first + ", " + count);
+        }
+        
+        for (int i = 0; i < count; i++) {
+            int sprite = first + i;
+            int k = keyFrame[sprite];
+            frames[i] = (k == -1 ? -1 : kfFrame[seqKfFirst[sequence[sprite]] + k]);
+        }
+    }
+    
+    private int toSequencePosition(int graphicId, int seqIndex) {
+        if (graphicId < 0 || graphicId >= nGraphics) {
+            throw new IndexOutOfBoundsException("Invalid graphic id: " + graphicId);
+        }
+        int first = graphicSeqFirst[graphicId];
+        int last = (graphicId + 1 < nGraphics ? 
+            graphicSeqFirst[graphicId + 1] : nSequences);
+        if (seqIndex < 0 || first + seqIndex >= last) {
+            throw new IndexOutOfBoundsException("Invalid sequence index: " 
+                    + seqIndex);
+        }
+        return first + seqIndex;
+    }
+    
+    private void checkSprite(int sprite) {
+        if (sprite < 0 || sprite >= nSprites) {
+            throw new IndexOutOfBoundsException("Invalid sprite index: " + sprite);
+        }
+    }
+    
+    private static int[] grow(int[] array, int length) {
+        int[] newArray = new int[length];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+}
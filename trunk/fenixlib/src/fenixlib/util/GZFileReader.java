@@ -25,167 +25,285 @@
 package fenixlib.util;
 
 import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.IntBuffer;
-import java.nio.LongBuffer;
-import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
 import java.util.zip.GZIPInputStream;
 
 /** Provides basic functionality to open and read files optionaly compressed with GZip. <br />
- *  Files are readed and decompressed entirely when the constructor is called and data is stored in an intermeriary buffer.
+ *  Compressed files are not decompressed entirely: data is inflated on demand into a bounded buffer which is
+ *  refilled from the file as it is consumed, so memory usage does not depend on the size of the file.
+ *  The file is kept open until <code>close()</code> is called. <br />
+ *  Uncompressed files are memory mapped, so data is copied directly from the file to the arrays
+ *  returned by the read methods.
  *  <h3>Accessing binary data</h3>This class provides methods from reading values from different primitive types (and arrays of them).
  *  Reading is performed allways using the LITTLE ENDIAN byte order.
  *  @author Daro Cutillas Carrillo (lord_danko at sourceforge.net)
  */
 public class GZFileReader {
-    private static final int INFLATER_BUFF_SIZE = 1048576;	/* Memory used to decompress. Currently 1MB */
+    private static final int STREAM_BUFF_SIZE = 65536;	/* Size of the refillable buffer. Currently 64KB */
+    private final InputStream inputStream;  /* null if the file is mapped */
     private final ByteBuffer byteBuffer;
-    
-    /** Creates a <code>GZFileReader</code> which will hold an internal buffer to store
-     *  the file <code>file</code> decompressed.
+    private long streamPosition;    /* Number of bytes taken from the inputStream */
+
+    /** Creates a <code>GZFileReader</code> which will hold an internal bounded buffer to
+     *  read the file <code>file</code> decompressed.
      *  @param file the file to be opened represented by a <code>File</code> object
      */
     public GZFileReader(File file) throws IOException {
-        /* Decompression of the file is performed following this steps:
+        /* Opening of the file is performed following this steps:
          *	- File is opened in a FileInputStream and filtered with a DataInputStream. The stream is buffered using a
          *	  BufferInputStream so that mark and reset operations are supported.
          *	- First two bytes of the file are read to determine if the file is compressed (0x1f 0x8b).
          *	- If the file is a GZ file then create an GZFileInputStream based on the existing DataInputStream. This will be our inpuStream
-         *	- If not, our inputStream will be the DataInputStream created in the first step.
-         *	- Finally, we read the entire file (inflated if GZ) and create a byte buffer for accesing later.
+         *	- If not, the file is mapped in memory and the DataInputStream is closed. There is no inputStream.
+         *	- Finally, if the file is compressed we create an empty byte buffer which will be filled from the
+         *	  inputStream as data is requested.
          */
-        
+
         /* Create a DataInputStream to read bytes of the file  */
+        FileInputStream fileInputStream = new FileInputStream(file);
         DataInputStream dataInputStream = new DataInputStream(
-                new BufferedInputStream(
-                new FileInputStream(file) ) );
+                new BufferedInputStream(fileInputStream) );
         /* Read first two bytes (GZIP MAGIC)  to dtermine if it is a GZIP File */
         int[] magic = new int[2];
-        dataInputStream.mark(2);
-        magic[0]=dataInputStream.readUnsignedByte();
-        magic[1]=dataInputStream.readUnsignedByte();
-        dataInputStream.reset();	/* Reset so the dataInputStream points at the begining of the file */
-        InputStream inputStream;	/* The final stream used to read the file */
-        if( magic[0]==0x1f && magic[1]==0x8b ) { 	/* Is a GZIP file */
-            /* The inputStream object to read bytes needs to by a GZIPInputStream to allow decompressing reading */
-            inputStream = new GZIPInputStream(dataInputStream);
-        }else { 	/* Not a GZIP file */
-            inputStream = dataInputStream;
+        try {
+            dataInputStream.mark(2);
+            magic[0]=dataInputStream.readUnsignedByte();
+            magic[1]=dataInputStream.readUnsignedByte();
+            dataInputStream.reset();	/* Reset so the dataInputStream points at the begining of the file */
+            if( magic[0]==0x1f && magic[1]==0x8b ) { 	/* Is a GZIP file */
+                /* The inputStream object to read bytes needs to by a GZIPInputStream to allow decompressing reading */
+                inputStream = new GZIPInputStream(dataInputStream, STREAM_BUFF_SIZE);
+                /* The buffer starts empty (no remaining bytes) and is filled on demand */
+                byteBuffer=ByteBuffer.allocate(STREAM_BUFF_SIZE);
+                byteBuffer.limit(0);
+            }else { 	/* Not a GZIP file */
+                /* The mapping remains valid after closing the file */
+                FileChannel channel = fileInputStream.getChannel();
+                byteBuffer=channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                streamPosition=byteBuffer.limit();
+                dataInputStream.close();
+                inputStream = null;
+            }
+        } catch (IOException e) {
+            dataInputStream.close();
+            throw e;
         }
-        /* Read uncompressed data and put it into a ByteArrayOutputStream object */
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        byte[] buffer = new byte[INFLATER_BUFF_SIZE];
-        int len;
-        while((len=inputStream.read(buffer,0,buffer.length)) != -1) {
-            baos.write(buffer,0,len);
-        }
-        inputStream.close(); 	/* Close the inputStream  */
-        /* Wrap uncompressed file bytes into the ByteBuffer */
-        byteBuffer=ByteBuffer.wrap(baos.toByteArray());
         byteBuffer.order(ByteOrder.LITTLE_ENDIAN);		/* Our gzfiles follow intel LittleEndian byte order */
     }
-    
+
+    /** Makes sure that at least <code>n</code> bytes (which can not be more than
+     *  the size of the buffer) remain in the buffer, reading more data from the
+     *  file if necessary.
+     *  @param n the number of bytes needed
+     *  @throws java.io.EOFException if the end of the file is reached before
+     */
+    private void require(int n) throws IOException {
+        if (byteBuffer.remaining() >= n)
+            return;
+        if (inputStream == null)    /* Mapped file, there is no more data */
+            throw new EOFException("Unexpected end of file");
+
+        byteBuffer.compact();	/* Move remaining bytes to the begining and prepare for writing */
+        try {
+            while (byteBuffer.position() < n) {
+                int len = inputStream.read(byteBuffer.array(), byteBuffer.position(),
+                        byteBuffer.remaining());
+                if (len == -1)
+                    throw new EOFException("Unexpected end of file");
+                byteBuffer.position(byteBuffer.position() + len);
+                streamPosition += len;
+            }
+        } finally {
+            byteBuffer.flip();
+        }
+    }
+
+    /** Returns the number of (decompressed) bytes read or skipped since the
+     *  file was opened.
+     *  @return the position of the next byte to be read
+     */
+    public long getPosition() {
+        return streamPosition - byteBuffer.remaining();
+    }
+
+    /** Closes the file associated to this reader. No more data can be read after
+     *  calling this method.
+     */
+    public void close() throws IOException {
+        if (inputStream != null)
+            inputStream.close();
+    }
+
     /** Reads next byte of the buffer and returns it as a byte value.
      *  @return the next byte of the buffer
      */
-    public byte readByte() {return byteBuffer.get();};
-    
+    public byte readByte() throws IOException {
+        require(1);
+        return byteBuffer.get();
+    }
+
     /** Reads next byte of the buffer and returns an int value in the range 0 through 255.
      *  version of the byte
      *  @return the next byte of the buffer, interpreted as an unsigned 8-bit number
      */
-    public int readUnsignedByte() {	return (byteBuffer.get() & 0xff); }
-    
+    public int readUnsignedByte() throws IOException { return (readByte() & 0xff); }
+
     /** Reads an array of bytes from the buffer of a len <code>len</code>
      *  @param len the number of bytes to be read
      *  @return an array of bytes containing the next <code>len</code> bytes of
      *  the buffer
      */
-    public byte[] readBytes(int len) {
+    public byte[] readBytes(int len) throws IOException {
         byte[] buff = new byte[len];
-        byteBuffer.get(buff);
+        readBytes(buff, 0, len);
         return buff;
     }
-    
+
+    /** Reads <code>len</code> bytes from the buffer and stores them into an
+     *  existing array.
+     *  @param buff the array where bytes are stored
+     *  @param off the position of the array where the first byte is stored
+     *  @param len the number of bytes to be read
+     */
+    public void readBytes(byte[] buff, int off, int len) throws IOException {
+        int n = Math.min(len, byteBuffer.remaining());
+        byteBuffer.get(buff, off, n);
+        off += n;
+        len -= n;
+
+        /* Big blocks are read directly from the stream, without using the buffer */
+        while (inputStream != null && len >= byteBuffer.capacity()) {
+            n = inputStream.read(buff, off, len);
+            if (n == -1)
+                throw new EOFException("Unexpected end of file");
+            streamPosition += n;
+            off += n;
+            len -= n;
+        }
+
+        if (len > 0) {
+            require(len);
+            byteBuffer.get(buff, off, len);
+        }
+    }
+
     /** Reads next 2 bytes of the buffer and returns them as a short value
      *  @return a short which represent the next two bytes of the buffer
      */
-    public short readShort() {return byteBuffer.getShort();}
-    
+    public short readShort() throws IOException {
+        require(2);
+        return byteBuffer.getShort();
+    }
+
     /** Reads next 2 bytes and returns an int value in the range 0  through 65535.
      *  @return the next 2 byte of the buffer, interpreted as an unsigned 16-bit number
      */
-    public int readUnsignedShort() {
-        return (int)byteBuffer.getShort() &  0xffff; //COMPROBAR ESTO
+    public int readUnsignedShort() throws IOException {
+        return (int)readShort() &  0xffff;
     }
-    
+
     /** Reads an array of short from the buffer of a len <code>len</code>
      *  @param len the number of shorts to be read
      *  @return an array of shorts containing the next <code>len</code>*2 bytes of
      *  the buffer
      */
-    public short[] readShorts(int len) {
+    public short[] readShorts(int len) throws IOException {
         short[] buff = new short[len];
-        ShortBuffer shortBuffer = byteBuffer.asShortBuffer();
-        shortBuffer.get(buff);
+        readShorts(buff, 0, len);
         return buff;
     }
-    
+
+    /** Reads <code>len</code> shorts from the buffer and stores them into an
+     *  existing array.
+     *  @param buff the array where shorts are stored
+     *  @param off the position of the array where the first short is stored
+     *  @param len the number of shorts to be read
+     */
+    public void readShorts(short[] buff, int off, int len) throws IOException {
+        while (len > 0) {
+            require(2);
+            int n = Math.min(len, byteBuffer.remaining() / 2);
+            byteBuffer.asShortBuffer().get(buff, off, n);
+            byteBuffer.position(byteBuffer.position() + n * 2);
+            off += n;
+            len -= n;
+        }
+    }
+
     /** Reads next 4 bytes of the buffer and returns them as an int value
      *  @return an int value which represent the next 4 bytes of the buffer
      */
-    public int readInt() {return byteBuffer.getInt(); }
-    
+    public int readInt() throws IOException {
+        require(4);
+        return byteBuffer.getInt();
+    }
+
     /** Reads next 4 bytes and returns an long value in the range 0  through 2^32-1.
      *  @return the next 4 byte of the buffer, interpreted as an unsigned 32-bit number
      */
-    public long readUnsignedInt() {
-        return byteBuffer.getInt() & 0xffffffffL;
+    public long readUnsignedInt() throws IOException {
+        return readInt() & 0xffffffffL;
     }
-    
+
     /** Reads an array of int from the buffer of a len <code>len</code>
      *  @param len the number of ints to be read
      *  @return an array of int containing the next <code>len</code>*4 bytes of
      *  the buffer
      */
-    public int[] readInts(int len) {
+    public int[] readInts(int len) throws IOException {
         int[] buff = new int[len];
-        IntBuffer intBuffer = byteBuffer.asIntBuffer();
-        intBuffer.get(buff);
+        int off = 0;
+        while (off < len) {
+            require(4);
+            int n = Math.min(len - off, byteBuffer.remaining() / 4);
+            byteBuffer.asIntBuffer().get(buff, off, n);
+            byteBuffer.position(byteBuffer.position() + n * 4);
+            off += n;
+        }
         return buff;
     }
-    
+
     /** Reads next 8 bytes of the buffer and returns them as a long value
      *  @return a long value which represent the next 8 bytes of the buffer
      */
-    public long readLong() {return byteBuffer.getLong(); }
-    
+    public long readLong() throws IOException {
+        require(8);
+        return byteBuffer.getLong();
+    }
+
     /** Reads an array of long from the buffer of a len <code>len</code>
      *  @param len the number of longs to be read
      *  @return an array of long containing the next <code>len</code>*8 bytes of
      *  the buffer
      */
-    public long[] readLongs(int len) {
+    public long[] readLongs(int len) throws IOException {
         long[] buff = new long[len];
-        LongBuffer longBuffer = byteBuffer.asLongBuffer();
-        longBuffer.get(buff);
+        int off = 0;
+        while (off < len) {
+            require(8);
+            int n = Math.min(len - off, byteBuffer.remaining() / 8);
+            byteBuffer.asLongBuffer().get(buff, off, n);
+            byteBuffer.position(byteBuffer.position() + n * 8);
+            off += n;
+        }
         return buff;
     }
-    
+
     /** Reads next <code>len</code> bytes of the buffer and returns an String
      *  which results from interpreting the bytes as an AsciiZ string (a
      *  fixed-length string where the last character is 0x00)
      *  @param len the maximun len of the string
      *  @return the AsciiZ string interpreted as an String object
      */
-    public String readAsciiZ(int len) {
+    public String readAsciiZ(int len) throws IOException {
         byte[] buff = readBytes(len);
         int i;
         for(i=0; i<len; i++)
@@ -193,10 +311,29 @@ public class GZFileReader {
                 break;
         return (new String(buff,0,i));
     }
-    
+
     /** Skips next <code>n</code> bytes
      *  @param n number of bytes to skip
      */
-    public void skip(int n) { byteBuffer.position(byteBuffer.position()+n); }    
-    
+    public void skip(long n) throws IOException {
+        int len = (int)Math.min(n, byteBuffer.remaining());
+        byteBuffer.position(byteBuffer.position() + len);
+        n -= len;
+
+        /* Skip the rest in the stream. GZIPInputStream may skip less bytes than
+           requested, so fill the buffer when nothing is skipped */
+        while (n > 0) {
+            long skipped = (inputStream == null ? 0 : inputStream.skip(n));
+            if (skipped > 0) {
+                streamPosition += skipped;
+                n -= skipped;
+            } else {
+                require(1);
+                len = (int)Math.min(n, byteBuffer.remaining());
+                byteBuffer.position(byteBuffer.position() + len);
+                n -= len;
+            }
+        }
+    }
+
 }
@@ -28,65 +28,151 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPOutputStream;
 
-/** Basic gzfile writer
+/** Basic gzfile writer. <br />
+ *  Values are encoded in LITTLE ENDIAN byte order into a reusable buffer. A writer
+ *  created for a file compresses the data directly to disk as the buffer fills up and
+ *  must be closed with <code>close()</code>. A writer created with no file keeps
+ *  the uncompressed data in memory until <code>toFile()</code> is called.
  *  @author Daro Cutillas Carrillo (lord_danko at sourceforge.net)
  */
 public class GZFileWriter {
-private ByteArrayOutputStream baos;
+    private static final int ENCODER_BUFF_SIZE = 65536;	/* Size of the encoding buffer. Currently 64KB */
+    private final ByteBuffer byteBuffer;
+    private final OutputStream outputStream;
+    private ByteArrayOutputStream baos; /* null if writing directly to a file */
     
     public GZFileWriter() {
         baos = new ByteArrayOutputStream();
+        outputStream = baos;
+        byteBuffer = ByteBuffer.allocate(ENCODER_BUFF_SIZE);
+        byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
     }
     
-    public void writeByte(byte b){
-        baos.write(b);
+    /** Creates a <code>GZFileWriter</code> which compresses data directly to
+     *  a file, using the default compression level and strategy.
+     *  @param file the file to be written
+     */
+    public GZFileWriter(File file) throws IOException {
+        this(file, Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY);
     }
-    public void writeBytes(byte[] bytes){
-        baos.write(bytes,0,bytes.length);
+    
+    /** Creates a <code>GZFileWriter</code> which compresses data directly to
+     *  a file.
+     *  @param file the file to be written
+     *  @param level the compression level (0-9) as defined in <code>Deflater</code>
+     *  @param strategy the compression strategy as defined in <code>Deflater</code>
+     */
+    public GZFileWriter(File file, int level, int strategy) throws IOException {
+        outputStream = new DeflaterGZIPOutputStream(new FileOutputStream(file),
+                level, strategy);
+        byteBuffer = ByteBuffer.allocate(ENCODER_BUFF_SIZE);
+        byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+    
+    /* Writes the content of the buffer to the output stream and empties it */
+    private void flushBuffer() throws IOException {
+        outputStream.write(byteBuffer.array(), 0, byteBuffer.position());
+        byteBuffer.clear();
+    }
+    
+    /* Makes sure there is room for n bytes in the buffer */
+    private void ensure(int n) throws IOException {
+        if (byteBuffer.remaining() < n)
+            flushBuffer();
+    }
+    
+    public void writeByte(byte b) throws IOException {
+        ensure(1);
+        byteBuffer.put(b);
+    }
+    
+    public void writeBytes(byte[] bytes) throws IOException {
+        writeBytes(bytes, 0, bytes.length);
     }
     
-    public void writeShort(short s) {
-        ByteBuffer bb = ByteBuffer.allocate(2);
-        bb.order(ByteOrder.LITTLE_ENDIAN).putShort(s);
-        byte[] bytes = bb.array();
-        baos.write(bytes,0,bytes.length);
+    public void writeBytes(byte[] bytes, int off, int len) throws IOException {
+        if (len > byteBuffer.remaining()) {
+            flushBuffer();
+            if (len >= byteBuffer.capacity()) { /* Big blocks skip the buffer */
+                outputStream.write(bytes, off, len);
+                return;
+            }
+        }
+        byteBuffer.put(bytes, off, len);
     }
     
-    public void writeShorts(short[] shorts) {
-        ByteBuffer bb = ByteBuffer.allocate(2*shorts.length);
-        bb.order(ByteOrder.LITTLE_ENDIAN);
-        for(int i=0; i<shorts.length; i++)
-            bb.putShort(shorts[i]);
-        byte[] bytes = bb.array();
-        baos.write(bytes,0,bytes.length);
+    public void writeShort(short s) throws IOException {
+        ensure(2);
+        byteBuffer.putShort(s);
     }
     
-    public void writeInt(int i){
-        ByteBuffer bb = ByteBuffer.allocate(4);
-        bb.order(ByteOrder.LITTLE_ENDIAN).putInt(i);
-        byte[] bytes = bb.array();
-        baos.write(bytes,0,bytes.length);
+    public void writeShorts(short[] shorts) throws IOException {
+        writeShorts(shorts, 0, shorts.length);
     }
     
-    public void writeAsciiZ(String s, int maxlen) throws UnsupportedEncodingException{
-        byte[] bytes=new byte[maxlen];
+    public void writeShorts(short[] shorts, int off, int len) throws IOException {
+        while (len > 0) {
+            ensure(2);
+            int n = Math.min(len, byteBuffer.remaining() / 2);
+            byteBuffer.asShortBuffer().put(shorts, off, n);
+            byteBuffer.position(byteBuffer.position() + n * 2);
+            off += n;
+            len -= n;
+        }
+    }
+    
+    public void writeInt(int i) throws IOException {
+        ensure(4);
+        byteBuffer.putInt(i);
+    }
+    
+    public void writeAsciiZ(String s, int maxlen) throws UnsupportedEncodingException, IOException {
         byte[] strBytes=s.getBytes("US-ASCII");
-        int i;
-        for(i=0; i<s.length() && i<maxlen; i++)
-            bytes[i]=strBytes[i];
-        for(int j=i;j<maxlen; j++)
-            bytes[j]=0x00;
-        baos.write(bytes,0,bytes.length);
+        int len = Math.min(strBytes.length, maxlen);
+        writeBytes(strBytes, 0, len);
+        byte[] padding = new byte[maxlen - len]; /* Zero filled */
+        writeBytes(padding, 0, padding.length);
     }
     
+    /** Writes all data kept in memory to a file, compressed with GZip. Only valid
+     *  for writers created with no file.
+     *  @param file the file to be written
+     */
     public void toFile(File file) throws IOException {
+        if (baos == null)
+            throw new IllegalStateException("The writer is not buffered in memory");
+        
+        flushBuffer();
         GZIPOutputStream gzos = new GZIPOutputStream(new FileOutputStream(file));
         baos.writeTo(gzos);
         gzos.close();
     }
+    
+    /** Writes pending data and closes the file. Writers created with no file
+     *  only flush pending data to memory.
+     */
+    public void close() throws IOException {
+        try {
+            flushBuffer();
+        } finally {
+            outputStream.close();
+        }
+    }
+    
+    /* A GZIPOutputStream whose compression level and strategy can be configured */
+    private static class DeflaterGZIPOutputStream extends GZIPOutputStream {
+        DeflaterGZIPOutputStream(OutputStream out, int level, int strategy)
+                throws IOException {
+            super(out, ENCODER_BUFF_SIZE);
+            def.setLevel(level);
+            def.setStrategy(strategy);
+        }
+    }
 }
@@ -0,0 +1,106 @@
+/* fenixlib - Library to support Fenix Files in Java
+ * Copyright (C) 2007  Daro Cutillas Carrillo
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+/*
+ * ParallelTasks.java
+ *
+ * Created on 18 de abril de 2007
+ */
+
+package fenixlib.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/** Helper to split loops over ranges of indices across the threads of an
+ *  <code>ExecutorService</code>. <br />
+ *  The range is divided in one chunk per available processor (but never in
+ *  chunks smaller than a given size) and the caller blocks until all chunks
+ *  are done. If no executor is given, or the range is too small to be split,
+ *  the task runs in the calling thread.
+ *  @author Daro Cutillas Carrillo (lord_danko at sourceforge.net)
+ */
+public final class ParallelTasks {
+    
+    /** A task that processes a range of indices. Tasks running at the same time
+     *  receive disjoint ranges.
+     */
+    public interface RangeTask {
+        /** Processes the indices from <code>from</code> (inclusive) to 
+         *  <code>to</code> (exclusive).
+         */
+        public void run(int from, int to);
+    }
+    
+    private ParallelTasks() {}
+    
+    /** Runs a task over a range of indices, possibly in parallel.
+     *  @param executor the executor to run the chunks, or null to run the task
+     *  in the calling thread
+     *  @param from the first index of the range (inclusive)
+     *  @param to the last index of the range (exclusive)
+     *  @param minChunk the minimum number of indices worth giving to a thread
+     *  @param task the task to run
+     *  @throws IllegalStateException if the calling thread is interrupted
+     *  while waiting for the chunks
+     */
+    public static void forRange(ExecutorService executor, int from, int to, 
+            int minChunk, final RangeTask task) {
+        int length = to - from;
+        int nChunks = Math.min(Runtime.getRuntime().availableProcessors(),
+                length / Math.max(1, minChunk));
+        
+        if (executor == null || nChunks <= 1) {
+            if (length > 0)
+                task.run(from, to);
+            return;
+        }
+        
+        List<Callable<Object>> chunks = new ArrayList<Callable<Object>>(nChunks);
+        for (int i = 0; i < nChunks; i++) {
+            final int chunkFrom = from + (int)((long)length * i / nChunks);
+            final int chunkTo = from + (int)((long)length * (i + 1) / nChunks);
+            chunks.add(new Callable<Object>() {
+                public Object call() {
+                    task.run(chunkFrom, chunkTo);
+                    return null;
+                }
+            });
+        }
+        
+        try {
+            for (Future<Object> future : executor.invokeAll(chunks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for tasks", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            if (cause instanceof Error)
+                throw (Error)cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/* fenixlib - Library to support Fenix Files in Java
+ * Copyright (C) 2007  Daro Cutillas Carrillo
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+/*
+ * GZFileTests.java
+ *
+ * Created on 12 de abril de 2007
+ */
+
+package fenixlibtest;
+
+import fenixlib.util.GZFileReader;
+import fenixlib.util.GZFileWriter;
+
+import java.io.*;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import junit.framework.TestCase;
+
+/** Tests for GZFileReader and GZFileWriter classes
+ *  @author Daro Cutillas Carrillo (lord_danko at sourceforge.net)
+ */
+public class GZFileTests extends TestCase {
+
+    // Bigger than the buffer of GZFileReader so that it must be refilled
+    private static final int N_SHORTS = 100000;
+
+    public GZFileTests() { }
+
+    // Writes a little endian file with a header, a block of shorts and a trailer
+    private File createFile(boolean compressed) throws IOException {
+        File file = File.createTempFile("fenixlibtest", ".bin");
+        file.deleteOnExit();
+
+        OutputStream os = new FileOutputStream(file);
+        if (compressed)
+            os = new GZIPOutputStream(os);
+        os = new BufferedOutputStream(os);
+
+        os.write(new byte[] {'t', 'e', 's', 't', 0, 0, 0, 0});
+        os.write(new byte[] {0x78, 0x56, 0x34, 0x12});          // 0x12345678
+        for (int i = 0; i < N_SHORTS; i++) {
+            os.write(i & 0xff);
+            os.write((i >> 8) & 0xff);
+        }
+        os.write(new byte[] {1, 2, 3});                         // Skipped
+        os.write(new byte[] {(byte)0xff, 0x7f});                // 0x7fff
+        os.close();
+
+        return file;
+    }
+
+    private void checkFile(File file) throws IOException {
+        GZFileReader reader = new GZFileReader(file);
+        try {
+            assertEquals("test", reader.readAsciiZ(8));
+            assertEquals(0x12345678, reader.readInt());
+            assertEquals(12, reader.getPosition());
+
+            short[] shorts = reader.readShorts(N_SHORTS);
+            for (int i = 0; i < N_SHORTS; i++)
+                assertEquals((short)i, shorts[i]);
+
+            reader.skip(3);
+            assertEquals(12 + N_SHORTS * 2 + 3, reader.getPosition());
+            assertEquals(0x7fff, reader.readUnsignedShort());
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testStreamingRead() {
+        try {
+            checkFile(createFile(true));
+        } catch (IOException e) {
+            fail(e.toString());
+        }
+    }
+
+    public void testUncompressedRead() {
+        try {
+            checkFile(createFile(false));
+        } catch (IOException e) {
+            fail(e.toString());
+        }
+    }
+
+    private void checkUnexpectedEnd(File file) throws IOException {
+        GZFileReader reader = new GZFileReader(file);
+        try {
+            reader.skip(8 + 4 + N_SHORTS * 2 + 5);
+            reader.readByte();
+            fail("EOFException expected");
+        } catch (EOFException e) {
+            // Expected
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testUnexpectedEnd() {
+        try {
+            checkUnexpectedEnd(createFile(true));
+            checkUnexpectedEnd(createFile(false));
+        } catch (IOException e) {
+            fail(e.toString());
+        }
+    }
+
+    public void testStreamingWrite() {
+        try {
+            File file = File.createTempFile("fenixlibtest", ".bin");
+            file.deleteOnExit();
+            
+            short[] shorts = new short[N_SHORTS];
+            for (int i = 0; i < N_SHORTS; i++)
+                shorts[i] = (short)i;
+            
+            GZFileWriter writer = new GZFileWriter(file, Deflater.BEST_SPEED,
+                    Deflater.DEFAULT_STRATEGY);
+            try {
+                writer.writeAsciiZ("test", 8);
+                writer.writeInt(0x12345678);
+                writer.writeShorts(shorts);
+                writer.writeBytes(new byte[] {1, 2, 3});
+                writer.writeShort((short)0x7fff);
+            } finally {
+                writer.close();
+            }
+            
+            checkFile(file);
+        } catch (IOException e) {
+            fail(e.toString());
+        }
+    }
+    
+    // Strings whose padding does not fit in the buffer of the writer
+    public void testLongAsciiZ() {
+        try {
+            File file = File.createTempFile("fenixlibtest", ".bin");
+            file.deleteOnExit();
+            
+            GZFileWriter writer = new GZFileWriter(file);
+            try {
+                writer.writeInt(0x12345678);
+                writer.writeAsciiZ("test", N_SHORTS);
+                writer.writeInt(0x7fff);
+            } finally {
+                writer.close();
+            }
+            
+            GZFileReader reader = new GZFileReader(file);
+            try {
+                assertEquals(0x12345678, reader.readInt());
+                assertEquals("test", reader.readAsciiZ(N_SHORTS));
+                assertEquals(0x7fff, reader.readInt());
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            fail(e.toString());
+        }
+    }
+    
+    public static void main(String[] args) {
+        junit.swingui.TestRunner.run(GZFileTests.class);
+    }
+}
@@ -26,7 +26,16 @@ package fenixlibtest;
 
 import fenixlib.*;
 
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
 import java.io.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import junit.framework.TestCase;
 
 /** Tests for graphic classes
@@ -85,6 +94,977 @@ public class GraphicsTests extends TestCase {
         }            
     }
     
+    // Creates a 16bpp graphic with three frames filled with different values
+    private AnimatedGraphic createAnimation() {
+        AnimatedGraphic ag = AnimatedGraphic.create16(40, 30);
+        ag.setName("Animation");
+        ag.setId(7);
+        
+        for (int i = 0; i < 3; i++) {
+            BufferedImage bi = new BufferedImage(40, 30, 
+                    BufferedImage.TYPE_USHORT_565_RGB);
+            short[] data = ((DataBufferUShort)bi.getRaster().getDataBuffer()).getData();
+            for (int j = 0; j < data.length; j++)
+                data[j] = (short)(i * 1000 + j);
+            ag.addFrame(bi);
+        }
+        ag.addSequence("Sequence");
+        ag.addKeyFrame(0, 2, 0, 0, 100);
+        ag.addKeyFrame(0, 0, 0, 0, 200);
+        ag.setSequenceParams(0, 0); // Loop
+        ag.setControlPoint(0, 20, 15);
+        
+        return ag;
+    }
+    
+    public void testFbmWriting() {
+        AnimatedGraphic ag = createAnimation();
+        
+        try {
+            File file = File.createTempFile("fenixlibtest", ".fbm");
+            file.deleteOnExit();
+            new FbmWriter(file).write(ag);
+            
+            AnimatedGraphic read = new FbmReader(file).read();
+            assertEquals(40, read.getWidth());
+            assertEquals(30, read.getHeight());
+            assertEquals(7, read.getId());
+            assertEquals("Animation", read.getName());
+            assertEquals(3, read.getFrameCount());
+            assertEquals(2, read.getKeyFramesInfo(0).length);
+            assertEquals(2, read.getKeyFrameInfo(0, 0).frameIndex);
+            assertEquals(200, read.getKeyFrameInfo(0, 1).pause);
+            assertEquals(0, read.getSequenceInfo(0).nextSequence);
+            assertEquals(15, read.getControlPoint(0).getY());
+            
+            GraphicInfo info = new FbmReader(file).probe();
+            assertEquals("Animation", info.name);
+            assertEquals(DepthMode.DEPTH_16BPP, info.depth);
+            assertEquals(40, info.width);
+            assertEquals(3, info.nFrames);
+            assertEquals(1, info.nSequences);
+            assertEquals(2, info.nKeyFrames);
+            assertEquals(1, info.getControlPoints().length);
+            assertEquals(20, info.getControlPoints()[0].getX());
+            for (int i = 0; i < 3; i++) {
+                short[] data = ((DataBufferUShort)read.getFrame(i).getRaster()
+                        .getDataBuffer()).getData();
+                for (int j = 0; j < data.length; j++)
+                    assertEquals((short)(i * 1000 + j), data[j]);
+            }
+        } catch (IOException e) {
+            fail(e.toString());
+        }
+    }
+    
+    public void testFbmLazyReading() {
+        try {
+            File file = File.createTempFile("fenixlibtest", ".fbm");
+            file.deleteOnExit();
+            new FbmWriter(file).write(createAnimation());
+            
+            FbmReader reader = new FbmReader(file);
+            reader.setLazyFrames(true);
+            AnimatedGraphic read = reader.read();
+            read.setFrameCacheSize(1);
+            assertEquals(3, read.getFrameCount());
+            assertEquals(2, read.getKeyFrameInfo(0, 0).frameIndex);
+            
+            // Access frames backwards so the file needs to be reopened
+            for (int i = 2; i >= 0; i--) {
+                short[] data = ((DataBufferUShort)read.getFrame(i).getRaster()
+                        .getDataBuffer()).getData();
+                for (int j = 0; j < data.length; j++)
+                    assertEquals((short)(i * 1000 + j), data[j]);
+            }
+            assertSame(read.getFrame(0), read.getFrame(0));
+            
+            // Frames are still decoded once the file is closed
+            read.releaseFrameLoader();
+            short[] data = ((DataBufferUShort)read.getFrame(2).getRaster()
+                    .getDataBuffer()).getData();
+            assertEquals((short)2000, data[0]);
+            read.releaseFrameLoader();
+        } catch (IOException e) {
+            fail(e.toString());
+        }
+    }
+    
+    public void testFbmWritingSubimages() {
+        AnimatedGraphic ag = AnimatedGraphic.create8(10, 8, new Palette());
+        
+        // Frames are subimages of a bigger image, so their rasters have
+        // offsets and a scanline stride different from their width
+        BufferedImage big = new BufferedImage(30, 20, 
+                BufferedImage.TYPE_BYTE_INDEXED);
+        byte[] bigData = ((DataBufferByte)big.getRaster().getDataBuffer()).getData();
+        for (int j = 0; j < bigData.length; j++)
+            bigData[j] = (byte)j;
+        ag.addFrame(big.getSubimage(0, 0, 10, 8));
+        ag.addFrame(big.getSubimage(13, 5, 10, 8));
+        ag.addSequence("Sequence");
+        ag.addKeyFrame(0, 1, 0, 0, 0);
+        
+        try {
+            File file = File.createTempFile("fenixlibtest", ".fbm");
+            file.deleteOnExit();
+            new FbmWriter(file).write(ag);
+            
+            AnimatedGraphic read = new FbmReader(file).read();
+            assertEquals(2, read.getFrameCount());
+            byte[] data = ((DataBufferByte)read.getFrame(1).getRaster()
+                    .getDataBuffer()).getData();
+            for (int y = 0; y < 8; y++)
+                for (int x = 0; x < 10; x++)
+                    assertEquals((byte)((y + 5) * 30 + x + 13), data[y * 10 + x]);
+        } catch (IOException e) {
+            fail(e.toString());
+        }
+    }
+    
+    public void testKeyFrameAccessors() {
+        AnimatedGraphic ag = createAnimation();
+        ag.addSequence("Second");
+        ag.addKeyFrame(1, 1, 0, 0, 50);
+        ag.addKeyFrame(0, 1, 2, 90000, 300); // Inserted before sequence 1
+        ag.setKeyFrameParams(1, 0, 2, 1, 0, 60);
+        
+        assertEquals(3, ag.getKeyFrameCount(0));
+        assertEquals(1, ag.getKeyFrameCount(1));
+        assertEquals(1, ag.getKeyFrameFrameIndex(0, 2));
+        assertEquals(2, ag.getKeyFrameFlags(0, 2));
+        assertEquals(90000, ag.getKeyFrameAngle(0, 2));
+        assertEquals(2, ag.getKeyFrameFrameIndex(1, 0));
+        assertEquals(60, ag.getKeyFramePause(1, 0));
+        assertEquals(0, ag.getNextSequence(0));
+        assertEquals(-1, ag.getNextSequence(1));
+        
+        int[] pauses = new int[4];
+        assertEquals(3, ag.getKeyFrames(0, null, null, null, pauses, 1));
+        assertEquals(100, pauses[1]);
+        assertEquals(200, pauses[2]);
+        assertEquals(300, pauses[3]);
+        
+        try {
+            ag.getKeyFramePause(1, 1);
+            fail("IndexOutOfBoundsException expected");
+        } catch (IndexOutOfBoundsException e) {
+            // Expected
+        }
+    }
+    
+    public void testKeyFramesAfterSequences() {
+        // All sequences are added before their keyframes
+        AnimatedGraphic ag = createAnimation();
+        ag.addSequence("Second");
+        ag.addSequence("Third");
+        ag.addKeyFrame(1, 1, 0, 0, 10);
+        ag.addKeyFrame(2, 0, 0, 0, 20);
+        ag.addKeyFrame(2, 2, 0, 0, 30);
+        ag.addKeyFrame(1, 2, 0, 0, 40);
+        
+        assertEquals(2, ag.getKeyFrameCount(0));
+        assertEquals(2, ag.getKeyFrameFrameIndex(0, 0));
+        assertEquals(200, ag.getKeyFramePause(0, 1));
+        assertEquals(2, ag.getKeyFramesInfo(1).length);
+        assertEquals(1, ag.getKeyFrameInfo(1, 0).frameIndex);
+        assertEquals(40, ag.getKeyFramePause(1, 1));
+        assertEquals(2, ag.getKeyFramesInfo(2).length);
+        assertEquals(0, ag.getKeyFrameFrameIndex(2, 0));
+        assertEquals(30, ag.getKeyFramePause(2, 1));
+    }
+    
+    public void testAnimationTimeline() {
+        AnimatedGraphic ag = createAnimation();  // 0: (2, 100) (0, 200), loops
+        ag.addSequence("Intro");                 // 1: (1, 50) (2, 0), then 0
+        ag.addKeyFrame(1, 1, 0, 0, 50);
+        ag.addKeyFrame(1, 2, 0, 0, 0);
+        ag.setSequenceParams(1, 0);
+        ag.addSequence("Once");                  // 2: (1, 10), stops
+        ag.addKeyFrame(2, 1, 0, 0, 10);
+        
+        AnimationTimeline timeline = new AnimationTimeline(ag);
+        assertEquals(300, timeline.getDuration(0));
+        assertEquals(350, timeline.getAnimationLength(1));
+        assertTrue(timeline.isLooping(1));
+        assertFalse(timeline.isLooping(2));
+        
+        assertEquals(2, timeline.getFrameAt(0, 0));
+        assertEquals(2, timeline.getFrameAt(0, 99));
+        assertEquals(0, timeline.getFrameAt(0, 100));
+        assertEquals(2, timeline.getFrameAt(0, 300));
+        assertEquals(1, timeline.getKeyFrameAt(0, 3250));
+        assertEquals(1, timeline.getFrameAt(1, 49));
+        assertEquals(0, timeline.getSequenceAt(1, 50));
+        assertEquals(2, timeline.getFrameAt(1, 50));
+        assertEquals(0, timeline.getFrameAt(1, 50 + 300 * 7 + 150));
+        assertEquals(1, timeline.getFrameAt(2, 1000));
+        
+        AnimationTimeline.Cursor cursor = timeline.createCursor(1);
+        assertEquals(1, cursor.getFrame());
+        cursor.advance(30);
+        assertEquals(1, cursor.getSequence());
+        cursor.advance(30);
+        assertEquals(0, cursor.getSequence());
+        assertEquals(0, cursor.getKeyFrame());
+        cursor.advance(300 * 1000 + 100);
+        assertEquals(1, cursor.getKeyFrame());
+        assertEquals(0, cursor.getFrame());
+        assertFalse(cursor.isFinished());
+        
+        cursor = timeline.createCursor(2);
+        cursor.advance(15);
+        assertTrue(cursor.isFinished());
+        assertEquals(0, cursor.getKeyFrame());
+    }
+    
+    public void testSpriteAnimator() {
+        AnimatedGraphic ag = createAnimation();
+        ag.addSequence("Intro");
+        ag.addKeyFrame(1, 1, 0, 0, 50);
+        ag.addKeyFrame(1, 2, 0, 0, 0);
+        ag.setSequenceParams(1, 0);
+        ag.addSequence("Once");
+        ag.addKeyFrame(2, 1, 0, 0, 10);
+        AnimationTimeline timeline = new AnimationTimeline(ag);
+        
+        SpriteAnimator animator = new SpriteAnimator();
+        int id = animator.addGraphic(ag);
+        int nSprites = 20000;
+        for (int i = 0; i < nSprites; i++) {
+            animator.addSprite(id, i % 3);
+        }
+        
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            long time = 0;
+            for (int t = 0; t < 50; t++) {
+                int dt = (t * 37) % 160;
+                animator.tick(dt, executor);
+                time += dt;
+                for (int i = 0; i < nSprites; i += 997) {
+                    int seq = i % 3;
+                    assertEquals(timeline.getSequenceAt(seq, time), 
+                            animator.getSequence(i));
+                    assertEquals(timeline.getKeyFrameAt(seq, time), 
+                            animator.getKeyFrame(i));
+                    assertEquals(timeline.getFrameAt(seq, time), 
+                            animator.getFrame(i));
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        
+        assertEquals(SpriteAnimator.FINISHED, animator.getFlags(2));
+        assertEquals(0, animator.getFlags(0));
+        
+        animator.setPaused(0, true);
+        int frame = animator.getFrame(0);
+        animator.tick(100);
+        assertEquals(frame, animator.getFrame(0));
+        
+        int lastKeyFrame = animator.getKeyFrame(nSprites - 1);
+        assertEquals(nSprites - 1, animator.removeSprite(0));
+        assertEquals(nSprites - 1, animator.getSpriteCount());
+        assertEquals(lastKeyFrame, animator.getKeyFrame(0));
+        assertEquals(0, animator.getFlags(0));
+        assertEquals(-1, animator.removeSprite(nSprites - 2));
+    }
+    
+    public void testFrameDeduplication() {
+        AnimatedGraphic ag = createAnimation();
+        BufferedImage copy = new BufferedImage(40, 30, 
+                BufferedImage.TYPE_USHORT_565_RGB);
+        copy.setData(ag.getFrame(0).getRaster());
+        ag.addFrame(copy);                       // Same pixels as frame 0
+        ag.addFrame(ag.getFrame(2).getSubimage(0, 0, 40, 30));
+        ag.addKeyFrame(0, 3, 0, 0, 100);
+        ag.addKeyFrame(0, 4, 0, 0, 100);
+        
+        try {
+            File file = File.createTempFile("fenixlibtest", ".fbm");
+            file.deleteOnExit();
+            FbmWriter writer = new FbmWriter(file);
+            writer.setRemoveDuplicateFrames(true);
+            writer.write(ag);
+            
+            AnimatedGraphic read = new FbmReader(file).read();
+            assertEquals(3, read.getFrameCount());
+            assertEquals(2, read.getKeyFrameFrameIndex(0, 0));
+            assertEquals(0, read.getKeyFrameFrameIndex(0, 2));
+            assertEquals(2, read.getKeyFrameFrameIndex(0, 3));
+        } catch (IOException e) {
+            fail(e.toString());
+        }
+        
+        assertEquals(5, ag.getFrameCount());
+        assertEquals(2, ag.removeDuplicateFrames());
+        assertEquals(3, ag.getFrameCount());
+        assertEquals(0, ag.getKeyFrameFrameIndex(0, 2));
+        assertEquals(2, ag.getKeyFrameFrameIndex(0, 3));
+        assertEquals(0, ag.removeDuplicateFrames());
+        
+        // 8bpp frames with the same pixels but other colors are kept
+        Palette palette = new Palette();
+        Palette other = new Palette();
+        other.setRGB(1, 0xff0000);
+        AnimatedGraphic ag8 = AnimatedGraphic.create8(4, 4, palette);
+        BufferedImage frame = new BufferedImage(4, 4, 
+                BufferedImage.TYPE_BYTE_INDEXED, palette.getColorModel());
+        frame.getRaster().setSample(1, 1, 0, 1);
+        ag8.addFrame(frame);
+        ag8.addFrame(new BufferedImage(other.getColorModel(), 
+                frame.getRaster(), false, null));
+        ag8.addFrame(new BufferedImage(new Palette(palette.getColors())
+                .getColorModel(), frame.getRaster(), false, null));
+        assertEquals(1, ag8.removeDuplicateFrames());
+        assertEquals(2, ag8.getFrameCount());
+        assertSame(other.getColorModel(), ag8.getFrame(1).getColorModel());
+    }
+    
+    public void testDeltaFrames() {
+        AnimatedGraphic ag = AnimatedGraphic.create16(40, 30);
+        short[][] expected = new short[4][];
+        for (int i = 0; i < 4; i++) {
+            BufferedImage bi = new BufferedImage(40, 30, 
+                    BufferedImage.TYPE_USHORT_565_RGB);
+            short[] data = ((DataBufferUShort)bi.getRaster().getDataBuffer()).getData();
+            for (int j = 0; j < data.length; j++)
+                data[j] = (short)j;
+            if (i == 3) {
+                for (int j = 0; j < data.length; j++)  // Completely different
+                    data[j] = (short)(j + 7);
+            } else {
+                data[5 * 40 + 10 + i] = 1;             // A small change
+                data[20 * 40 + 3] = (short)i;
+            }
+            expected[i] = data.clone();
+            ag.addFrame(bi);
+        }
+        ag.addSequence("Sequence");
+        ag.addKeyFrame(0, 3, 0, 0, 100);
+        
+        assertEquals(2, ag.encodeDeltaFrames());
+        assertFalse(ag.isDeltaFrame(0));
+        assertTrue(ag.isDeltaFrame(2));
+        assertFalse(ag.isDeltaFrame(3));
+        checkFrames(ag, expected);
+        assertSame(ag.getFrame(2), ag.getFrame(2));     // Kept once rebuilt
+        
+        try {
+            File file = File.createTempFile("fenixlibtest", ".fbm");
+            file.deleteOnExit();
+            FbmWriter writer = new FbmWriter(file);
+            writer.setDeltaFrames(true);
+            writer.write(ag);
+            
+            FbmReader reader = new FbmReader(file);
+            reader.setLazyFrames(true);
+            AnimatedGraphic read = reader.read();
+            assertTrue(read.isDeltaFrame(1));
+            assertFalse(read.isDeltaFrame(3));
+            assertEquals(3, read.getKeyFrameFrameIndex(0, 0));
+            checkFrames(read, expected);
+            
+            // Delta files have their own major version and unknown minor
+            // versions are rejected
+            byte[] bytes = readGZip(file);
+            assertEquals(0x02, bytes[17]);
+            bytes[18] = 1;
+            OutputStream os = new GZIPOutputStream(new FileOutputStream(file));
+            os.write(bytes);
+            os.close();
+            try {
+                new FbmReader(file).read();
+                fail("IOException expected");
+            } catch (IOException e) {
+                // Expected
+            }
+            
+            new FbmWriter(file).write(ag);  // Delta frames written as full frames
+            read = new FbmReader(file).read();
+            assertFalse(read.isDeltaFrame(1));
+            checkFrames(read, expected);
+        } catch (IOException e) {
+            fail(e.toString());
+        }
+    }
+    
+    public void testDeltaFramesColors() {
+        // Frames with the same pixels and other colors are not delta frames
+        Palette palette = new Palette();
+        Palette other = new Palette();
+        other.setRGB(1, 0xff0000);
+        AnimatedGraphic ag = AnimatedGraphic.create8(4, 4, palette);
+        BufferedImage frame = new BufferedImage(4, 4, 
+                BufferedImage.TYPE_BYTE_INDEXED, palette.getColorModel());
+        frame.getRaster().setSample(1, 1, 0, 1);
+        ag.addFrame(frame);
+        ag.addFrame(new BufferedImage(other.getColorModel(), 
+                frame.getRaster(), false, null));
+        ag.addFrame(new BufferedImage(other.getColorModel(), 
+                frame.getRaster(), false, null));
+        
+        assertEquals(1, ag.encodeDeltaFrames());
+        assertFalse(ag.isDeltaFrame(1));
+        assertTrue(ag.isDeltaFrame(2));
+        assertEquals(0xffff0000, ag.getFrame(1).getRGB(1, 1));
+        assertEquals(0xffff0000, ag.getFrame(2).getRGB(1, 1));
+    }
+    
+    private byte[] readGZip(File file) throws IOException {
+        InputStream is = new GZIPInputStream(new FileInputStream(file));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buff = new byte[4096];
+        for (int n = is.read(buff); n != -1; n = is.read(buff))
+            baos.write(buff, 0, n);
+        is.close();
+        return baos.toByteArray();
+    }
+    
+    private void checkFrames(AnimatedGraphic ag, short[][] expected) {
+        assertEquals(expected.length, ag.getFrameCount());
+        for (int i = 0; i < expected.length; i++) {
+            short[] data = (short[])ag.getFrame(i).getRaster().getDataElements(
+                    0, 0, 40, 30, null);
+            for (int j = 0; j < data.length; j++)
+                assertEquals(expected[i][j], data[j]);
+        }
+    }
+    
+    public void testOpaqueBoundsAndTrim() {
+        AnimatedGraphic ag = AnimatedGraphic.create16(40, 30);
+        for (int i = 0; i < 3; i++) {
+            BufferedImage bi = new BufferedImage(40, 30, 
+                    BufferedImage.TYPE_USHORT_565_RGB);
+            short[] data = ((DataBufferUShort)bi.getRaster().getDataBuffer()).getData();
+            if (i == 0) {
+                data[5 * 40 + 10] = 1;
+                data[8 * 40 + 12] = 1;
+            } else if (i == 1) {
+                data[20 * 40 + 30] = 1;
+            }
+            ag.addFrame(bi);
+        }
+        ag.setControlPoint(1, 10, 5);
+        
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            ag.computeOpaqueBounds(executor);
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(new Rectangle(10, 5, 3, 4), ag.getOpaqueBounds(0));
+        assertEquals(new Rectangle(30, 20, 1, 1), ag.getOpaqueBounds(1));
+        assertTrue(ag.getOpaqueBounds(2).isEmpty());
+        
+        assertEquals(new Rectangle(10, 5, 21, 16), ag.trim());
+        assertEquals(21, ag.getWidth());
+        assertEquals(16, ag.getHeight());
+        assertEquals(21, ag.getFrame(0).getWidth());
+        assertEquals(1, ag.getFrame(0).getRaster().getSample(0, 0, 2));
+        assertEquals(1, ag.getFrame(1).getRaster().getSample(20, 15, 2));
+        assertEquals(new Rectangle(20, 15, 1, 1), ag.getOpaqueBounds(1));
+        assertEquals(0, ag.getControlPoint(1).getX());
+        assertEquals(10, ag.getControlPoint(0).getX());
+        assertEquals(10, ag.getControlPoint(0).getY());
+        assertEquals(new Rectangle(0, 0, 21, 16), ag.trim());
+    }
+    
+    public void testCollisionMasks() {
+        // A 100x3 frame with opaque pixels at columns 0, 63, 64 and 99 of row 1
+        AnimatedGraphic ag = AnimatedGraphic.create16(100, 3);
+        BufferedImage bi = new BufferedImage(100, 3, 
+                BufferedImage.TYPE_USHORT_565_RGB);
+        short[] data = ((DataBufferUShort)bi.getRaster().getDataBuffer()).getData();
+        data[100] = data[163] = data[164] = data[199] = 1;
+        ag.addFrame(bi);
+        AnimatedGraphic smallAg = AnimatedGraphic.create16(10, 3);
+        smallAg.addFrame(bi.getSubimage(60, 0, 10, 3));
+        
+        CollisionMask mask = ag.getCollisionMask(0);
+        assertSame(mask, ag.getCollisionMask(0));
+        assertTrue(mask.isOpaque(63, 1));
+        assertTrue(mask.isOpaque(64, 1));
+        assertFalse(mask.isOpaque(65, 1));
+        assertFalse(mask.isOpaque(0, 0));
+        assertFalse(mask.isOpaque(100, 1));
+        
+        CollisionMask small = smallAg.getCollisionMask(0);   // Opaque at 3 and 4
+        assertEquals(10, small.getWidth());
+        assertTrue(small.isOpaque(3, 1));
+        
+        for (int x = -20; x < 120; x++) {
+            for (int y = -3; y <= 3; y++) {
+                boolean expected = false;
+                for (int i = 0; i < 10; i++)
+                    if (y == 0 && small.isOpaque(i, 1) && mask.isOpaque(x + i, 1))
+                        expected = true;
+                assertEquals(expected, mask.overlaps(0, 0, small, x, y));
+                assertEquals(expected, small.overlaps(x + 5, y + 7, mask, 5, 7));
+            }
+        }
+    }
+    
+    public void testFrameVariants() {
+        AnimatedGraphic ag = createAnimation();     // 40x30 frames
+        ag.addKeyFrame(0, 1, FrameVariantCache.FLAG_HMIRROR, -90000, 100);
+        Raster frame = ag.getFrame(1).getRaster();
+        FrameVariantCache cache = new FrameVariantCache(ag, 360, 40 * 30 * 2 * 2);
+        
+        assertSame(ag.getFrame(1), cache.getVariant(1, 400, 0));
+        
+        Raster r90 = cache.getVariant(1, 90000, 0).getRaster();
+        Raster r180 = cache.getVariant(1, 180000, 0).getRaster();
+        Raster mirrored = cache.getVariant(0, 2).getRaster();  // 270 + mirror
+        assertEquals(30, r90.getWidth());
+        assertEquals(40, r180.getWidth());
+        assertEquals(40, mirrored.getHeight());
+        for (int y = 0; y < 30; y++) {
+            for (int x = 0; x < 40; x++) {
+                Object pixel = frame.getDataElements(x, y, null);
+                assertEquals(((short[])pixel)[0], 
+                        ((short[])r90.getDataElements(y, 39 - x, null))[0]);
+                assertEquals(((short[])pixel)[0], 
+                        ((short[])r180.getDataElements(39 - x, 29 - y, null))[0]);
+                assertEquals(((short[])pixel)[0], 
+                        ((short[])mirrored.getDataElements(29 - y, 39 - x, null))[0]);
+            }
+        }
+        
+        // Only two variants fit in the cache
+        assertEquals(40 * 30 * 2 * 2, cache.getSize());
+        assertNotSame(r90, cache.getVariant(1, 90000, 0).getRaster());
+        
+        BufferedImage r45 = cache.getVariant(1, 45000, 0);
+        assertEquals(50, r45.getWidth());   // ceil((40 + 30) * sqrt(2) / 2)
+        assertEquals(50, r45.getHeight());
+        assertEquals(0, ((short[])r45.getRaster().getDataElements(0, 0, null))[0]);
+        assertEquals(((short[])frame.getDataElements(20, 15, null))[0],
+                ((short[])r45.getRaster().getDataElements(25, 25, null))[0]);
+        
+        cache.clear();
+        assertEquals(0, cache.getSize());
+    }
+    
+    public void testControlPoints() {
+        AnimatedGraphic ag = AnimatedGraphic.create16(10, 10);
+        assertEquals(-1, ag.getLastControlPointIndex());
+        ag.setControlPoint(300, 1, 2);
+        ag.setControlPoint(new ControlPoint(5, 3, 4));
+        ag.setControlPoint(0, 5, 5);
+        ag.removeControlPoint(0);
+        
+        assertFalse(ag.hasControlPoint(0));
+        assertNull(ag.getControlPoint(0));
+        assertEquals(2, ag.getControlPointCount());
+        assertEquals(300, ag.getLastControlPointIndex());
+        assertEquals(2, ag.getControlPointY(300));
+        
+        ControlPoint cp = ag.getControlPoint(5);
+        cp.setX(7);                             // Changes the graphic
+        assertEquals(7, ag.getControlPointX(5));
+        ag.setControlPoint(5, 8, 9);
+        assertEquals(9, cp.getY());
+        
+        ControlPoint removed = ag.getControlPoint(300);
+        ag.removeControlPoint(300);
+        ag.setControlPoint(300, 1, 2);
+        removed.setX(6);
+        assertEquals(1, ag.getControlPointX(300));
+        assertEquals(6, removed.getX());
+        
+        int[] indices = new int[2], ys = new int[2];
+        assertEquals(2, ag.getControlPoints(indices, null, ys));
+        assertEquals(5, indices[0]);
+        assertEquals(300, indices[1]);
+        assertEquals(9, ys[0]);
+        assertEquals(300, ag.getControlPoints()[1].getIndex());
+        
+        try {
+            ag.getControlPointX(6);
+            fail("NoSuchElementException expected");
+        } catch (java.util.NoSuchElementException e) {
+            // Expected
+        }
+    }
+
+    // Number of pixels with different samples in two single band frames
+    private static int countDifferences(BufferedImage a, BufferedImage b) {
+        int count = 0;
+        for (int y = 0; y < a.getHeight(); y++)
+            for (int x = 0; x < a.getWidth(); x++)
+                if (a.getRaster().getSample(x, y, 0) != b.getRaster().getSample(x, y, 0))
+                    count++;
+        return count;
+    }
+
+    public void testColorQuantizer() {
+        // Few colors: they are reproduced exactly
+        BufferedImage image = new BufferedImage(64, 48, BufferedImage.TYPE_INT_ARGB);
+        int[] colors = {0xff000000, 0xffff0000, 0xff00ff80, 0xff123456};
+        for (int y = 0; y < 48; y++)
+            for (int x = 0; x < 64; x++)
+                image.setRGB(x, y, y < 4 ? 0 : colors[(x + y) % 4]);
+
+        ColorQuantizer quantizer = new ColorQuantizer();
+        AnimatedGraphic ag = quantizer.quantize(new BufferedImage[] {image, image});
+        assertEquals(DepthMode.DEPTH_8BPP, ag.getDepth());
+        assertEquals(2, ag.getFrameCount());
+        BufferedImage frame = ag.getFrame(1);
+        assertEquals(BufferedImage.TYPE_BYTE_INDEXED, frame.getType());
+        assertSame(ag.getPalette().getColorModel(), frame.getColorModel());
+        Raster raster = frame.getRaster();
+        for (int y = 0; y < 48; y++) {
+            for (int x = 0; x < 64; x++) {
+                int index = raster.getSample(x, y, 0);
+                if (y < 4) {
+                    assertEquals(0, index);     // Transparent
+                } else {
+                    assertTrue(index > 0);
+                    assertEquals(colors[(x + y) % 4] & 0xffffff,
+                            ag.getPalette().getRGB(index));
+                }
+            }
+        }
+
+        // Many colors: at most 255 are used, close to the original ones
+        image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 256; y++)
+            for (int x = 0; x < 256; x++)
+                image.setRGB(x, y, (x << 16) | (y << 8) | ((x + y) / 2));
+        BufferedImage[] images = new BufferedImage[] {image};
+        Palette palette = quantizer.createPalette(images);
+        frame = quantizer.toIndexed(image, palette);
+        long error = 0;
+        for (int y = 0; y < 256; y++) {
+            for (int x = 0; x < 256; x++) {
+                int c = palette.getRGB(frame.getRaster().getSample(x, y, 0));
+                error += Math.abs(((c >> 16) & 0xff) - x)
+                        + Math.abs(((c >> 8) & 0xff) - y);
+            }
+        }
+        assertTrue(error / (256 * 256) < 16);
+
+        // The same result in parallel and with a fast matching
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            quantizer.setExecutor(executor);
+            Palette parallel = quantizer.createPalette(images);
+            for (int i = 0; i < 256; i++)
+                assertEquals(palette.getRGB(i), parallel.getRGB(i));
+            BufferedImage parallelFrame = quantizer.toIndexed(image, parallel);
+            assertEquals(0, countDifferences(frame, parallelFrame));
+
+            quantizer.setExactMatching(false);
+            BufferedImage fast = quantizer.toIndexed(image, parallel);
+            assertTrue(countDifferences(frame, fast) < 256 * 256 / 2);
+        } finally {
+            executor.shutdown();
+        }
+
+        // A fixed palette
+        Palette fixed = new Palette();
+        fixed.setRGB(1, 0x808080);
+        fixed.setRGB(2, 0xffffff);
+        quantizer.setPalette(fixed);
+        assertSame(fixed, quantizer.createPalette(images));
+        frame = quantizer.toIndexed(image, fixed);
+        assertEquals(2, frame.getRaster().getSample(255, 255, 0));
+        assertEquals(1, frame.getRaster().getSample(128, 128, 0));
+        assertEquals(3, frame.getRaster().getSample(0, 0, 0));    // Black
+
+        // ImageIOReader converts truecolor images to 8bpp with a quantizer
+        try {
+            File file = File.createTempFile("fenixlibtest", ".png");
+            file.deleteOnExit();
+            javax.imageio.ImageIO.write(image, "png", file);
+
+            assertEquals(DepthMode.DEPTH_16BPP,
+                    new ImageIOReader(file).read().getDepth());
+            ImageIOReader reader = new ImageIOReader(file);
+            reader.setQuantizer(new ColorQuantizer());
+            ag = reader.read();
+            assertEquals(DepthMode.DEPTH_8BPP, ag.getDepth());
+            assertEquals(BufferedImage.TYPE_BYTE_INDEXED, ag.getFrame(0).getType());
+        } catch (IOException e) {
+            fail(e.toString());
+        }
+    }
+
+    public void testDithering() {
+        // A horizontal gray gradient in a 16bpp frame
+        BufferedImage image = new BufferedImage(128, 100,
+                BufferedImage.TYPE_USHORT_565_RGB);
+        for (int y = 0; y < 100; y++)
+            for (int x = 0; x < 128; x++)
+                image.setRGB(x, y, (x * 2) * 0x010101);
+
+        // Only black (1) and white (2)
+        Palette palette = new Palette();
+        palette.setRGB(2, 0xffffff);
+        ColorQuantizer quantizer = new ColorQuantizer();
+        quantizer.setPalette(palette);
+
+        quantizer.setDithering(ColorQuantizer.DITHER_ERROR_DIFFUSION);
+        BufferedImage frame = quantizer.toIndexed(image, palette);
+        AnimatedGraphic ag = AnimatedGraphic.create8(128, 100, palette);
+        ag.addFrame(frame);
+
+        // Each group of columns keeps its brightness
+        Raster raster = frame.getRaster();
+        for (int group = 0; group < 128; group += 16) {
+            int white = 0, expected = 0;
+            for (int y = 0; y < 100; y++) {
+                for (int x = group; x < group + 16; x++) {
+                    if (raster.getSample(x, y, 0) == 2)
+                        white++;
+                    expected += x * 2;
+                }
+            }
+            assertTrue(Math.abs(white - expected / 255) <= 16);
+        }
+        
+        // Black 565 pixels (columns 0 and 1) are transparent in every mode
+        checkTransparentColumns(frame);
+        quantizer.setDithering(ColorQuantizer.DITHER_NONE);
+        checkTransparentColumns(quantizer.toIndexed(image, palette));
+        quantizer.setDithering(ColorQuantizer.DITHER_ORDERED);
+        checkTransparentColumns(quantizer.toIndexed(image, palette));
+        quantizer.setDithering(ColorQuantizer.DITHER_ERROR_DIFFUSION);
+        
+        // and they do not take a color of created palettes: 255 other colors
+        // still fit in the palette
+        BufferedImage colors = new BufferedImage(16, 32,
+                BufferedImage.TYPE_USHORT_565_RGB);
+        for (int i = 1; i < 256; i++)
+            colors.setRGB(i % 16, i / 16, 
+                    ((i & 31) << 19) | ((i >> 5) << 11) | (7 << 3));
+        Palette created = new ColorQuantizer().createPalette(
+                new BufferedImage[] {colors});
+        for (int i = 1; i < 256; i++)
+            assertTrue(created.getRGB(i) != 0);
+
+        // Bands give the same result in parallel
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            quantizer.setExecutor(executor);
+            assertEquals(0, countDifferences(frame,
+                    quantizer.toIndexed(image, palette)));
+        } finally {
+            executor.shutdown();
+        }
+
+        // Ordered dithering of a flat gray uses both colors
+        image = new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 16; y++)
+            for (int x = 0; x < 16; x++)
+                image.setRGB(x, y, 0x808080);
+        quantizer.setDithering(ColorQuantizer.DITHER_NONE);
+        frame = quantizer.toIndexed(image, palette);
+        assertEquals(0, countDifferences(frame, quantizer.toIndexed(image, palette)));
+        assertEquals(2, frame.getRaster().getSample(5, 5, 0));
+
+        quantizer.setDithering(ColorQuantizer.DITHER_ORDERED);
+        frame = quantizer.toIndexed(image, palette);
+        int white = 0;
+        for (int y = 0; y < 16; y++)
+            for (int x = 0; x < 16; x++)
+                if (frame.getRaster().getSample(x, y, 0) == 2)
+                    white++;
+        assertEquals(128, white);
+
+        try {
+            quantizer.setDithering(3);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    // Checks that only the first columns of a dithered gradient, whose 565
+    // value is 0x0000, are transparent
+    private static void checkTransparentColumns(BufferedImage frame) {
+        for (int y = 0; y < frame.getHeight(); y++) {
+            for (int x = 0; x < 2; x++)
+                assertEquals(0, frame.getRaster().getSample(x, y, 0));
+            assertTrue(frame.getRaster().getSample(2, y, 0) != 0);
+        }
+    }
+
+    public void testPaletteRemapping() {
+        Palette red = new Palette();
+        red.setRGB(1, 0xff0000);
+        red.setRGB(2, 0x00ff00);
+        red.setRGB(3, 0x0000ff);
+        AnimatedGraphic ag = AnimatedGraphic.create8(10, 8, red);
+
+        // A frame added twice, a subimage and a frame stored as a delta
+        BufferedImage frame = new BufferedImage(10, 8, BufferedImage.TYPE_BYTE_INDEXED,
+                red.getColorModel());
+        byte[] data = ((DataBufferByte)frame.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte)(i % 4);
+        BufferedImage big = new BufferedImage(30, 20, BufferedImage.TYPE_BYTE_INDEXED,
+                red.getColorModel());
+        big.getRaster().setSample(5, 5, 0, 1);
+        BufferedImage changed = new BufferedImage(10, 8, BufferedImage.TYPE_BYTE_INDEXED,
+                red.getColorModel());
+        changed.setData(frame.getRaster());
+        changed.getRaster().setSample(9, 7, 0, 2);
+        ag.addFrame(frame);
+        ag.addFrame(frame);
+        ag.addFrame(changed);
+        ag.addFrame(big.getSubimage(5, 5, 10, 8));
+        assertEquals(2, ag.encodeDeltaFrames());
+        assertTrue(ag.isDeltaFrame(2));
+
+        // Same colors in a different order
+        Palette reordered = new Palette();
+        reordered.setRGB(1, 0x0000ff);
+        reordered.setRGB(2, 0xff0000);
+        reordered.setRGB(3, 0x00ff00);
+        ag.remapPalette(reordered, true, null);
+        assertSame(reordered, ag.getPalette());
+
+        int[] expected = {0, 2, 3, 1};
+        Raster raster = ag.getFrame(0).getRaster();
+        for (int i = 0; i < 80; i++)
+            assertEquals(expected[i % 4], raster.getSample(i % 10, i / 10, 0));
+        assertSame(data, ((DataBufferByte)raster.getDataBuffer()).getData());
+        assertEquals(0, countDifferences(ag.getFrame(0), ag.getFrame(1)));
+        assertEquals(3, ag.getFrame(2).getRaster().getSample(9, 7, 0));
+        assertEquals(2, ag.getFrame(2).getRaster().getSample(1, 0, 0));
+        assertEquals(2, ag.getFrame(3).getRaster().getSample(0, 0, 0));
+        assertEquals(1, big.getRaster().getSample(5, 5, 0));    // Not changed
+        for (int f = 0; f < 4; f++)
+            assertSame(reordered.getColorModel(), ag.getFrame(f).getColorModel());
+
+        // Missing colors are only accepted when remapping to the nearest color
+        Palette dark = new Palette();
+        dark.setRGB(1, 0x800000);
+        dark.setRGB(2, 0x008000);
+        try {
+            ag.remapPalette(dark, true, null);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        assertSame(reordered, ag.getPalette());
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            ag.remapPalette(dark, false, executor);
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, ag.getFrame(0).getRaster().getSample(1, 0, 0));    // Red
+        assertEquals(2, ag.getFrame(0).getRaster().getSample(2, 0, 0));    // Green
+        assertEquals(3, ag.getFrame(0).getRaster().getSample(3, 0, 0));    // Black
+        assertEquals(0, ag.getFrame(0).getRaster().getSample(0, 0, 0));
+
+        try {
+            AnimatedGraphic.create16(10, 8).remapPalette(red, false, null);
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    public void testPaletteVariants() {
+        Palette palette = new Palette();
+        palette.setRGB(1, 0xff0000);
+        palette.setRGB(2, 0x00ff00);
+        palette.setRGB(3, 0x0000ff);
+        AnimatedGraphic ag = AnimatedGraphic.create8(10, 8, palette);
+        ag.setName("Unit");
+        for (int f = 0; f < 2; f++) {
+            BufferedImage frame = new BufferedImage(10, 8,
+                    BufferedImage.TYPE_BYTE_INDEXED, palette.getColorModel());
+            for (int x = 0; x < 10; x++)
+                frame.getRaster().setSample(x, 0, 0, x % 4);
+            frame.getRaster().setSample(0, 7, 0, f + 1);
+            ag.addFrame(frame);
+        }
+        ag.encodeDeltaFrames();
+        ag.addSequence("Walk");
+        ag.addKeyFrame(0, 1, 0, 0, 50);
+        ag.setSequenceParams(0, 0);
+        ag.addSequence("Run");
+        ag.addKeyFrame(1, 0, 0, 0, 20);
+        ag.addKeyFrame(1, 1, 0, 0, 30);
+        ag.setControlPoint(3, 4, 5);
+
+        // A team color variant shares the pixels
+        Palette team = new Palette();
+        team.setRGB(1, 0xffff00);
+        team.setRGB(2, 0x00ff00);
+        team.setRGB(3, 0x0000ff);
+        AnimatedGraphic variant = ag.createPaletteVariant(team);
+        assertSame(team, variant.getPalette());
+        assertEquals("Unit", variant.getName());
+        assertEquals(1, variant.getKeyFrameCount(0));
+        assertEquals(1, variant.getKeyFrameFrameIndex(0, 0));
+        assertEquals(50, variant.getKeyFramePause(0, 0));
+        assertEquals(2, variant.getKeyFrameCount(1));
+        assertEquals(0, variant.getKeyFrameFrameIndex(1, 0));
+        assertEquals(20, variant.getKeyFramePause(1, 0));
+        assertEquals(1, variant.getKeyFrameFrameIndex(1, 1));
+        assertEquals(30, variant.getKeyFramePause(1, 1));
+        assertEquals("Run", variant.getSequenceInfo(1).name);
+        assertEquals(0, variant.getNextSequence(0));
+        assertEquals(5, variant.getControlPointY(3));
+        assertTrue(variant.isDeltaFrame(1));
+        assertSame(ag.getFrame(0).getRaster().getDataBuffer(),
+                variant.getFrame(0).getRaster().getDataBuffer());
+        assertEquals(0xffff0000, ag.getFrame(0).getRGB(1, 0));
+        assertEquals(0xffffff00, variant.getFrame(0).getRGB(1, 0));
+        assertEquals(0xff00ff00, variant.getFrame(1).getRGB(0, 7));
+
+        // Frames with other colors
+        BufferedImage swapped = ag.getFrame(0, team.getColorModel());
+        assertSame(ag.getFrame(0).getRaster(), swapped.getRaster());
+        assertEquals(0xffffff00, swapped.getRGB(1, 0));
+        assertSame(ag.getFrame(0), ag.getFrame(0, palette.getColorModel()));
+
+        // Cycling of colors 1 to 3
+        PaletteCycle cycle = new PaletteCycle(palette);
+        cycle.addRange(1, 3, 100);
+        java.awt.image.IndexColorModel cm = cycle.getColorModel();
+        assertFalse(cycle.tick(50));
+        assertSame(cm, cycle.getColorModel());
+        assertTrue(cycle.tick(50));
+        assertNotSame(cm, cycle.getColorModel());
+        assertEquals(0x0000ff, cycle.getRGB(1));
+        assertEquals(0xff0000, cycle.getRGB(2));
+        assertEquals(0x000000, cycle.getRGB(0));
+        BufferedImage frame = ag.getFrame(0, cycle.getColorModel());
+        assertEquals(0xffff0000, frame.getRGB(2, 0));
+        assertEquals(1, frame.getRaster().getSample(1, 0, 0));
+        assertEquals(0xffff0000, ag.getFrame(0).getRGB(1, 0));
+        assertTrue(cycle.setTime(300));
+        assertEquals(0xff0000, cycle.getRGB(1));     // A whole turn
+        
+        // Remapping a variant does not change the pixels of the others
+        Palette reordered = new Palette();
+        reordered.setRGB(1, 0x0000ff);
+        reordered.setRGB(2, 0x00ff00);
+        reordered.setRGB(3, 0xffff00);
+        variant.remapPalette(reordered, true, null);
+        assertEquals(3, variant.getFrame(0).getRaster().getSample(1, 0, 0));
+        assertEquals(0xffffff00, variant.getFrame(1).getRGB(1, 0));
+        assertEquals(1, ag.getFrame(0).getRaster().getSample(1, 0, 0));
+        assertEquals(1, ag.getFrame(1).getRaster().getSample(1, 0, 0));
+        assertEquals(0xffff0000, ag.getFrame(1).getRGB(1, 0));
+
+        try {
+            cycle.addRange(5, 5, 10);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
     public static void main(String[] args) {
         junit.swingui.TestRunner.run(GraphicsTests.class);
         
@@ -26,7 +26,10 @@ package fenixlibtest;
 
 import fenixlib.*;
 import junit.framework.*;
+import java.awt.image.IndexColorModel;
 import java.io.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /** Tests for Palette related classes
  *  @author Daro Cutillas Carrillo (lord_danko at sourceforge.net)
@@ -117,6 +120,249 @@ public class PaletteTests extends TestCase {
         }
     }    
     
+    // Test writing and probing of FPL files
+    public void testFplWriting() {
+        Palette palette = new Palette();
+        palette.setColor(14, new Color(232, 232, 232));
+        
+        try {
+            File file = File.createTempFile("fenixlibtest", ".fpl");
+            file.deleteOnExit();
+            new FplWriter(file).write(palette);
+            
+            PaletteInfo info = new FplReader(file).probe();
+            assertEquals(DepthMode.DEPTH_8BPP, info.depth);
+            assertEquals(256, info.nColors);
+            
+            Color color = new FplReader(file).read().getColor(14);
+            assertEquals(232, color.getRed());
+            assertEquals(232, color.getGreen());
+            assertEquals(232, color.getBlue());
+        } catch (IOException e) {
+            fail(e.toString());
+        }
+    }
+    
+    // Test packed colors, color views and the cached color model
+    public void testPackedPalette() {
+        int[] rgb = new int[256];
+        for (int i = 0; i < 256; i++)
+            rgb[i] = (i << 16) | ((255 - i) << 8) | (i / 2);
+        Palette palette = new Palette(rgb);
+
+        assertEquals(0x0af505, palette.getRGB(10));
+        assertEquals(10, palette.getColor(10).getRed());
+        assertEquals(245, palette.getColor(10).getGreen());
+        assertEquals(5, palette.getColor(10).getBlue());
+
+        IndexColorModel cm = palette.getColorModel();
+        assertSame(cm, palette.getColorModel());
+        assertEquals(0xff0af505, cm.getRGB(10));
+
+        // Setting the same color keeps the color model
+        palette.setRGB(10, 0x0af505);
+        assertSame(cm, palette.getColorModel());
+
+        // Changes through a color view are seen by the palette
+        palette.getColor(20).setRGB(1, 2, 3);
+        assertEquals(0x010203, palette.getRGB(20));
+        assertNotSame(cm, palette.getColorModel());
+        assertEquals(0xff010203, palette.getColorModel().getRGB(20));
+
+        // The array of colors is not backed by the palette
+        palette.getColors()[20] = new Color(4, 5, 6);
+        assertEquals(0x010203, palette.getRGB(20));
+        
+        // Palettes do not share colors
+        Palette copy = new Palette(palette.getColors());
+        copy.setRGB(20, 0);
+        assertEquals(0x010203, palette.getRGB(20));
+
+        int[] all = new int[256];
+        palette.getRGBs(all);
+        assertEquals(0x010203, all[20]);
+    }
+
+    // Test sharing of palettes through a PalettePool
+    public void testPalettePool() {
+        Palette palette = new Palette();
+        palette.setColor(14, new Color(232, 232, 232));
+
+        try {
+            File fpl1 = File.createTempFile("fenixlibtest", ".fpl");
+            File fpl2 = File.createTempFile("fenixlibtest", ".fpl");
+            fpl1.deleteOnExit();
+            fpl2.deleteOnExit();
+            new FplWriter(fpl1).write(palette);
+            new FplWriter(fpl2).write(palette);
+
+            // Without a pool, each file gets its own palette
+            assertNotSame(new FplReader(fpl1).read(), new FplReader(fpl2).read());
+
+            PalettePool pool = new PalettePool();
+            FplReader reader = new FplReader(fpl1);
+            reader.setPalettePool(pool);
+            Palette shared = reader.read();
+            reader = new FplReader(fpl2);
+            reader.setPalettePool(pool);
+            assertSame(shared, reader.read());
+            assertSame(shared, pool.intern(palette));
+            assertSame(shared, pool.intern(shared));
+            assertEquals(1, pool.getSize());
+
+            assertTrue(shared.isImmutable());
+            assertFalse(palette.isImmutable());
+            assertEquals(0xe8e8e8, shared.getRGB(14));
+            try {
+                shared.getColor(14).setRed(0);
+                fail("UnsupportedOperationException expected");
+            } catch (UnsupportedOperationException e) {
+                // Expected
+            }
+            assertEquals(0xe8e8e8, shared.getRGB(14));
+
+            palette.setRGB(1, 0x123456);
+            assertNotSame(shared, pool.intern(palette));
+            assertEquals(2, pool.getSize());
+        } catch (IOException e) {
+            fail(e.toString());
+        }
+    }
+
+    // Brute force search of the nearest color, skipping the transparent index
+    private static int nearest(Palette palette, int rgb) {
+        int best = 0, bestDist = Integer.MAX_VALUE;
+        for (int i = 1; i < 256; i++) {
+            int c = palette.getRGB(i);
+            int dr = ((c >> 16) & 0xff) - ((rgb >> 16) & 0xff);
+            int dg = ((c >> 8) & 0xff) - ((rgb >> 8) & 0xff);
+            int db = (c & 0xff) - (rgb & 0xff);
+            int dist = dr * dr + dg * dg + db * db;
+            if (dist < bestDist) {
+                best = i;
+                bestDist = dist;
+            }
+        }
+        return best;
+    }
+
+    // Test nearest color searches
+    public void testColorMatcher() {
+        java.util.Random random = new java.util.Random(20070424);
+        int[] rgb = new int[256];
+        for (int i = 0; i < 256; i++)
+            rgb[i] = random.nextInt(0x1000000);
+        rgb[7] = rgb[9] = 0x808080;     // Ties go to the lowest index
+        Palette palette = new Palette(rgb);
+
+        ColorMatcher matcher = palette.getColorMatcher();
+        assertSame(matcher, palette.getColorMatcher());
+        assertEquals(7, matcher.getIndex(0x808080));
+        assertEquals(7, matcher.getIndex(0xff808080));
+        for (int i = 0; i < 5000; i++) {
+            int color = random.nextInt(0x1000000);
+            assertEquals(nearest(palette, color), matcher.getIndex(color));
+        }
+
+        // The lookup table is exact for 565 colors
+        for (int pixel = 0; pixel < 65536; pixel += 7) {
+            int r = (pixel >> 11) & 0x1f, g = (pixel >> 5) & 0x3f, b = pixel & 0x1f;
+            int color = (((r << 3) | (r >> 2)) << 16) | (((g << 2) | (g >> 4)) << 8)
+                    | ((b << 3) | (b >> 2));
+            assertEquals(nearest(palette, color), matcher.getIndex565(pixel));
+            assertEquals(matcher.getIndex565(pixel), matcher.getApproximateIndex(color));
+        }
+
+        // Bulk queries, in parallel and in the calling thread
+        int[] pixels = new int[100000];
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] = random.nextInt(0x1000000);
+        byte[] exact = new byte[pixels.length], approximate = new byte[pixels.length];
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            matcher.getIndices(pixels, exact, true, executor);
+            matcher.getIndices(pixels, approximate, false, executor);
+        } finally {
+            executor.shutdown();
+        }
+        byte[] one = new byte[1];
+        for (int i = 0; i < pixels.length; i += 97) {
+            assertEquals(matcher.getIndex(pixels[i]), exact[i] & 0xff);
+            assertEquals(matcher.getApproximateIndex(pixels[i]), approximate[i] & 0xff);
+            matcher.getIndices(pixels, i, one, 0, 1, true);
+            assertEquals(exact[i], one[0]);
+        }
+
+        // Changing a color gives a new matcher
+        palette.setRGB(200, 0x808080);
+        assertNotSame(matcher, palette.getColorMatcher());
+        assertEquals(7, palette.getColorMatcher().getIndex(0x808080));
+        palette.setRGB(3, 0x808080);
+        assertEquals(3, palette.getColorMatcher().getIndex(0x818181));
+    }
+
+    // Test translucency and fade tables
+    public void testBlendAndFadeTables() {
+        int[] grays = new int[256];
+        for (int i = 0; i < 256; i++)
+            grays[i] = i * 0x010101;
+        Palette palette = new Palette(grays);
+
+        BlendTable half = palette.getBlendTable(128);
+        assertSame(half, palette.getBlendTable(128));
+        assertEquals(128, half.getOpacity());
+        assertEquals(150, half.blend(200, 100));
+        assertEquals(77, half.blend(0, 77));        // Transparent source
+        assertEquals(200, palette.getBlendTable(255).blend(200, 100));
+
+        byte[] src = {0, (byte)200, (byte)255}, dst = {10, 100, 1};
+        half.blend(src, 0, dst, 0, 3);
+        assertEquals(10, dst[0]);
+        assertEquals(150, dst[1] & 0xff);
+        assertEquals(128, dst[2] & 0xff);
+
+        FadeTable fade = palette.getFadeTable(0xff000000, 4);
+        assertSame(fade, palette.getFadeTable(0, 4));
+        assertEquals(200, fade.fade(200, 0));
+        assertEquals(100, fade.fade(200, 2));
+        assertEquals(1, fade.fade(200, 4));         // Index 0 is not a color
+        assertEquals(0, fade.fade(0, 3));
+        byte[] row = {0, (byte)200, 40};
+        fade.fade(row, 1, 2, 2);
+        assertEquals(0, row[0]);
+        assertEquals(100, row[1] & 0xff);
+        assertEquals(20, row[2]);
+        try {
+            fade.fade(10, 5);
+            fail("IndexOutOfBoundsException expected");
+        } catch (IndexOutOfBoundsException e) {
+            // Expected
+        }
+        
+        // Only the most recently used fade tables are kept
+        for (int i = 1; i <= 64; i++)
+            palette.getFadeTable(i, 1);
+        assertNotSame(fade, palette.getFadeTable(0, 4));
+        fade = palette.getFadeTable(0, 4);
+
+        // Tables are built again, in parallel, when colors change
+        palette.setRGB(150, 0x123456);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            BlendTable parallel = palette.getBlendTable(128, executor);
+            assertNotSame(half, parallel);
+            assertEquals(149, parallel.blend(200, 100));
+            palette.setRGB(150, 150 * 0x010101);
+            parallel = palette.getBlendTable(128, executor);
+            for (int s = 0; s < 256; s++)
+                for (int d = 0; d < 256; d++)
+                    assertEquals(half.blend(s, d), parallel.blend(s, d));
+            assertNotSame(fade, palette.getFadeTable(0, 4, executor));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
     public static void main(String[] args) {
         junit.swingui.TestRunner.run(PaletteTests.class);     
     }